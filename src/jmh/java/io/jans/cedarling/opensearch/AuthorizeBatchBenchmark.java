@@ -0,0 +1,50 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.*;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures CedarlingService.authorizeBatch alone, over resources built beforehand. Compare with
+ * ProcessorBenchmark to tell the plugin overhead apart from Cedarling evaluation
+ */
+@State(Scope.Benchmark)
+public class AuthorizeBatchBenchmark {
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int resources;
+
+    @Param({ "128", "1024", "8192" })
+    public int docBytes;
+
+    private SettingsSnapshot snapshot;
+    private TokenBundle tokens;
+    private String action;
+    private List<JSONObject> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        BenchmarkEnvironment env = BenchmarkEnvironment.start(Map.of("decisionCacheMaxEntries", 0));
+        snapshot = SettingsService.getInstance().acquire();
+        action = snapshot.getSettings().getSearchActionName();
+        tokens = CedarlingService.getInstance().getTokenBundle(
+                Map.of(BenchmarkEnvironment.TOKEN_MAPPING, env.getUserinfoToken()));
+        batch = SyntheticHits.resources(SyntheticHits.hits(resources, docBytes));
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        snapshot.close();
+        BenchmarkEnvironment.stop();
+    }
+
+    @Benchmark
+    public Boolean[] authorizeBatch() throws Exception {
+        return CedarlingService.getInstance().authorizeBatch(snapshot.getEngine(), tokens, action, batch,
+                new JSONObject(), new RequestStats());
+    }
+
+}
@@ -0,0 +1,176 @@
+package io.jans.cedarling.opensearch;
+
+import com.nimbusds.jose.*;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.*;
+
+import org.json.*;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.threadpool.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Sets the plugin up the way a node would, but fully offline: the policy store is packed into a local .cjar
+ * from the sources under resources/policy-store, and tokens are signed with a key generated on the fly whose
+ * JWKS is handed to Cedarling via CEDARLING_LOCAL_JWKS. JMH runs every trial in a fresh JVM, so there is at
+ * most one environment per process
+ */
+public class BenchmarkEnvironment {
+
+    public static final String INDEX = "student";
+    public static final String TOKEN_MAPPING = "Jans::Userinfo_token";
+
+    private static final String ISSUER_ID = "jmh";
+    private static final String ISSUER = "https://jmh.invalid";
+    private static final String[] POLICY_STORE_ENTRIES = { "metadata.json", "schema.cedarschema",
+            "policies/alumni_restricted_access.cedar", "trusted-issuers/jmh.json" };
+
+    private static BenchmarkEnvironment instance;
+
+    private Path dir;
+    private ThreadPool threadPool;
+    private String userinfoToken;
+
+    /**
+     * Starts the environment, if not started already
+     * @param overrides Plugin settings to add to (or replace in) the default benchmark settings
+     * @return The environment
+     * @throws Exception If Cedarling could not be started
+     */
+    public static synchronized BenchmarkEnvironment start(Map<String, Object> overrides) throws Exception {
+
+        if (instance == null) {
+            BenchmarkEnvironment env = new BenchmarkEnvironment();
+            env.init(overrides);
+            instance = env;
+        }
+        return instance;
+
+    }
+
+    public static synchronized void stop() {
+
+        if (instance != null) {
+            ThreadPool.terminate(instance.threadPool, 10, TimeUnit.SECONDS);
+            instance = null;
+        }
+
+    }
+
+    /**
+     * A signed userinfo token with role "Student", thus only alumni (grad_year < 2026) are granted
+     * @return A JWT
+     */
+    public String getUserinfoToken() {
+        return userinfoToken;
+    }
+
+    /**
+     * The tbac search extension parameters bearing the token of this environment
+     * @return A map
+     */
+    public Map<String, Object> tbacParams() {
+        return Map.of("tokens", Map.of(TOKEN_MAPPING, userinfoToken), "context", Map.of());
+    }
+
+    private BenchmarkEnvironment() { }
+
+    private void init(Map<String, Object> overrides) throws Exception {
+
+        dir = Files.createTempDirectory("cedarling-jmh");
+        Path store = dir.resolve("policy-store.cjar");
+        packPolicyStore(store);
+
+        RSAKey key = new RSAKeyGenerator(2048).keyID("jmh-" + System.currentTimeMillis()).generate();
+        Path jwks = dir.resolve("jwks.json");
+        JSONObject keys = new JSONObject().put(ISSUER_ID, new JSONArray().put(
+                new JSONObject(key.toPublicJWK().toJSONObject())));
+        Files.writeString(jwks, keys.toString(), UTF_8);
+        userinfoToken = sign(key);
+
+        Settings nodeSettings = Settings.builder().put("node.name", "jmh").build();
+        threadPool = new ThreadPool(nodeSettings,
+                new CedarlingPlugin().getExecutorBuilders(nodeSettings).toArray(new ExecutorBuilder<?>[0]));
+        CedarlingPlugin.setThreadPool(threadPool);
+
+        JSONObject bootstrap = new JSONObject()
+                .put("CEDARLING_APPLICATION_NAME", "Cedarling OpenSearch JMH")
+                .put(PolicyStoreCache.POLICY_STORE_LOCAL_FN_KEY, store.toString())
+                .put(PolicyStoreCache.JWT_SIG_VALIDATION_KEY, "enabled")
+                .put(PolicyStoreCache.LOCAL_JWKS_KEY, jwks.toString())
+                .put("CEDARLING_JWT_STATUS_VALIDATION", "disabled")
+                .put("CEDARLING_JWT_SIGNATURE_ALGORITHMS_SUPPORTED", List.of("RS256"))
+                .put("CEDARLING_LOG_TYPE", "memory")
+                .put("CEDARLING_LOG_LEVEL", "WARN")
+                .put("CEDARLING_LOG_TTL", 60);
+
+        JSONObject settings = new JSONObject()
+                .put("bootstrapProperties", bootstrap)
+                .put("searchActionName", "Jans::Action::\"Search\"")
+                .put("schemaPrefix", "Jans")
+                .put("enabled", true)
+                .put("logCedarlingLogs", false);
+        overrides.forEach(settings::put);
+
+        //Cedarling is started the same way a node restart does: from the local copy of settings
+        Path cacheDir = dir.resolve("cache");
+        new PolicyStoreCache(cacheDir).saveSettings(settings.toString(), System.currentTimeMillis());
+        SettingsService.getInstance().start(cacheDir);
+
+        try (SettingsSnapshot snapshot = SettingsService.getInstance().acquire()) {
+            if (snapshot == null || !snapshot.getEngine().isStarted()) {
+                throw new IllegalStateException("Cedarling could not be started. Check the log for details");
+            }
+        }
+
+    }
+
+    private void packPolicyStore(Path target) throws IOException {
+
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(target))) {
+            for (String entry : POLICY_STORE_ENTRIES) {
+                try (InputStream is = getClass().getResourceAsStream("/policy-store/" + entry)) {
+                    if (is == null) {
+                        throw new FileNotFoundException("policy-store/" + entry);
+                    }
+                    zos.putNextEntry(new ZipEntry(entry));
+                    is.transferTo(zos);
+                    zos.closeEntry();
+                }
+            }
+        }
+
+    }
+
+    private String sign(RSAKey key) throws JOSEException {
+
+        long now = System.currentTimeMillis();
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                .issuer(ISSUER)
+                .subject("jmh-user")
+                .jwtID(UUID.randomUUID().toString())
+                .audience("jmh-client")
+                .claim("client_id", "jmh-client")
+                .claim("role", List.of("Student"))
+                .issueTime(new Date(now))
+                .notBeforeTime(new Date(now))
+                .expirationTime(new Date(now + TimeUnit.DAYS.toMillis(1)))
+                .build();
+
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID())
+                .type(JOSEObjectType.JWT).build(), claims);
+        jwt.sign(new RSASSASigner(key));
+        return jwt.serialize();
+
+    }
+
+}
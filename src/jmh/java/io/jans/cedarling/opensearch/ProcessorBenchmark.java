@@ -0,0 +1,47 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.*;
+
+import org.opensearch.action.search.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures CedarlingSearchResponseProcessor.processResponse end to end: token handling, source parsing,
+ * decisions, and response rebuild. The token cache is on (as by default) and the decision cache is off, so every
+ * hit is evaluated by Cedarling
+ */
+@State(Scope.Benchmark)
+public class ProcessorBenchmark {
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int hits;
+
+    @Param({ "128", "1024", "8192" })
+    public int docBytes;
+
+    private CedarlingSearchResponseProcessor processor;
+    private SearchRequest request;
+    private SearchResponse response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        BenchmarkEnvironment env = BenchmarkEnvironment.start(Map.of("decisionCacheMaxEntries", 0));
+        processor = new CedarlingSearchResponseProcessor.Factory().create(Collections.emptyMap(), "jmh", null,
+                false, new HashMap<>(), null);
+        request = SyntheticHits.request(hits, env.tbacParams());
+        response = SyntheticHits.response(SyntheticHits.hits(hits, docBytes));
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkEnvironment.stop();
+    }
+
+    @Benchmark
+    public SearchResponse processResponse() throws Exception {
+        return processor.processResponse(request, response);
+    }
+
+}
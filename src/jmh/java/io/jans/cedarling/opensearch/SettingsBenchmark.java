@@ -0,0 +1,35 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the settings lookups done on every search. Run it with several threads (-t) to observe contention
+ */
+@State(Scope.Benchmark)
+public class SettingsBenchmark {
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkEnvironment.start(Map.of());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkEnvironment.stop();
+    }
+
+    @Benchmark
+    public PluginSettings getSettings() {
+        return SettingsService.getInstance().getSettings();
+    }
+
+    @Benchmark
+    public boolean acquireAndClose() {
+        try (SettingsSnapshot snapshot = SettingsService.getInstance().acquire()) {
+            return snapshot.getEngine().isStarted();
+        }
+    }
+
+}
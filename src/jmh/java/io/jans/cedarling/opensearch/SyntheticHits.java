@@ -0,0 +1,98 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.*;
+
+import org.apache.lucene.search.TotalHits;
+import org.json.JSONObject;
+import org.opensearch.action.search.*;
+import org.opensearch.core.common.bytes.BytesArray;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.search.*;
+import org.opensearch.search.builder.SearchSourceBuilder;
+import org.opensearch.search.internal.InternalSearchResponse;
+
+/**
+ * Builds search requests and responses resembling those of the student index used in BenchmarkTest. Documents
+ * carry a "bio" field of a given length so that source sizes can be varied. Generation is seeded: the same
+ * parameters always produce the same hits
+ */
+public class SyntheticHits {
+
+    private static final long SEED = 20260418L;
+    private static final String NODE_ID = "jmh-node";
+
+    private SyntheticHits() { }
+
+    /**
+     * Generates hits. Graduation years are uniformly distributed between 2024 and 2027, so about half of the
+     * hits are denied to a non-counselor
+     * @param count Number of hits
+     * @param docBytes Approximate size of every document source
+     * @return An array of hits
+     */
+    public static SearchHit[] hits(int count, int docBytes) {
+
+        Random random = new Random(SEED);
+        SearchShardTarget shard = new SearchShardTarget(NODE_ID,
+                new ShardId(BenchmarkEnvironment.INDEX, "_na_", 0), null, null);
+        SearchHit[] hits = new SearchHit[count];
+
+        for (int i = 0; i < count; i++) {
+            String source = String.format(Locale.ROOT, "{\"name\":\"%s\",\"grad_year\":%d,\"gpa\":\"%.2f\",\"bio\":\"%s\"}",
+                    Integer.toString(random.nextInt(Integer.MAX_VALUE), 36), 2024 + random.nextInt(4),
+                    random.nextFloat() * 5, padding(random, docBytes));
+
+            hits[i] = new SearchHit(i, "doc-" + i, Collections.emptyMap(), Collections.emptyMap());
+            hits[i].sourceRef(new BytesArray(source));
+            hits[i].shard(shard);
+        }
+        return hits;
+
+    }
+
+    /**
+     * Turns hits into Cedarling resources the way the plugin does for non-JSON sources
+     * @param hits Hits
+     * @return A list of resources
+     */
+    public static List<JSONObject> resources(SearchHit[] hits) {
+
+        List<JSONObject> resources = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            JSONObject resource = new JSONObject(hit.getSourceAsMap());
+            resource.put(CedarlingService.ENTITY_MAPPING_KEY,
+                    Map.of("entity_type", "Jans::" + hit.getIndex(), "id", hit.getId()));
+            resources.add(resource);
+        }
+        return resources;
+
+    }
+
+    public static SearchResponse response(SearchHit[] hits) {
+
+        SearchHits searchHits = new SearchHits(hits, new TotalHits(hits.length, TotalHits.Relation.EQUAL_TO), 1.0f);
+        return new SearchResponse(new InternalSearchResponse(searchHits, null, null, null, false, null, 1), null,
+                1, 1, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+
+    }
+
+    public static SearchRequest request(int size, Map<String, Object> tbacParams) {
+
+        SearchSourceBuilder source = new SearchSourceBuilder().size(size)
+                .ext(List.of(new CedarlingSearchExtBuilder(tbacParams)));
+        return new SearchRequest(BenchmarkEnvironment.INDEX).source(source);
+
+    }
+
+    private static String padding(Random random, int docBytes) {
+
+        //Roughly 60 bytes are taken by the other fields
+        char[] chars = new char[Math.max(0, docBytes - 60)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+
+    }
+
+}
@@ -0,0 +1,137 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONObject;
+import org.opensearch.action.search.SearchRequest;
+
+/**
+ * Authorization state bound to a scroll or a point in time (PIT): the principal validated when the first page
+ * was processed, the settings and engine in use then, and the decisions made so far for classes of equivalent
+ * documents (see HitsAuthorizer). Later pages are authorized with this state, so they skip token handling and
+ * are all decided by the same engine. A session holds a reference to its engine until it is released
+ */
+public class AuthzSession {
+
+    private final boolean pit;
+    private final SearchRequest request;
+    private final CedarlingSearchResponseProcessor processor;
+    private final PluginSettings settings;
+    private final CedarlingEngine engine;
+    private final String fingerprint;
+    private final TokenBundle tokens;
+    private final JSONObject context;
+    private final int memoMaxEntries;
+    private final Map<String, Boolean> memo = new ConcurrentHashMap<>();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private volatile String id;
+    private volatile long expiresAt;
+
+    /**
+     * Builds a session. The caller must have taken a reference to the engine on behalf of the session
+     */
+    AuthzSession(String id, boolean pit, SearchRequest request, CedarlingSearchResponseProcessor processor,
+            SettingsSnapshot snapshot, TokenBundle tokens, JSONObject context, int memoMaxEntries) {
+        this.id = id;
+        this.pit = pit;
+        this.request = request;
+        this.processor = processor;
+        this.settings = snapshot.getSettings();
+        this.engine = snapshot.getEngine();
+        this.tokens = tokens;
+        this.fingerprint = tokens.getFingerprint();
+        this.context = context;
+        this.memoMaxEntries = memoMaxEntries;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    void setId(String id) {
+        this.id = id;
+    }
+
+    public boolean isPit() {
+        return pit;
+    }
+
+    /**
+     * The request that opened the session
+     * @return A SearchRequest
+     */
+    public SearchRequest getRequest() {
+        return request;
+    }
+
+    public CedarlingSearchResponseProcessor getProcessor() {
+        return processor;
+    }
+
+    public TokenBundle getTokens() {
+        return tokens;
+    }
+
+    public JSONObject getContext() {
+        return context;
+    }
+
+    /**
+     * Whether the principal of a request is the one the session was opened for
+     * @param tokensFingerprint Fingerprint of the tokens of the request (see TokenBundle.fingerprint)
+     * @param context Context of the request
+     * @return A boolean value
+     */
+    public boolean matches(String tokensFingerprint, JSONObject context) {
+        return fingerprint.equals(tokensFingerprint) && this.context.similar(context);
+    }
+
+    /**
+     * Takes a reference to the pinned engine. The snapshot returned must be closed after use
+     * @return A SettingsSnapshot, or null if the session was released in the meantime
+     */
+    public SettingsSnapshot acquire() {
+        return engine.tryIncRef() ? new SettingsSnapshot(settings, engine) : null;
+    }
+
+    /**
+     * Looks up the decision made for a class of equivalent documents. Decisions are not reused once a token of
+     * the principal has expired
+     * @param classKey Key of the class
+     * @return The decision, or null if it is not known
+     */
+    public Boolean memoized(String classKey) {
+        return System.currentTimeMillis() < tokens.getExpiresAt() ? memo.get(classKey) : null;
+    }
+
+    public void memoize(String classKey, boolean decision) {
+        if (memo.size() < memoMaxEntries) {
+            memo.put(classKey, decision);
+        }
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Extends the life of the session
+     * @param keepAliveMillis Time the session is kept alive from now
+     */
+    public void touch(long keepAliveMillis) {
+        expiresAt = System.currentTimeMillis() + keepAliveMillis;
+    }
+
+    /**
+     * Releases the reference to the pinned engine. Subsequent calls have no effect
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            engine.decRef();
+        }
+    }
+
+}
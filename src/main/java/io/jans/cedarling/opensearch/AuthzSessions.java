@@ -0,0 +1,192 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+import org.opensearch.action.search.SearchRequest;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.threadpool.ThreadPool;
+
+/**
+ * Node-local registry of the authorization sessions of scrolls and points in time (see AuthzSession), keyed by
+ * scroll or PIT ID. Sessions are released when the scroll or PIT is cleared through this node, or when they are
+ * not used for as long as the keep-alive of the last page. Expired sessions are released in the background
+ */
+public class AuthzSessions {
+
+    public static final String ALL = "_all";
+
+    private static final TimeValue SWEEP_INTERVAL = TimeValue.timeValueSeconds(30);
+    private static final long DEFAULT_PIT_KEEP_ALIVE = 5 * 60 * 1000L;
+
+    private static AuthzSessions instance = new AuthzSessions();
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    private final Map<String, AuthzSession> sessions = new ConcurrentHashMap<>();
+    private volatile int maxSessions;
+    private volatile int memoMaxEntries;
+
+    private AuthzSessions() { }
+
+    public static AuthzSessions getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts the periodic release of expired sessions
+     * @param threadPool Node thread pool
+     */
+    public void start(ThreadPool threadPool) {
+        threadPool.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, ThreadPool.Names.GENERIC);
+    }
+
+    /**
+     * Applies the limits found in the plugin settings. Existing sessions are kept
+     * @param pluginSettings Plugin settings
+     */
+    public void configure(PluginSettings pluginSettings) {
+        maxSessions = pluginSettings.getScrollSessionsMax();
+        memoMaxEntries = pluginSettings.getScrollSessionMemoSize();
+    }
+
+    /**
+     * Finds the session of a search that continues a point in time
+     * @param request Search request
+     * @param tokensFingerprint Fingerprint of the tokens of the request
+     * @param context Context of the request
+     * @return The session, or null if there is none or it belongs to another principal
+     */
+    public AuthzSession find(SearchRequest request, String tokensFingerprint, JSONObject context) {
+
+        if (request.pointInTimeBuilder() == null) return null;
+        AuthzSession session = get(request.pointInTimeBuilder().getId());
+        return session != null && session.matches(tokensFingerprint, context) ? session : null;
+
+    }
+
+    /**
+     * Gets a session which has not expired
+     * @param id Scroll or PIT ID
+     * @return The session, or null
+     */
+    public AuthzSession get(String id) {
+
+        AuthzSession session = id == null ? null : sessions.get(id);
+        return session == null || session.getExpiresAt() < System.currentTimeMillis() ? null : session;
+
+    }
+
+    /**
+     * Opens a session for a search that started a scroll or is the first to use a point in time
+     * @param request Search request
+     * @param scrollId Scroll ID found in the response, if any
+     * @param processor Processor that handled the response
+     * @param snapshot Settings and engine employed. The session takes its own reference to the engine
+     * @param tokens Tokens of the request
+     * @param context Context of the request
+     * @return The session, or null if the search does not page, the maximum number of sessions is reached, or
+     * another session exists for the same PIT
+     */
+    public AuthzSession open(SearchRequest request, String scrollId, CedarlingSearchResponseProcessor processor,
+            SettingsSnapshot snapshot, TokenBundle tokens, JSONObject context) {
+
+        boolean pit = request.pointInTimeBuilder() != null;
+        String id = pit ? request.pointInTimeBuilder().getId() : request.scroll() == null ? null : scrollId;
+        if (id == null) return null;
+        if (sessions.size() >= maxSessions) {
+            //Continuations of a scroll without session are rejected (see CedarlingActionFilter)
+            logger.debug("Maximum number of sessions reached. No session opened for {}", id);
+            return null;
+        }
+
+        if (!snapshot.getEngine().tryIncRef()) return null;
+        AuthzSession session = new AuthzSession(id, pit, request, processor, snapshot, tokens, context,
+                memoMaxEntries);
+        session.touch(keepAlive(request));
+
+        //A live session of the same PIT, e.g. of another principal, is not replaced
+        AuthzSession previous = sessions.get(id);
+        boolean added = previous == null ? sessions.putIfAbsent(id, session) == null
+                : previous.getExpiresAt() < System.currentTimeMillis() && sessions.replace(id, previous, session);
+        if (!added) {
+            session.release();
+            return null;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+        logger.debug("Authorization session opened for {} {}", pit ? "PIT" : "scroll", id);
+        return session;
+
+    }
+
+    /**
+     * Registers the use of a session for another page
+     * @param session Session
+     * @param id Scroll ID found in the response. Scroll IDs may change from page to page
+     * @param keepAliveMillis Keep-alive of the page request, or a non-positive value if not supplied
+     */
+    public void touch(AuthzSession session, String id, long keepAliveMillis) {
+
+        if (keepAliveMillis > 0) {
+            session.touch(keepAliveMillis);
+        }
+        String currentId = session.getId();
+        if (id != null && !id.equals(currentId)) {
+            sessions.put(id, session);
+            sessions.remove(currentId, session);
+            session.setId(id);
+        }
+
+    }
+
+    long keepAlive(SearchRequest request) {
+
+        if (request.scroll() != null) return request.scroll().keepAlive().millis();
+        TimeValue keepAlive = request.pointInTimeBuilder().getKeepAlive();
+        return keepAlive == null ? DEFAULT_PIT_KEEP_ALIVE : keepAlive.millis();
+
+    }
+
+    /**
+     * Releases the sessions of scrolls or PITs that were cleared
+     * @param ids Scroll or PIT IDs. If it contains "_all", all sessions of the given kind are released
+     * @param pit Whether the IDs are PIT IDs
+     */
+    public void release(Collection<String> ids, boolean pit) {
+
+        if (ids == null) return;
+        if (ids.contains(ALL)) {
+            sessions.values().removeIf(s -> s.isPit() == pit && release(s));
+            return;
+        }
+        for (String id : ids) {
+            AuthzSession session = sessions.remove(id);
+            if (session != null) {
+                release(session);
+            }
+        }
+
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private boolean release(AuthzSession session) {
+        logger.debug("Releasing authorization session of {}", session.getId());
+        session.release();
+        return true;
+    }
+
+    private void sweep() {
+
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(s -> s.getExpiresAt() < now && release(s));
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.*;
+
+import org.apache.logging.log4j.*;
+import org.opensearch.action.ActionRequest;
+import org.opensearch.action.ActionRunnable;
+import org.opensearch.action.search.*;
+import org.opensearch.action.support.*;
+import org.opensearch.core.action.*;
+import org.opensearch.search.SearchExtBuilder;
+import org.opensearch.tasks.Task;
+
+/**
+ * Search pipelines do not apply to scroll continuations (_search/scroll). This filter authorizes the pages of
+ * scrolls that have an authorization session (see AuthzSessions), and releases sessions when scrolls or points
+ * in time are cleared. Scrolls started with the tbac extension are flagged so that their hits are marked in the
+ * data nodes: continuations without a session in this node (e.g. expired, not opened because the limit was
+ * reached, or opened in another node) fail if their pages bear the mark. It also has the searches of
+ * multi-searches authorized as a whole (see MultiSearchBatch)
+ */
+public class CedarlingActionFilter implements ActionFilter {
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    @Override
+    public int order() {
+        //Run after filters that may reject the request, e.g. those of security plugins
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse> void apply(Task task, String action,
+            Request request, ActionRequestMetadata<Request, Response> actionRequestMetadata,
+            ActionListener<Response> listener, ActionFilterChain<Request, Response> chain) {
+
+        AuthzSessions sessions = AuthzSessions.getInstance();
+        switch (action) {
+            case SearchScrollAction.NAME:
+                SearchScrollRequest scrollRequest = (SearchScrollRequest) request;
+                AuthzSession session = sessions.get(scrollRequest.scrollId());
+                if (session != null) {
+                    chain.proceed(task, action, request, authorizing(session, scrollRequest, listener));
+                } else {
+                    chain.proceed(task, action, request, rejectingPending(listener));
+                }
+                return;
+            case SearchAction.NAME:
+                flagScroll((SearchRequest) request);
+                break;
+            case ClearScrollAction.NAME:
+                sessions.release(((ClearScrollRequest) request).getScrollIds(), false);
+                break;
+            case DeletePitAction.NAME:
+                sessions.release(((DeletePitRequest) request).getPitIds(), true);
+                break;
+            case MultiSearchAction.NAME:
+                MultiSearchBatch batch = MultiSearchBatch.start((MultiSearchRequest) request);
+                if (batch != null) {
+                    chain.proceed(task, action, request, batching(batch, listener));
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        chain.proceed(task, action, request, listener);
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private <Response extends ActionResponse> ActionListener<Response> authorizing(AuthzSession session,
+            SearchScrollRequest scrollRequest, ActionListener<Response> listener) {
+
+        long keepAlive = scrollRequest.scroll() == null ? -1 : scrollRequest.scroll().keepAlive().millis();
+        return ActionListener.wrap(response -> {
+            //Like search responses, pages are authorized in the plugin's response thread pool
+            ActionListener<SearchResponse> searchListener = (ActionListener<SearchResponse>) listener;
+            CedarlingPlugin.getThreadPool().executor(CedarlingPlugin.RESPONSE_THREAD_POOL).execute(
+                    ActionRunnable.supply(searchListener, () -> {
+                        SearchResponse page = (SearchResponse) response;
+                        AuthzSessions.getInstance().touch(session, page.getScrollId(), keepAlive);
+                        return session.getProcessor().processPage(session, page);
+                    }));
+        }, e -> {
+            logger.debug("Scroll continuation failed: {}", e.getMessage());
+            listener.onFailure(e);
+        });
+
+    }
+
+    private <Response extends ActionResponse> ActionListener<Response> rejectingPending(
+            ActionListener<Response> listener) {
+
+        return ActionListener.wrap(response -> {
+            if (CedarlingFetchSubPhase.anyPending(((SearchResponse) response).getHits().getHits())) {
+                logger.debug("Scroll continuation without authorization session rejected");
+                listener.onFailure(new IllegalArgumentException("No authorization session is available for this "
+                        + "scroll in this node. Start the scroll again, and send its continuations to the same node"));
+                return;
+            }
+            listener.onResponse(response);
+        }, listener::onFailure);
+
+    }
+
+    private void flagScroll(SearchRequest request) {
+
+        if (request.scroll() == null || request.source() == null) return;
+        CedarlingSearchExtBuilder cseb = CedarlingSearchExtBuilder.fromExtBuilderList(request.source().ext());
+        if (cseb == null) return;
+
+        Map<String, Object> params = new HashMap<>(cseb.getParams());
+        params.put(CedarlingSearchExtBuilder.SCROLL_PARAM, true);
+        List<SearchExtBuilder> exts = new ArrayList<>(request.source().ext());
+        exts.set(exts.indexOf(cseb), new CedarlingSearchExtBuilder(params));
+        request.source().ext(exts);
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private <Response extends ActionResponse> ActionListener<Response> batching(MultiSearchBatch batch,
+            ActionListener<Response> listener) {
+
+        return ActionListener.wrap(response -> {
+            //All searches completed: their responses were deferred already
+            batch.finish();
+            if (batch.isEmpty()) {
+                listener.onResponse(response);
+                return;
+            }
+            ActionListener<MultiSearchResponse> multiSearchListener = (ActionListener<MultiSearchResponse>) listener;
+            CedarlingPlugin.getThreadPool().executor(CedarlingPlugin.RESPONSE_THREAD_POOL).execute(
+                    ActionRunnable.supply(multiSearchListener,
+                            () -> batch.authorize((MultiSearchResponse) response)));
+        }, e -> {
+            batch.finish();
+            listener.onFailure(e);
+        });
+
+    }
+
+}
@@ -0,0 +1,259 @@
+package io.jans.cedarling.opensearch;
+
+import io.jans.cedarling.binding.wrapper.CedarlingAdapter;
+import io.jans.cedarling.opensearch.log.DecisionLog;
+import io.jans.cedarling.opensearch.policy.CompiledPolicies;
+import io.jans.cedarling.opensearch.policy.PolicyAnalyzer;
+import io.jans.cedarling.opensearch.stats.CedarlingMetrics;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.*;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+
+import uniffi.cedarling_uniffi.*;
+
+/**
+ * A pool of Cedarling instances loaded with a given bootstrap configuration. Instances are independent (each has
+ * its own policy store copy and log store), and every thread is bound to one of them, so concurrent searches do
+ * not contend on a single native instance. Engines are never reconfigured: when the configuration changes, a new
+ * engine is built and replaces the current one. Engines are reference-counted, so the one replaced is closed only
+ * after the searches still using it are done
+ */
+public class CedarlingEngine {
+
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    private final CedarlingAdapter[] adapters;
+    private final JSONObject bootstrapProperties;
+    private final boolean useLogging;
+    private final long generation;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private boolean started;
+    private PolicyAnalyzer policyAnalyzer;
+    private CompiledPolicies compiledPolicies;
+    private SourceProjector policyProjector;
+
+    /**
+     * Builds and initializes an engine. Initialization failures are logged: the engine is returned anyway, but
+     * isStarted will report false
+     * @param bootstrapProperties Cedarling bootstrap properties as found in the plugin settings
+     * @param effectiveProperties Properties Cedarling is actually initialized with. They may differ from the
+     * former in where the policy store is taken from (see PolicyStoreCache)
+     * @param useLogging Whether to dump Cedarling logs to the plugin log
+     * @param warmUpAction Action to use in a warm-up decision
+     * @param warmUpEntityType Entity type to use in a warm-up decision
+     * @param poolSize Number of Cedarling instances
+     */
+    public CedarlingEngine(JSONObject bootstrapProperties, JSONObject effectiveProperties, boolean useLogging,
+            String warmUpAction, String warmUpEntityType, int poolSize) {
+
+        this.bootstrapProperties = bootstrapProperties;
+        this.useLogging = useLogging;
+        generation = GENERATIONS.incrementAndGet();
+        adapters = new CedarlingAdapter[Math.max(1, poolSize)];
+        for (int i = 0; i < adapters.length; i++) {
+            adapters[i] = new CedarlingAdapter();
+        }
+
+        long startedAt = System.nanoTime();
+        try {
+            logger.info("Initializing {} Cedarling instance(s)...", adapters.length);
+            String json = effectiveProperties.toString();
+            //The first instance is loaded alone so that a bad configuration is reported once
+            init(adapters[0], json, warmUpAction, warmUpEntityType);
+
+            if (useLogging) {
+                List<String> initLogs = adapters[0].getLogsByTag("System");
+                initLogs.forEach(line -> logger.debug("   {}", line));
+            }
+            
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[adapters.length - 1];
+            for (int i = 1; i < adapters.length; i++) {
+                CedarlingAdapter adapter = adapters[i];
+                futures[i - 1] = CompletableFuture.runAsync(() -> {
+                    try {
+                        init(adapter, json, warmUpAction, warmUpEntityType);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }, CedarlingPlugin.getThreadPool().generic());
+            }
+            CompletableFuture.allOf(futures).join();
+            started = true;
+            logger.info("Done");
+
+            policyAnalyzer = PolicyAnalyzer.load(effectiveProperties, PolicyStoreCache.POLICY_STORE_LOCAL_FN_KEY);
+            if (policyAnalyzer != null && !policyAnalyzer.isResourceIdUsed()
+                    && policyAnalyzer.getResourceAttributes().stream().noneMatch(a -> a.contains("."))) {
+                policyProjector = new SourceProjector(policyAnalyzer.getResourceAttributes());
+            }
+            if (policyAnalyzer != null) {
+                compiledPolicies = CompiledPolicies.from(policyAnalyzer);
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        CedarlingMetrics.getInstance().init(System.nanoTime() - startedAt, started);
+
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public boolean isUseLogging() {
+        return useLogging;
+    }
+
+    /**
+     * A number that identifies this engine among all engines built in the node. Decisions cached for a given
+     * engine must not be used with another
+     * @return A positive number
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Whether this engine was built for the configuration given
+     * @param bootstrapProperties Cedarling bootstrap properties
+     * @param useLogging Whether Cedarling logs are dumped to the plugin log
+     * @param poolSize Number of Cedarling instances
+     * @return A boolean value
+     */
+    public boolean isBuiltFor(JSONObject bootstrapProperties, boolean useLogging, int poolSize) {
+        return this.useLogging == useLogging && adapters.length == Math.max(1, poolSize)
+                && this.bootstrapProperties.similar(bootstrapProperties);
+    }
+
+    public int getPoolSize() {
+        return adapters.length;
+    }
+
+    /**
+     * Analyzer of the policies this engine was loaded with
+     * @return A PolicyAnalyzer, or null if the policy store could not be analyzed
+     */
+    public PolicyAnalyzer getPolicyAnalyzer() {
+        return policyAnalyzer;
+    }
+
+    /**
+     * The policies this engine was loaded with, compiled for evaluation in Java
+     * @return A CompiledPolicies instance, or null if the policy store could not be analyzed or has no usable schema
+     */
+    public CompiledPolicies getCompiledPolicies() {
+        return compiledPolicies;
+    }
+
+    /**
+     * A projector that extracts from documents the attributes policies refer to. Two documents with the same
+     * projection and entity type get the same decision
+     * @return A SourceProjector, or null if the attributes are not known or policies use resource identifiers
+     */
+    public SourceProjector getPolicyProjector() {
+        return policyProjector;
+    }
+
+    /**
+     * Computes a decision for a single resource. The instance bound to the current thread is used
+     * @param tokenInputs Tokens
+     * @param action Cedar action
+     * @param resource Resource
+     * @param context Context of the request
+     * @param logSampleRate Probability of the decision logs being written, in case of denial
+     * (see DecisionLog.sampleRate). Ignored if Cedarling logs are not used
+     * @return The decision
+     * @throws Exception If Cedarling failed to compute the decision
+     */
+    public boolean authorize(List<TokenInput> tokenInputs, String action, JSONObject resource,
+            JSONObject context, double logSampleRate) throws Exception {
+
+        int stripe = stripe();
+        MultiIssuerAuthorizeResult res = adapters[stripe].authorizeMultiIssuer(tokenInputs, action,
+                resource, context);
+        boolean authorized = res.getDecision();
+
+        if (!authorized && useLogging) {
+            //Logs are fetched and written in the background
+            DecisionLog.getInstance().offer(this, stripe, res.getRequestId(), logSampleRate);
+        }
+        return authorized;
+
+    }
+
+    /**
+     * Retrieves the Cedarling logs of a decision. Every instance keeps the logs of the decisions it made
+     * @param stripe Index of the instance that made the decision
+     * @param requestId Cedarling request ID of the decision
+     * @return A list of log lines
+     * @throws Exception If Cedarling failed to retrieve the logs
+     */
+    public List<String> getLogsByRequestId(int stripe, String requestId) throws Exception {
+        return adapters[stripe].getLogsByRequestId(requestId);
+    }
+
+    /**
+     * Takes a reference to this engine. Every successful call must be paired with a call to decRef
+     * @return False if the engine was already closed
+     */
+    public boolean tryIncRef() {
+
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) return false;
+        } while (!refCount.compareAndSet(count, count + 1));
+        return true;
+
+    }
+
+    /**
+     * Releases a reference to this engine. The engine is closed when the last reference is released
+     */
+    public void decRef() {
+
+        if (refCount.decrementAndGet() == 0) {
+            logger.debug("Closing Cedarling engine #{}", generation);
+            for (CedarlingAdapter adapter : adapters) {
+                try {
+                    adapter.close();
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+    }
+
+    private int stripe() {
+        //Search and authorization pool threads are long-lived, so every thread sticks to the same instance
+        return (int) (Thread.currentThread().threadId() % adapters.length);
+    }
+
+    private void init(CedarlingAdapter adapter, String json, String warmUpAction, String warmUpEntityType)
+            throws Exception {
+        adapter.loadFromJson(json);
+        warmUp(adapter, warmUpAction, warmUpEntityType);
+    }
+
+    private void warmUp(CedarlingAdapter adapter, String action, String entityType) {
+
+        //The first decision pays for lazy initializations. Here it is paid off the request path. The outcome
+        //of this decision is irrelevant: a made-up resource is used
+        try {
+            JSONObject resource = new JSONObject(Map.of(CedarlingService.ENTITY_MAPPING_KEY,
+                    Map.of("entity_type", entityType, "id", "_warmup")));
+            adapter.authorizeMultiIssuer(Collections.emptyList(), action, resource, new JSONObject());
+        } catch (Exception e) {
+            logger.debug("Warm-up decision failed: {}", e.getMessage());
+        }
+
+    }
+
+}
@@ -0,0 +1,186 @@
+package io.jans.cedarling.opensearch;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.logging.log4j.*;
+import org.apache.lucene.index.LeafReaderContext;
+import org.json.JSONObject;
+import org.opensearch.common.document.DocumentField;
+import org.opensearch.common.regex.Regex;
+import org.opensearch.search.SearchHit;
+import org.opensearch.search.builder.SearchSourceBuilder;
+import org.opensearch.search.fetch.*;
+import org.opensearch.search.fetch.subphase.FieldAndFormat;
+
+/**
+ * Computes Cedarling decisions in the fetch phase, that is, in the data nodes holding the shards of the indices
+ * searched. Decisions are attached to hits as a document field, and the source of denied hits is removed
+ * so it is not transferred to the coordinating node. The response processor then honors the decisions
+ * already made. Decisions are only made when shard-level authorization is enabled in the plugin settings and
+ * the request processor flagged the search.
+ * <p>
+ * Besides, the hits of scrolls started with the tbac extension get the PENDING_FIELD document field. Scroll
+ * continuations are run again with the original request, so every page is marked: pages still marked when
+ * they are about to be returned were not authorized (see CedarlingActionFilter)
+ */
+public class CedarlingFetchSubPhase implements FetchSubPhase {
+
+    public static final String DECISION_FIELD = "_cedarling_decision";
+    public static final String PENDING_FIELD = "_cedarling_pending";
+
+    private static Logger logger = LogManager.getLogger(CedarlingFetchSubPhase.class);
+
+    /**
+     * Tells whether the decisions attached to the hits of a search can be honored. This is only the case when
+     * shard-level authorization is enabled, the search was flagged by the request processor, and it does not
+     * request a field named like DECISION_FIELD, whose values would be under the client's control
+     * @param pluginSettings Plugin settings
+     * @param source Source of the search request
+     * @return A boolean value
+     */
+    public static boolean decisionsTrusted(PluginSettings pluginSettings, SearchSourceBuilder source) {
+
+        if (!pluginSettings.isShardLevelAuthz() || source == null) return false;
+        CedarlingSearchExtBuilder cseb = CedarlingSearchExtBuilder.fromExtBuilderList(source.ext());
+        return cseb != null && Boolean.TRUE.equals(cseb.getParams().get(CedarlingSearchExtBuilder.SHARD_AUTHZ_PARAM))
+                && !requestsDecisionField(source);
+
+    }
+
+    /**
+     * Tells whether a search asks for a field whose name (or pattern) matches DECISION_FIELD, be it a script
+     * field, a stored field, a docvalue field, or a field of the fields option
+     * @param source Source of the search request
+     * @return A boolean value
+     */
+    public static boolean requestsDecisionField(SearchSourceBuilder source) {
+
+        List<String> names = new ArrayList<>();
+        Optional.ofNullable(source.scriptFields()).ifPresent(l -> l.forEach(sf -> names.add(sf.fieldName())));
+        Optional.ofNullable(source.storedFields()).map(sf -> sf.fieldNames()).ifPresent(names::addAll);
+        Optional.ofNullable(source.docValueFields()).ifPresent(l -> l.forEach(f -> names.add(f.field)));
+        Optional.ofNullable(source.fetchFields()).ifPresent(l -> l.forEach(f -> names.add(f.field)));
+        return names.stream().anyMatch(name -> name != null && Regex.simpleMatch(name, DECISION_FIELD));
+
+    }
+
+    @Override
+    public FetchSubPhaseProcessor getProcessor(FetchContext fetchContext) throws IOException {
+
+        CedarlingSearchExtBuilder cseb = (CedarlingSearchExtBuilder)
+                fetchContext.getSearchExt(CedarlingSearchExtBuilder.PARAM_FIELD_NAME);
+        PluginSettings pluginSettings = SettingsService.getInstance().getSettings();
+        if (cseb == null || pluginSettings == null || !pluginSettings.isEnabled()) {
+            return null;
+        }
+
+        Map<String, Object> tbac = cseb.getParams();
+        boolean mark = Boolean.TRUE.equals(tbac.get(CedarlingSearchExtBuilder.SCROLL_PARAM));
+        if (!pluginSettings.isShardLevelAuthz()
+                || !Boolean.TRUE.equals(tbac.get(CedarlingSearchExtBuilder.SHARD_AUTHZ_PARAM))) {
+            return mark ? markingProcessor() : null;
+        }
+
+        CedarlingService cedarlingService = CedarlingService.getInstance();
+        try {
+            TokenBundle tokens = cedarlingService.getTokenBundle(Optional.ofNullable(tbac.get("tokens"))
+                    .map(Map.class::cast).orElse(Collections.emptyMap()));
+            JSONObject context = new JSONObject(Optional.ofNullable(tbac.get("context"))
+                    .map(Map.class::cast).orElse(Collections.emptyMap()));
+
+            String index = fetchContext.getIndexName();
+            String entityType = pluginSettings.getSchemaPrefix() + "::" + index;
+            SourceProjector projector = Optional.ofNullable(pluginSettings.projectorFor(index))
+                    .orElseGet(CedarlingFetchSubPhase::policyProjector);
+            String action = pluginSettings.getSearchActionName();
+            RequestStats stats = new RequestStats();
+
+            return new FetchSubPhaseProcessor() {
+
+                @Override
+                public void setNextReader(LeafReaderContext readerContext) { }
+
+                @Override
+                public void process(HitContext hitContext) throws IOException {
+
+                    SearchHit hit = hitContext.hit();
+                    if (mark) {
+                        markPending(hit);
+                    }
+                    if (!hit.hasSource()) return;   //let the coordinating node handle it
+
+                    EncodedResource resource = ResourceEncoder.get().encode(hit.getSourceRef(), projector, entityType,
+                            hit.getId(), cedarlingService.isDecisionCacheEnabled());
+                    if (resource == null) return;
+
+                    Boolean decision = null;
+                    //There is no hook to release the engine when the fetch phase ends, so it is held per hit
+                    try (SettingsSnapshot snapshot = SettingsService.getInstance().acquire()) {
+                        if (snapshot.getEngine().isStarted()) {
+                            decision = cedarlingService.authorizeBatch(snapshot.getEngine(), tokens, action,
+                                    List.of(resource), context, stats)[0];
+                        }
+                    }
+                    if (decision != null) {
+                        hit.setDocumentField(DECISION_FIELD, new DocumentField(DECISION_FIELD, List.of(decision)));
+                        if (!decision) {
+                            hit.sourceRef(null);
+                        }
+                    }
+
+                }
+
+            };
+        } catch (Exception e) {
+            logger.error("Shard-level authorization unavailable. Decisions will be made in the coordinating node", e);
+            return mark ? markingProcessor() : null;
+        }
+
+    }
+
+    private static FetchSubPhaseProcessor markingProcessor() {
+
+        return new FetchSubPhaseProcessor() {
+
+            @Override
+            public void setNextReader(LeafReaderContext readerContext) { }
+
+            @Override
+            public void process(HitContext hitContext) {
+                markPending(hitContext.hit());
+            }
+
+        };
+
+    }
+
+    private static void markPending(SearchHit hit) {
+        hit.setDocumentField(PENDING_FIELD, new DocumentField(PENDING_FIELD, List.of(true)));
+    }
+
+    /**
+     * Tells whether any of the hits passed bears the PENDING_FIELD mark, that is, it belongs to a scroll started
+     * with the tbac extension and was not authorized yet
+     * @param hits Array of hits
+     * @return A boolean value
+     */
+    public static boolean anyPending(SearchHit[] hits) {
+
+        for (SearchHit hit : hits) {
+            if (hit.field(PENDING_FIELD) != null) return true;
+        }
+        return false;
+
+    }
+
+    private static SourceProjector policyProjector() {
+
+        //The projector outlives the engine, but it holds nothing the engine releases
+        try (SettingsSnapshot snapshot = SettingsService.getInstance().acquire()) {
+            return snapshot.getEngine().getPolicyProjector();
+        }
+
+    }
+
+}
@@ -1,41 +1,97 @@
 package io.jans.cedarling.opensearch;
 
-import io.jans.cedarling.opensearch.rest.SettingsRestHandler;
+import io.jans.cedarling.opensearch.log.DecisionLog;
+import io.jans.cedarling.opensearch.rest.*;
+import io.jans.cedarling.opensearch.stats.*;
 
 import java.util.*;
 import java.util.function.Supplier;
 
+import org.opensearch.action.ActionRequest;
+import org.opensearch.action.support.ActionFilter;
 import org.opensearch.cluster.service.*;
 import org.opensearch.cluster.metadata.IndexNameExpressionResolver;
 import org.opensearch.cluster.node.DiscoveryNodes;
 import org.opensearch.common.settings.*;
+import org.opensearch.common.util.concurrent.OpenSearchExecutors;
+import org.opensearch.core.action.ActionResponse;
+import org.opensearch.core.common.breaker.CircuitBreaker;
+import org.opensearch.core.common.unit.ByteSizeValue;
 import org.opensearch.core.xcontent.NamedXContentRegistry;
 import org.opensearch.core.common.io.stream.NamedWriteableRegistry;
 import org.opensearch.env.*;
+import org.opensearch.indices.breaker.BreakerSettings;
 import org.opensearch.plugins.*;
 import org.opensearch.plugins.SearchPipelinePlugin.Parameters;
 import org.opensearch.rest.*;
+import org.opensearch.search.fetch.FetchSubPhase;
 import org.opensearch.search.pipeline.*;
 import org.opensearch.repositories.RepositoriesService;
 import org.opensearch.script.ScriptService;
-import org.opensearch.threadpool.ThreadPool;
+import org.opensearch.threadpool.*;
 import org.opensearch.transport.client.*;
 import org.opensearch.watcher.ResourceWatcherService;
 import org.json.*;
 
-public class CedarlingPlugin extends Plugin implements SearchPlugin, SearchPipelinePlugin, ActionPlugin {
+public class CedarlingPlugin extends Plugin implements SearchPlugin, SearchPipelinePlugin, ActionPlugin,
+        CircuitBreakerPlugin {
 
     public static final String NAME = "cedarling";
     public static final String SETTINGS_KEY = "plugins." + NAME + ".settings";
     public static final String LAST_UPDATED_KEY = "plugins." + NAME + ".updatedAt";
+    public static final String AUTHZ_THREAD_POOL = NAME + "_authz";
+    public static final String RESPONSE_THREAD_POOL = NAME + "_response";
+    public static final String BREAKER_LIMIT_KEY = "plugins." + NAME + ".breaker.limit";
+    public static final String BREAKER_OVERHEAD_KEY = "plugins." + NAME + ".breaker.overhead";
+    
+    private static final int AUTHZ_QUEUE_SIZE = 1000;
+    private static final int RESPONSE_QUEUE_SIZE = 1000;
+    
+    //All settings are stored in a single bulky string property: handling complex JSON content
+    //for settings in Opensearch is weird and awkward. A separate endpoint was created for config
+    //management. It gives the illusion of proper JSON management. The endpoint serializes
+    //everything to a string before populating settings in the cluster service
+    private static final Setting<String> SETTINGS_SETTING = Setting.simpleString(SETTINGS_KEY,
+            Setting.Property.Dynamic, Setting.Property.NodeScope);
+    private static final Setting<Long> LAST_UPDATED_SETTING = Setting.longSetting(LAST_UPDATED_KEY, 0,
+            Setting.Property.Dynamic, Setting.Property.NodeScope);
+    //Initial limit and overhead of the breaker. At runtime, breaker.cedarling.limit and breaker.cedarling.overhead
+    //cluster settings take precedence, as with any other breaker
+    private static final Setting<ByteSizeValue> BREAKER_LIMIT_SETTING = Setting.memorySizeSetting(BREAKER_LIMIT_KEY,
+            "10%", Setting.Property.NodeScope);
+    private static final Setting<Double> BREAKER_OVERHEAD_SETTING = Setting.doubleSetting(BREAKER_OVERHEAD_KEY, 1.0d,
+            0.0d, Setting.Property.NodeScope);
 
     private static volatile ClusterService cs;
     private static volatile Client localClient;
+    private static volatile ThreadPool tp;
+    private static volatile CircuitBreaker breaker;
 
     public static ClusterService getClusterService() {
         return cs;
     }
     
+    public static ThreadPool getThreadPool() {
+        return tp;
+    }
+    
+    //Lets the plugin run outside a node, e.g. in benchmarks
+    static void setThreadPool(ThreadPool threadPool) {
+        tp = threadPool;
+    }
+    
+    /**
+     * The circuit breaker accounting for the memory taken by authorization passes
+     * @return A CircuitBreaker, or null when running outside a node
+     */
+    public static CircuitBreaker getBreaker() {
+        return breaker;
+    }
+    
+    public static Client getClient() {
+        return localClient;
+    }
+    
     public static ClusterAdminClient getClusterAdminClient() {
         return localClient.admin().cluster();
     }
@@ -45,6 +101,16 @@ public class CedarlingPlugin extends Plugin implements SearchPlugin, SearchPipel
         return Map.of(CedarlingSearchResponseProcessor.TYPE, new CedarlingSearchResponseProcessor.Factory());
     }
     
+    @Override
+    public List<FetchSubPhase> getFetchSubPhases(FetchPhaseConstructionContext context) {
+        return List.of(new CedarlingFetchSubPhase());
+    }
+    
+    @Override
+    public Map<String, Processor.Factory<SearchRequestProcessor>> getRequestProcessors(Parameters parameters) {
+        return Map.of(CedarlingSearchRequestProcessor.TYPE, new CedarlingSearchRequestProcessor.Factory());
+    }
+    
     @Override
     public List<SearchPlugin.SearchExtSpec<?>> getSearchExts() {
         
@@ -74,23 +140,34 @@ public class CedarlingPlugin extends Plugin implements SearchPlugin, SearchPipel
 
         this.cs = clusterService;
         this.localClient = localClient;
+        this.tp = threadPool;
+        //Settings (and the Cedarling engine) are rebuilt upon changes only, not checked on every search
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(SETTINGS_SETTING, LAST_UPDATED_SETTING,
+                SettingsService.getInstance()::onSettingsUpdate);
+        DecisionLog.getInstance().start(threadPool);
+        AuthzSessions.getInstance().start(threadPool);
+        //Do not wait for the cluster state (nor the first search) to have Cedarling ready
+        SettingsService.getInstance().start(nodeEnvironment.nodeDataPaths()[0].resolve(NAME));
         return super.createComponents(localClient, clusterService, threadPool, resourceWatcherService,
                 scriptService, xContentRegistry, environment, nodeEnvironment, namedWriteableRegistry,
                 indexNameExpressionResolver, repositoriesServiceSupplier);
     }
     
-    @Override    
-    public List<Setting<?>> getSettings() {
-        //All settings are stored in a single bulky string property: handling complex JSON content
-        //for settings in Opensearch is weird and awkward. A separate endpoint was created for config
-        //management. It gives the illusion of proper JSON management. The endpoint serializes
-        //everything to a string before populating settings in the cluster service
-        Setting.Property[] properties = new Setting.Property[] { Setting.Property.Dynamic, Setting.Property.NodeScope }; 
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        //Sized after the node processors. Sizes and queues can be tuned via thread_pool.cedarling_authz.* and
+        //thread_pool.cedarling_response.* node settings
+        int size = OpenSearchExecutors.allocatedProcessors(settings);
         return List.of(
-            Setting.simpleString(SETTINGS_KEY, properties),
-            Setting.longSetting(LAST_UPDATED_KEY, 0, properties)
+            new FixedExecutorBuilder(settings, AUTHZ_THREAD_POOL, size, AUTHZ_QUEUE_SIZE, "thread_pool." + AUTHZ_THREAD_POOL),
+            new FixedExecutorBuilder(settings, RESPONSE_THREAD_POOL, size, RESPONSE_QUEUE_SIZE,
+                    "thread_pool." + RESPONSE_THREAD_POOL)
         );
-
+    }
+    
+    @Override    
+    public List<Setting<?>> getSettings() {
+        return List.of(SETTINGS_SETTING, LAST_UPDATED_SETTING, BREAKER_LIMIT_SETTING, BREAKER_OVERHEAD_SETTING);
     }
     
     @Override    
@@ -103,7 +180,28 @@ public class CedarlingPlugin extends Plugin implements SearchPlugin, SearchPipel
         IndexNameExpressionResolver indexNameExpressionResolver,
         Supplier<DiscoveryNodes> nodesInCluster) {
     
-        return List.of(new SettingsRestHandler());
+        return List.of(new SettingsRestHandler(), new StatsRestHandler());
+    }
+    
+    @Override
+    public BreakerSettings getCircuitBreaker(Settings settings) {
+        return new BreakerSettings(NAME, BREAKER_LIMIT_SETTING.get(settings).getBytes(),
+                BREAKER_OVERHEAD_SETTING.get(settings));
+    }
+    
+    @Override
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        breaker = circuitBreaker;
+    }
+    
+    @Override
+    public List<ActionFilter> getActionFilters() {
+        return List.of(new CedarlingActionFilter());
+    }
+    
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return List.of(new ActionHandler<>(CedarlingStatsAction.INSTANCE, TransportCedarlingStatsAction.class));
     }
     
 }
@@ -10,6 +10,12 @@ import org.opensearch.search.SearchExtBuilder;
 public class CedarlingSearchExtBuilder extends SearchExtBuilder {
 
     public final static String PARAM_FIELD_NAME = "tbac";
+    //Flag set by the request processor to signal shards must authorize the hits they fetch
+    public final static String SHARD_AUTHZ_PARAM = "_shard_authz";
+    //Position of a search in a multi-search, set by the action filter (see MultiSearchBatch)
+    public final static String MSEARCH_PARAM = "_msearch";
+    //Flag set by the action filter on searches that open a scroll, so that shards mark the hits they fetch
+    public final static String SCROLL_PARAM = "_scroll";
     
     protected Map<String, Object> params;
 
@@ -0,0 +1,180 @@
+package io.jans.cedarling.opensearch;
+
+import io.jans.cedarling.opensearch.policy.PolicyAnalyzer;
+import io.jans.cedarling.opensearch.policy.ResourceFilter;
+
+import java.util.*;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+import org.opensearch.action.search.SearchRequest;
+import org.opensearch.index.query.*;
+import org.opensearch.index.search.MatchQuery;
+import org.opensearch.search.SearchExtBuilder;
+import org.opensearch.search.pipeline.*;
+
+public class CedarlingSearchRequestProcessor extends AbstractProcessor implements SearchRequestProcessor {
+    
+    public static final String TYPE = "cedarling_request";
+    
+    private static final String INDEX_FIELD = "_index";
+    
+    private Logger logger = LogManager.getLogger(getClass());
+    
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    private CedarlingSearchRequestProcessor(String tag, String description, boolean ignoreFailure) {
+        super(tag, description, ignoreFailure);
+        logger.info("Instantiating CedarlingSearchRequestProcessor");
+    }
+
+    @Override
+    public SearchRequest processRequest(SearchRequest request) throws Exception {
+        
+        PluginSettings pluginSettings = SettingsService.getInstance().getSettings();
+        if (pluginSettings == null || !pluginSettings.isEnabled()) {
+            return request;
+        }
+        
+        CedarlingSearchExtBuilder cseb = Optional.ofNullable(request.source())
+                .map(s -> CedarlingSearchExtBuilder.fromExtBuilderList(s.ext())).orElse(null);
+        if (cseb == null) {
+            logger.debug("No 'tbac' in request. Query is left untouched");
+            return request;
+        }
+        if (CedarlingFetchSubPhase.requestsDecisionField(request.source())) {
+            //Its values would be taken as decisions made in the data nodes
+            throw new IllegalArgumentException("Field " + CedarlingFetchSubPhase.DECISION_FIELD
+                    + " cannot be requested in searches subject to authorization");
+        }
+        
+        if (pluginSettings.isShardLevelAuthz()) {
+            flagShardLevelAuthz(request, cseb);
+        }
+        if (!pluginSettings.isQueryPushdown()) {
+            return request;
+        }
+        
+        Map<String, String> tokens = Optional.ofNullable(cseb.getParams().get("tokens"))
+                .map(Map.class::cast).orElse(Collections.emptyMap());
+        TokenBundle tokenBundle = CedarlingService.getInstance().getTokenBundle(tokens);
+        JSONObject context = new JSONObject(Optional.ofNullable(cseb.getParams().get("context"))
+                .map(Map.class::cast).orElse(Collections.emptyMap()));
+
+        //Documents of an index having a filter must match it. Documents of the rest of indices pass
+        BoolQueryBuilder filter = QueryBuilders.boolQuery().minimumShouldMatch(1);
+        List<String> filteredIndices = new ArrayList<>();
+        
+        try (SettingsSnapshot snapshot = SettingsService.getInstance().acquire()) {
+            PolicyAnalyzer analyzer = snapshot.getEngine().getPolicyAnalyzer();
+            if (analyzer == null) {
+                logger.debug("Policies could not be analyzed. Query is left untouched");
+                return request;
+            }
+            
+            //Filters are derived for the indices whose entity types the schema declares
+            String prefix = pluginSettings.getSchemaPrefix() + "::";
+            for (String entityType : analyzer.getEntityTypes()) {
+                if (!entityType.startsWith(prefix) || entityType.indexOf("::", prefix.length()) >= 0) continue;
+                String index = entityType.substring(prefix.length());
+                
+                String action = pluginSettings.getSearchActionName();
+                PolicyAnalyzer.Outcome outcome = analyzer.decide(action, entityType, tokenBundle.getClaims(),
+                        context);
+                ResourceFilter rf = outcome == PolicyAnalyzer.Outcome.ALLOW_ALL ? ResourceFilter.ALL
+                        : outcome == PolicyAnalyzer.Outcome.DENY_ALL ? ResourceFilter.NONE
+                        : analyzer.filterFor(action, entityType, tokenBundle.getClaims(), context);
+                logger.debug("Filter for index {}: {}", index, rf);
+                filteredIndices.add(index);
+                
+                if (rf.getKind() != ResourceFilter.Kind.NONE) {
+                    filter.should(QueryBuilders.boolQuery()
+                            .filter(QueryBuilders.termQuery(INDEX_FIELD, index))
+                            .filter(toQuery(rf)));
+                }
+            }
+        }
+        if (filteredIndices.isEmpty()) {
+            return request;
+        }
+        filter.should(QueryBuilders.boolQuery()
+                .mustNot(QueryBuilders.termsQuery(INDEX_FIELD, filteredIndices)));
+        
+        QueryBuilder query = Optional.ofNullable(request.source().query()).orElse(QueryBuilders.matchAllQuery());
+        request.source().query(QueryBuilders.boolQuery().must(query).filter(filter));
+        
+        logger.trace("Rewritten query: {}", request.source().query());
+        return request;
+        
+    }
+    
+    /**
+     * Builds the query a policy-derived filter stands for. Strings are matched with all their terms rather than
+     * exactly, so that analyzed (text) fields do not make the query stricter than the filter
+     * @param rf Filter
+     * @return A query builder
+     */
+    static QueryBuilder toQuery(ResourceFilter rf) {
+        
+        switch (rf.getKind()) {
+            case NONE:
+                return QueryBuilders.boolQuery().mustNot(QueryBuilders.matchAllQuery());
+            case AND:
+                BoolQueryBuilder and = QueryBuilders.boolQuery();
+                rf.getChildren().forEach(c -> and.filter(toQuery(c)));
+                return and;
+            case OR:
+                BoolQueryBuilder or = QueryBuilders.boolQuery().minimumShouldMatch(1);
+                rf.getChildren().forEach(c -> or.should(toQuery(c)));
+                return or;
+            case EQUALS:
+                if (rf.getValue() instanceof String) {
+                    return QueryBuilders.matchQuery(rf.getField(), rf.getValue()).operator(Operator.AND)
+                            .zeroTermsQuery(MatchQuery.ZeroTermsQuery.ALL);
+                }
+                return QueryBuilders.termQuery(rf.getField(), rf.getValue());
+            case RANGE:
+                RangeQueryBuilder range = QueryBuilders.rangeQuery(rf.getField());
+                switch (rf.getOperator()) {
+                    case "<": return range.lt(rf.getValue());
+                    case "<=": return range.lte(rf.getValue());
+                    case ">": return range.gt(rf.getValue());
+                    default: return range.gte(rf.getValue());
+                }
+            default:
+                return QueryBuilders.matchAllQuery();
+        }
+        
+    }
+    
+    private void flagShardLevelAuthz(SearchRequest request, CedarlingSearchExtBuilder cseb) {
+        
+        Map<String, Object> params = new HashMap<>(cseb.getParams());
+        params.put(CedarlingSearchExtBuilder.SHARD_AUTHZ_PARAM, true);
+        
+        List<SearchExtBuilder> exts = new ArrayList<>(request.source().ext());
+        exts.set(exts.indexOf(cseb), new CedarlingSearchExtBuilder(params));
+        request.source().ext(exts);
+        
+    }
+    
+    static class Factory implements Processor.Factory<SearchRequestProcessor> {
+        
+        @Override
+        public CedarlingSearchRequestProcessor create(
+            Map<String, Processor.Factory<SearchRequestProcessor>> processorFactories,
+            String tag,
+            String description,
+            boolean ignoreFailure,
+            Map<String, Object> config,
+            PipelineContext pipelineContext) {
+
+            return new CedarlingSearchRequestProcessor(tag, description, ignoreFailure);
+        }
+
+    }
+    
+}
@@ -1,7 +1,7 @@
 package io.jans.cedarling.opensearch;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.*;
 
 import org.opensearch.action.search.*;
 import org.opensearch.core.xcontent.XContentBuilder;
@@ -47,4 +47,46 @@ public class CedarlingSearchResponse extends SearchResponse {
         
     }
     
+    /**
+     * Builds a phase timing that adds the time spent by the plugin to that of the search phases
+     * @param phaseTook Timing of the search phases. It can be null
+     * @param tookInMillis Time spent by the plugin
+     * @return A new PhaseTook instance, or null if phaseTook was null (the request did not ask for phase timing)
+     */
+    public static PhaseTook withCedarlingPhase(PhaseTook phaseTook, long tookInMillis) {
+
+        if (phaseTook == null) return null;
+
+        Map<String, Long> map = new HashMap<>(phaseTook.getPhaseTookMap());
+        map.put(CedarlingSearchResponseProcessor.TYPE, tookInMillis);
+        return new CedarlingPhaseTook(map);
+
+    }
+
+    private static class CedarlingPhaseTook extends PhaseTook {
+
+        private static final String PHASE_TOOK_FIELD = "phase_took";
+
+        CedarlingPhaseTook(Map<String, Long> phaseTookMap) {
+            super(phaseTookMap);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+
+            //The parent class only renders the phases OpenSearch knows of
+            Map<String, Long> map = getPhaseTookMap();
+            builder.startObject(PHASE_TOOK_FIELD);
+            for (SearchPhaseName phase : SearchPhaseName.values()) {
+                builder.field(phase.getName(), map.getOrDefault(phase.getName(), 0L));
+            }
+            String name = CedarlingSearchResponseProcessor.TYPE;
+            builder.field(name, map.getOrDefault(name, 0L));
+            builder.endObject();
+            return builder;
+
+        }
+
+    }
+    
 }
@@ -1,12 +1,19 @@
 package io.jans.cedarling.opensearch;
 
+import io.jans.cedarling.opensearch.stats.CedarlingMetrics;
+
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.*;
 import org.json.*;
+import org.opensearch.action.ActionRunnable;
+import org.opensearch.action.support.PlainActionFuture;
 import org.opensearch.search.*;
 import org.opensearch.search.pipeline.*;
 import org.opensearch.action.search.*;
+import org.opensearch.core.action.ActionListener;
+import org.opensearch.ingest.ConfigurationUtils;
 import org.opensearch.search.profile.*;
 
 import uniffi.cedarling_uniffi.*;
@@ -15,15 +22,20 @@ public class CedarlingSearchResponseProcessor extends AbstractProcessor implemen
     
     public static final String TYPE = "cedarling";
     
+    private static final int DEFAULT_PAGE_SIZE = 10;
+    
     private Logger logger = LogManager.getLogger(getClass());
+    private PageRefiller refiller;
     
     @Override
     public String getType() {
         return TYPE;
     }
 
-    private CedarlingSearchResponseProcessor(String tag, String description, boolean ignoreFailure) {
+    private CedarlingSearchResponseProcessor(String tag, String description, boolean ignoreFailure,
+            PageRefiller refiller) {
         super(tag, description, ignoreFailure);
+        this.refiller = refiller;
         logger.info("Instantiating CedarlingSearchResponseProcessor");
     }
 
@@ -40,121 +52,438 @@ public class CedarlingSearchResponseProcessor extends AbstractProcessor implemen
                         "Jans::Userinfo_token": "ey..."
                         //more token mappings here if needed according to policy
                     },
-                    "context": { ... }
+                    "context": { ... },
+                    "timeout": 500  //optional, overrides authzTimeout
                 }
             }
         }
         */
-        long startedAt = System.currentTimeMillis();
+        //Searches of a multi-search are authorized together once all of them completed
+        if (MultiSearchBatch.defer(request, this)) return response;
+        
+        PlainActionFuture<SearchResponse> future = PlainActionFuture.newFuture();
+        processResponse(request, response, future);
+        return future.actionGet();
+        
+    }
+    
+    /**
+     * Authorizes the hits of a response. The listener may be completed in another thread if the page is refilled
+     * (see PageRefiller)
+     */
+    private void processResponse(SearchRequest request, SearchResponse response,
+            ActionListener<SearchResponse> listener) {
+        
+        long startedAt = System.nanoTime();
+        
+        //Searches over a point in time use the state pinned by the first one, if the principal is the same
+        AuthzSession session = findSession(request);
+        SettingsSnapshot snapshot = session == null ? null : session.acquire();
+        if (snapshot == null) {
+            session = null;
+            snapshot = SettingsService.getInstance().acquire();
+        }
+        if (snapshot == null) {
+            logger.debug("Plugin settings not loaded yet");
+            listener.onResponse(response);
+            return;
+        }
+        
+        //The engine is kept until the response is complete
+        processResponse(request, response, snapshot, session, startedAt,
+                ActionListener.runAfter(listener, snapshot::close));
+        
+    }
+    
+    /**
+     * Processes a page of a scroll with the state of its authorization session
+     * @param session Session of the scroll
+     * @param response Page
+     * @return The response with the hits authorized
+     * @throws Exception If processing failed
+     */
+    SearchResponse processPage(AuthzSession session, SearchResponse response) throws Exception {
+        
+        long startedAt = System.nanoTime();
+        SettingsSnapshot snapshot = session.acquire();
+        if (snapshot == null) {
+            //The session was released in the meantime: its principal is still valid for this page
+            snapshot = SettingsService.getInstance().acquire();
+            if (snapshot == null) return response;
+        }
+        
+        //Scrolls are not refilled, so the listener is completed before returning
+        PlainActionFuture<SearchResponse> future = PlainActionFuture.newFuture();
+        processResponse(session.getRequest(), response, snapshot, session, startedAt,
+                ActionListener.runAfter(future, snapshot::close));
+        return future.actionGet();
+        
+    }
+    
+    private AuthzSession findSession(SearchRequest request) {
+        
+        if (request.pointInTimeBuilder() == null || request.source().ext().isEmpty()) return null;
+        try {
+            Map<String, Object> tbac = CedarlingSearchExtBuilder.class.cast(request.source().ext().get(0)).getParams();
+            Map<String, String> tokens = Optional.ofNullable(tbac.get("tokens")).map(Map.class::cast)
+                    .orElse(Collections.emptyMap());
+            JSONObject context = new JSONObject(Optional.ofNullable(tbac.get("context")).map(Map.class::cast)
+                    .orElse(Collections.emptyMap()));
+            return AuthzSessions.getInstance().find(request, TokenBundle.fingerprint(tokens), context);
+        } catch (Exception e) {
+            logger.debug("Authorization session lookup failed: {}", e.getMessage());
+            return null;
+        }
+        
+    }
+    
+    /**
+     * Processes the response in the plugin's response thread pool, so that the search thread is released
+     * immediately. Responses with nothing to authorize are processed right away in the calling thread
+     */
+    @Override
+    public void processResponseAsync(SearchRequest request, SearchResponse response,
+            PipelineProcessingContext requestContext, ActionListener<SearchResponse> responseListener) {
+        
+        if (MultiSearchBatch.defer(request, this)) {
+            responseListener.onResponse(response);
+            return;
+        }
         
         PluginSettings pluginSettings = SettingsService.getInstance().getSettings();
+        if (pluginSettings == null || !pluginSettings.isEnabled() || response.getHits().getHits().length == 0) {
+            SearchResponseProcessor.super.processResponseAsync(request, response, requestContext, responseListener);
+            return;
+        }
+        
+        //A rejection (pool saturated) is handed to the listener as a failure
+        CedarlingPlugin.getThreadPool().executor(CedarlingPlugin.RESPONSE_THREAD_POOL).execute(
+                ActionRunnable.wrap(responseListener, l -> processResponse(request, response, l)));
+        
+    }
+    
+    private void processResponse(SearchRequest request, SearchResponse response, SettingsSnapshot snapshot,
+            AuthzSession session, long startedAt, ActionListener<SearchResponse> listener) {
+        
+        PluginSettings pluginSettings = snapshot.getSettings();
+        long settingsLookupTook = System.nanoTime() - startedAt;
         if (!pluginSettings.isEnabled()) {
             logger.debug("Cedarling processing is disabled");
-            return response;
+            listener.onResponse(response);
+            return;
         }
         
         CedarlingService cedarlingService = CedarlingService.getInstance();
-        if (!cedarlingService.isStarted()) {
+        if (!snapshot.getEngine().isStarted()) {
             logger.debug("Cedarling service did not start properly");
-            return response;
+            listener.onResponse(response);
+            return;
         }
         
         List<SearchExtBuilder> exts = request.source().ext();
         if (exts.isEmpty()) {
             logger.warn("No 'ext' in request");
-            return response;
+            listener.onResponse(response);
+            return;
         }
         
+        ActionListener<SearchResponse> failureAware = ActionListener.wrap(listener::onResponse, e -> {
+            logger.error("Error parsing 'ext' in request", e);
+            CedarlingMetrics.getInstance().requestFailed();
+            listener.onFailure(e);
+        });
         try {
-            SearchResponseSections sections = response.getInternalResponse();
-            Map empty = Collections.emptyMap();            
-            int authorizedHitsCount = 0;
-            long avgDecisionTime = -1;
+            Map empty = Collections.emptyMap();
+            RequestStats stats = new RequestStats(request.source().profile());
+            ProfileBreakdown profile = stats.getProfile();
+            
+            if (profile != null) {
+                profile.settingsLookup(settingsLookupTook);
+            }
             
             CedarlingSearchExtBuilder cseb = CedarlingSearchExtBuilder.class.cast(exts.get(0));
-            SearchHits searchHits = response.getHits();
-            Iterator<SearchHit> it = searchHits.iterator();
+            SearchHit[] hits = response.getHits().getHits();
+            SearchHit[] authorized = null;
 
-            if (it.hasNext()) {
-                List<SearchHit> authorized = new ArrayList<>();
+            if (hits.length > 0) {
                 Map<String, Object> tbac = cseb.getParams();
                 String action = pluginSettings.getSearchActionName();
-                                
-                Map<String, String> tokens = Optional.ofNullable(
-                            tbac.get("tokens")).map(Map.class::cast).orElse(empty);
-                JSONObject context = new JSONObject(Optional.ofNullable(
-                            tbac.get("context")).map(Map.class::cast).orElse(empty));
                 
-                long decisionsTook = 0;
-                do {
-                    SearchHit hit = it.next();
-                    Map<String, Object> map = hit.getSourceAsMap();
-                    
-                    try {
-                        appendExtraAttributes(map, pluginSettings.getSchemaPrefix(), hit.getIndex(), hit.getId());
-                        long temp = System.nanoTime();
-                        boolean allowed = cedarlingService.authorize(tokens, action, map, context);
-                        decisionsTook += (System.nanoTime() - temp);
-                        
-                        if (allowed) {
-                            authorized.add(hit);
-                        }
-                    } catch (Exception e) {
-                        authorized.add(hit);    //include the result when Cedarling cannot handle it
-                        logger.error(e.getMessage(), e);
-                    }
-                } while (it.hasNext());
+                long temp = System.nanoTime();
+                TokenBundle tokenBundle;
+                JSONObject context;
+                if (session == null) {
+                    Map<String, String> tokens = Optional.ofNullable(
+                                tbac.get("tokens")).map(Map.class::cast).orElse(empty);
+                    context = new JSONObject(Optional.ofNullable(
+                                tbac.get("context")).map(Map.class::cast).orElse(empty));
+                    tokenBundle = cedarlingService.getTokenBundle(tokens);
+                } else {
+                    //Tokens were handled when the session was opened
+                    tokenBundle = session.getTokens();
+                    context = session.getContext();
+                }
+                if (profile != null) {
+                    profile.tokenHandling(System.nanoTime() - temp);
+                }
                 
-                //override the hits, the rest remains all the same
-                SearchHit[] noHits = new SearchHit[0];
-                SearchHits mySearchHits = new SearchHits(
-                        //Use skipHits = true in the plugin config to avoid big response (it's useful for testing)
-                        pluginSettings.isSkipHits() ? noHits : authorized.toArray(noHits), 
-                        searchHits.getTotalHits(), searchHits.getMaxScore(), searchHits.getSortFields(),
-                        searchHits.getCollapseField(), searchHits.getCollapseValues());
-
-                Map<String, ProfileShardResult> shardResults = sections.profile();
-                sections = new SearchResponseSections(mySearchHits,
-                        sections.aggregations(), sections.suggest(), sections.timedOut(), sections.terminatedEarly(),
-                        shardResults.isEmpty() ? null : new SearchProfileShardResults(shardResults),
-                        sections.getNumReducePhases(), sections.getSearchExtBuilders());
+                HitsAuthorizer authorizer = new HitsAuthorizer(snapshot, tokenBundle, action, context, stats);
+                long timeout = timeout(pluginSettings, tbac.get("timeout"));
+                if (timeout > 0) {
+                    authorizer.setDeadline(startedAt + TimeUnit.MILLISECONDS.toNanos(timeout),
+                            pluginSettings.isAuthzTimeoutFailOpen());
+                }
+                if (session != null) {
+                    authorizer.setSession(session);
+                }
+                authorizer.setShardDecisions(CedarlingFetchSubPhase.decisionsTrusted(pluginSettings, request.source()));
+                boolean[] decisions = new boolean[hits.length];
+                authorizer.authorize(hits, decisions);
+                int allowed = countAllowed(decisions, 0, hits.length);
+                Page page = new Page(request, response, snapshot, session, tokenBundle, context, stats, startedAt);
                 
-                authorizedHitsCount = authorized.size();
-                //compute average decision time per document in micro seconds
-                avgDecisionTime = Math.round(decisionsTook / (1000.0d * searchHits.getHits().length));
+                if (refiller != null) {
+                    String ratioKey = PageRefiller.ratioKey(request, tokenBundle);
+                    PageRefiller.learn(ratioKey, allowed, hits.length);
+                    
+                    int from = Math.max(0, request.source().from());
+                    int size = request.source().size() < 0 ? DEFAULT_PAGE_SIZE : request.source().size();
+                    //A page smaller than requested means there are no more documents
+                    if (allowed < size && hits.length == size && request.scroll() == null
+                            && !stats.isTimedOut()) {
+                        refiller.refill(request, hits[hits.length - 1], from + hits.length, size - allowed,
+                                authorizer, ratioKey, stats, ActionListener.wrap(refilled -> failureAware.onResponse(
+                                        complete(page, filter(hits, decisions, 0, allowed, refilled))),
+                                        failureAware::onFailure));
+                        return;
+                    }
+                }
+                authorized = filter(hits, decisions, 0, allowed, Collections.emptyList());
+                failureAware.onResponse(complete(page, authorized));
+                return;
             }
-            
-            return new CedarlingSearchResponse(
-                        Map.of(
-                            "authorized_hits_count", authorizedHitsCount,
-                            "average_decision_time", avgDecisionTime
-                        ),
-                        sections, response.getScrollId(), response.getTotalShards(),
-                        response.getSuccessfulShards(), response.getSkippedShards(),
-                        System.currentTimeMillis() - startedAt + response.getTook().getMillis(), response.getPhaseTook(),
-                        response.getShardFailures(), response.getClusters(), response.pointInTimeId()                
-                    );
+            failureAware.onResponse(rebuild(response, authorized, stats, pluginSettings, session != null, startedAt,
+                    null));
             
         } catch (Exception e) {
-            logger.error("Error parsing 'ext' in request", e);
-            throw e;
+            failureAware.onFailure(e);
         }
 
     }
+    
+    /**
+     * Opens or extends the authorization session of a search whose hits were authorized, and builds the response
+     * @param page Search being processed
+     * @param authorized Hits authorized (see filter)
+     * @return The response returned to the client
+     */
+    private SearchResponse complete(Page page, SearchHit[] authorized) {
+        
+        AuthzSession session = page.session;
+        AuthzSessions sessions = AuthzSessions.getInstance();
+        if (session == null) {
+            session = sessions.open(page.request, page.response.getScrollId(), this, page.snapshot, page.tokens,
+                    page.context);
+        } else if (session.isPit()) {
+            sessions.touch(session, null, sessions.keepAlive(page.request));
+        }
+        return rebuild(page.response, authorized, page.stats, page.snapshot.getSettings(), session != null,
+                page.startedAt, null);
+        
+    }
+    
+    /**
+     * Builds the response returned to the client: hits are replaced by the authorized ones (the rest remains all
+     * the same), and statistics are added in the ext section
+     * @param response Original response
+     * @param authorized Hits authorized (see filter), or null if the response had no hits
+     * @param stats Statistics of the authorization
+     * @param pluginSettings Plugin settings
+     * @param sessionActive Whether an authorization session was involved
+     * @param startedAt Value of System.nanoTime() when processing started
+     * @param extraParams Additional entries for the ext section, if any
+     * @return A CedarlingSearchResponse
+     */
+    SearchResponse rebuild(SearchResponse response, SearchHit[] authorized, RequestStats stats,
+            PluginSettings pluginSettings, boolean sessionActive, long startedAt, Map<String, Object> extraParams) {
+        
+        SearchResponseSections sections = response.getInternalResponse();
+        SearchHits searchHits = response.getHits();
+        ProfileBreakdown profile = stats.getProfile();
+        CedarlingService cedarlingService = CedarlingService.getInstance();
+        int authorizedHitsCount = 0;
+        long avgDecisionTime = -1;
+        
+        //When all hits were authorized, the sections are kept as they are
+        if (authorized != null && (authorized != searchHits.getHits() || pluginSettings.isSkipHits())) {
+            //override the hits, the rest remains all the same
+            long temp = System.nanoTime();
+            SearchHits mySearchHits = new SearchHits(
+                    //Use skipHits = true in the plugin config to avoid big response (it's useful for testing)
+                    pluginSettings.isSkipHits() ? new SearchHit[0] : authorized, 
+                    searchHits.getTotalHits(), searchHits.getMaxScore(), searchHits.getSortFields(),
+                    searchHits.getCollapseField(), searchHits.getCollapseValues());
 
-    private void appendExtraAttributes(Map<String, Object> map, String prefix, String indexName, String id) {
+            Map<String, ProfileShardResult> shardResults = sections.profile();
+            sections = new SearchResponseSections(mySearchHits,
+                    sections.aggregations(), sections.suggest(), sections.timedOut(), sections.terminatedEarly(),
+                    shardResults.isEmpty() ? null : new SearchProfileShardResults(shardResults),
+                    sections.getNumReducePhases(), sections.getSearchExtBuilders());
+            if (profile != null) {
+                profile.responseRebuild(System.nanoTime() - temp);
+            }
+        }
+        if (authorized != null) {
+            authorizedHitsCount = authorized.length;
+            long evaluations = stats.getCedarlingEvaluations();
+            //compute average time per Cedarling evaluation in micro seconds. Hits decided otherwise cost little
+            if (evaluations > 0) {
+                avgDecisionTime = Math.round(stats.getDecisionsTook() / (1000.0d * evaluations));
+            }
+        }
+        long tookNanos = System.nanoTime() - startedAt;
+        long took = TimeUnit.NANOSECONDS.toMillis(tookNanos);
+        CedarlingMetrics.getInstance().request(searchHits.getHits().length, tookNanos);
+        
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("authorized_hits_count", authorizedHitsCount);
+        params.put("average_decision_time", avgDecisionTime);
+        params.put("token_cache", Map.of(
+            "hits", cedarlingService.getTokenCacheHits(),
+            "misses", cedarlingService.getTokenCacheMisses()
+        ));
+        params.put("decision_cache", Map.of(
+            "hits", stats.getDecisionCacheHits(),
+            "misses", stats.getDecisionCacheMisses(),
+            "node_hit_ratio", cedarlingService.getDecisionCacheHitRatio()
+        ));
+        params.put("shard_decisions", stats.getShardDecisions());
+        params.put("fast_path_decisions", stats.getFastPathDecisions());
+        params.put("compiled_decisions", stats.getCompiledDecisions());
+        params.put("equivalence_classes", Map.of(
+            "classes", stats.getEquivalenceClasses(),
+            "saved_evaluations", stats.getSavedEvaluations()
+        ));
+        params.put("timed_out", stats.isTimedOut());
+        params.put("evaluated_hits", stats.getEvaluatedHits());
+        params.put("cedarling_evaluations", stats.getCedarlingEvaluations());
+        params.put("session", Map.of(
+            "active", sessionActive,
+            "memo_hits", stats.getSessionMemoHits()
+        ));
+        params.put("refill", Map.of(
+            "rounds", stats.getRefillRounds(),
+            "fetched", stats.getRefillFetched(),
+            "next_from", stats.getRefillNextFrom()
+        ));
+        if (extraParams != null) {
+            params.putAll(extraParams);
+        }
+        if (profile != null) {
+            params.put("profile", profile.asMap(tookNanos));
+        }
+        
+        return new CedarlingSearchResponse(params, sections, response.getScrollId(), response.getTotalShards(),
+                    response.getSuccessfulShards(), response.getSkippedShards(),
+                    took + response.getTook().getMillis(),
+                    CedarlingSearchResponse.withCedarlingPhase(response.getPhaseTook(), took),
+                    response.getShardFailures(), response.getClusters(), response.pointInTimeId()
+                );
 
-        map.putAll(
-            Map.of("cedar_entity_mapping",
-                Map.of(
-                    "entity_type", prefix + "::" + indexName,
-                    "id", id
-                )
-            )
-        );
+    }
+
+    /**
+     * Picks the hits allowed in a single pass, keeping their order. The original array is not modified: the
+     * response is returned untouched if processing fails and failures are ignored
+     * @param hits Hits of a response
+     * @param decisions Decisions computed for the hits
+     * @param offset Position in decisions of the decision for the first hit
+     * @param allowed Number of hits allowed (see countAllowed)
+     * @param extra Hits to append, e.g. those found when refilling the page
+     * @return The hits array itself if all hits were allowed and there is nothing to append, otherwise an array
+     * of the exact size needed
+     */
+    static SearchHit[] filter(SearchHit[] hits, boolean[] decisions, int offset, int allowed, List<SearchHit> extra) {
+        
+        if (allowed == hits.length && extra.isEmpty()) return hits;
+        
+        SearchHit[] authorized = new SearchHit[allowed + extra.size()];
+        int n = 0;
+        for (int i = 0; i < hits.length; i++) {
+            if (decisions[offset + i]) {
+                authorized[n++] = hits[i];
+            }
+        }
+        for (SearchHit hit : extra) {
+            authorized[n++] = hit;
+        }
+        return authorized;
         
     }
     
+    static int countAllowed(boolean[] decisions, int from, int to) {
+        
+        int allowed = 0;
+        for (int i = from; i < to; i++) {
+            if (decisions[i]) allowed++;
+        }
+        return allowed;
+        
+    }
+
+    /**
+     * Determines the time budget for authorizing the hits of a search
+     * @param pluginSettings Plugin settings
+     * @param requested Value of "timeout" in the tbac extension of the request, if any
+     * @return Time in milliseconds. A non-positive value means no limit
+     */
+    static long timeout(PluginSettings pluginSettings, Object requested) {
+
+        long timeout = pluginSettings.getAuthzTimeout();
+        if (!(requested instanceof Number)) return timeout;
+
+        long value = ((Number) requested).longValue();
+        if (!pluginSettings.isAuthzTimeoutFailOpen()) {
+            //A request can only shorten the budget: a longer one would let it hold authorization threads longer
+            if (timeout <= 0) return value;
+            return value <= 0 ? timeout : Math.min(timeout, value);
+        }
+
+        //When unevaluated hits are let through, a request can only extend the budget: a shorter one would widen
+        //the set of documents it gets without authorization
+        if (timeout <= 0 || value <= 0) return 0;
+        return Math.max(timeout, value);
+
+    }
+
+    /**
+     * What completing the response of a search takes once its hits are authorized
+     */
+    private static class Page {
+
+        private final SearchRequest request;
+        private final SearchResponse response;
+        private final SettingsSnapshot snapshot;
+        private final AuthzSession session;
+        private final TokenBundle tokens;
+        private final JSONObject context;
+        private final RequestStats stats;
+        private final long startedAt;
+
+        Page(SearchRequest request, SearchResponse response, SettingsSnapshot snapshot, AuthzSession session,
+                TokenBundle tokens, JSONObject context, RequestStats stats, long startedAt) {
+            this.request = request;
+            this.response = response;
+            this.snapshot = snapshot;
+            this.session = session;
+            this.tokens = tokens;
+            this.context = context;
+            this.stats = stats;
+            this.startedAt = startedAt;
+        }
+
+    }
+
     static class Factory implements Processor.Factory<SearchResponseProcessor> {
         
         @Override
@@ -166,7 +495,14 @@ public class CedarlingSearchResponseProcessor extends AbstractProcessor implemen
             Map<String, Object> config,
             PipelineContext pipelineContext) {
 
-            return new CedarlingSearchResponseProcessor(tag, description, ignoreFailure);
+            PageRefiller refiller = null;
+            if (ConfigurationUtils.readBooleanProperty(TYPE, tag, config, "refill", false)) {
+                refiller = new PageRefiller(
+                    ConfigurationUtils.readIntProperty(TYPE, tag, config, "refill_max_fetched", 1000),
+                    ConfigurationUtils.readIntProperty(TYPE, tag, config, "refill_max_time", 1000)
+                );
+            }
+            return new CedarlingSearchResponseProcessor(tag, description, ignoreFailure, refiller);
         }
 
     }
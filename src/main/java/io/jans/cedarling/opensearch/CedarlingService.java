@@ -1,6 +1,10 @@
 package io.jans.cedarling.opensearch;
 
-import io.jans.cedarling.binding.wrapper.CedarlingAdapter;
+import io.jans.cedarling.opensearch.cache.*;
+import io.jans.cedarling.opensearch.log.DecisionLog;
+import io.jans.cedarling.opensearch.policy.CompiledPolicies;
+import io.jans.cedarling.opensearch.policy.PolicyAnalyzer;
+import io.jans.cedarling.opensearch.stats.CedarlingMetrics;
 
 import java.util.*;
 
@@ -11,63 +15,289 @@ import uniffi.cedarling_uniffi.*;
 
 public class CedarlingService {
     
-    private CedarlingAdapter cedarlingAdapter;    
     private Logger logger = LogManager.getLogger(getClass());
-    private boolean started;
-    private boolean useLogging;
+    
+    private volatile LruCache<String, TokenBundle> tokenCache;
+    private volatile long tokenCacheMaxTtl;
+    private volatile LruCache<DecisionKey, Boolean> decisionCache;
+    private volatile long decisionCacheTtl;
+    private volatile boolean decisionCacheIncludesId;
+    private volatile boolean useCompiledPolicies;
+    
+    public static final String ENTITY_MAPPING_KEY = "cedar_entity_mapping";
     
     private static CedarlingService instance = new CedarlingService();
     
-    private CedarlingService() {
-        cedarlingAdapter = new CedarlingAdapter();
-    }
+    private CedarlingService() { }
 
     public static CedarlingService getInstance() {
         return instance;
     }
     
-    public void init(JSONObject bootstrapProperties, boolean useLogging) {
+    /**
+     * (Re)creates the caches this service employs and applies the rest of its settings. Previously cached
+     * contents are dropped
+     * @param pluginSettings Plugin settings
+     */
+    public void configureCaches(PluginSettings pluginSettings) {
         
-        try {
-            started = false;
-            logger.info("Initializing Cedarling...");
-            cedarlingAdapter.loadFromJson(bootstrapProperties.toString());
-
-            if (useLogging) { 
-                List<String> initLogs = cedarlingAdapter.getLogsByTag("System");
-                initLogs.forEach(line -> logger.debug("   {}", line));
-            }
+        int maxEntries = pluginSettings.getTokenCacheMaxEntries();
+        tokenCacheMaxTtl = pluginSettings.getTokenCacheMaxTtl() * 1000L;
+        tokenCache = maxEntries > 0 && tokenCacheMaxTtl > 0 ? new LruCache<>(maxEntries) : null;
+        logger.debug("Token cache {}", tokenCache == null ? "disabled" : "holds up to " + maxEntries + " entries");
+        
+        maxEntries = pluginSettings.getDecisionCacheMaxEntries();
+        decisionCacheTtl = pluginSettings.getDecisionCacheTtl() * 1000L;
+        decisionCacheIncludesId = pluginSettings.isDecisionCacheIncludesId();
+        decisionCache = maxEntries > 0 && decisionCacheTtl > 0 ? 
+                new LruCache<>(maxEntries, pluginSettings.getDecisionCacheMaxWeight(), (k, v) -> k.weight()) : null;
+        logger.debug("Decision cache {}", decisionCache == null ? "disabled" : "holds up to " + maxEntries + " entries");
+        useCompiledPolicies = pluginSettings.isCompiledPolicies();
+
+    }
+    
+    /**
+     * Builds a TokenBundle out of the tokens passed. When the token cache is enabled, a previously built bundle
+     * for the same tokens may be returned. Cached bundles live until the earliest of their tokens expiration
+     * and the maximum TTL configured. Caching only saves decoding the token payloads: tokens are not validated
+     * here, and Cedarling validates them on every decision regardless
+     * @param tokens Map of token mappings to (encoded) token values
+     * @return A TokenBundle
+     * @throws Exception If the bundle could not be built
+     */
+    public TokenBundle getTokenBundle(Map<String, String> tokens) throws Exception {
+        
+        String fingerprint = TokenBundle.fingerprint(tokens);
+        LruCache<String, TokenBundle> cache = tokenCache;
+        
+        TokenBundle bundle = cache == null ? null : cache.get(fingerprint);
+        if (bundle == null) {
+            bundle = TokenBundle.from(tokens, fingerprint);
             
-            started = true;
-            this.useLogging = useLogging;
-            logger.info("Done");
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-        }        
+            if (cache != null) {
+                cache.put(fingerprint, bundle,
+                    Math.min(bundle.getExpiresAt(), System.currentTimeMillis() + tokenCacheMaxTtl));
+            }
+        }
+        return bundle;
         
     }
     
-    public boolean isStarted() {
-        return started;
+    public long getTokenCacheHits() {
+        return Optional.ofNullable(tokenCache).map(LruCache::getHits).orElse(0L);
+    }
+    
+    public long getTokenCacheMisses() {
+        return Optional.ofNullable(tokenCache).map(LruCache::getMisses).orElse(0L);
+    }
+    
+    public long getTokenCacheSize() {
+        return Optional.ofNullable(tokenCache).map(c -> (long) c.size()).orElse(0L);
+    }
+    
+    public long getDecisionCacheHits() {
+        return Optional.ofNullable(decisionCache).map(LruCache::getHits).orElse(0L);
+    }
+    
+    public long getDecisionCacheMisses() {
+        return Optional.ofNullable(decisionCache).map(LruCache::getMisses).orElse(0L);
+    }
+    
+    public long getDecisionCacheEvictions() {
+        return Optional.ofNullable(decisionCache).map(LruCache::getEvictions).orElse(0L);
+    }
+    
+    public long getDecisionCacheSize() {
+        return Optional.ofNullable(decisionCache).map(c -> (long) c.size()).orElse(0L);
     }
 
-    public boolean authorize(Map<String, String> tokens, String action, Map<String, Object> resource,
-            JSONObject context) throws Exception {
+    public boolean isDecisionCacheEnabled() {
+        return decisionCache != null;
+    }
+    
+    /**
+     * Computes the ratio of decision cache lookups that found an entry since the cache was created
+     * @return A number between 0 and 1, or -1 if the cache is disabled or no lookups have been made
+     */
+    public double getDecisionCacheHitRatio() {
+        return Optional.ofNullable(decisionCache).map(LruCache::getHitRatio).orElse(-1.0d);
+    }
 
-        List<TokenInput> tokenInputs = new ArrayList<>();
-        tokens.entrySet().forEach(e -> tokenInputs.add(new TokenInput(e.getKey(), e.getValue())));        
-            
-        MultiIssuerAuthorizeResult res = cedarlingAdapter.authorizeMultiIssuer(tokenInputs, action,
-                new JSONObject(resource), context);        
-        boolean authorized = res.getDecision();
+    /**
+     * Computes decisions for a list of resources sharing the same tokens, action, and context. Token inputs are
+     * built once for all the resources in the list. When the decision cache is enabled, decisions previously
+     * computed for the same principal, action, entity type, and resource attributes are reused. When compiled
+     * policies are enabled, resources they can decide are not passed to Cedarling, once Cedarling confirmed the
+     * first of such decisions (see CompiledBatch)
+     * @param engine Cedarling engine to employ
+     * @param tokens Tokens bundle (see getTokenBundle)
+     * @param action Cedar action
+     * @param resources List of resources
+     * @param context Context of the request
+     * @param stats Request statistics to update
+     * @return An array of the same length of the resources list. Every position holds the decision for the respective
+     * resource, or null if it could not be computed due to an error
+     */
+    public Boolean[] authorizeBatch(CedarlingEngine engine, TokenBundle tokens, String action, List<JSONObject> resources,
+            JSONObject context, RequestStats stats) {
+
+        List<TokenInput> tokenInputs = tokens.getTokenInputs();
+        Boolean[] decisions = new Boolean[resources.size()];
+        
+        LruCache<DecisionKey, Boolean> cache = decisionCache;
+        CedarlingMetrics metrics = CedarlingMetrics.getInstance();
+        DecisionLog decisionLog = DecisionLog.getInstance();
+        boolean useLogging = engine.isUseLogging();
+        double principalRate = useLogging ? decisionLog.principalRate(tokens) : 0;
+        CanonicalHasher hasher = null;
+        String principal = null;
+        //Unless the analysis proves policies ignore resource identities, documents are only alike to themselves
+        PolicyAnalyzer analyzer = engine.getPolicyAnalyzer();
+        boolean includesId = decisionCacheIncludesId || analyzer == null || analyzer.isResourceIdUsed();
+        CompiledPolicies compiledPolicies = useCompiledPolicies ? engine.getCompiledPolicies() : null;
+        CompiledBatch compiled = compiledPolicies == null ? null
+                : new CompiledBatch(compiledPolicies, tokens, action, context);
+        
+        if (cache != null) {
+            hasher = new CanonicalHasher();
+            //the context takes part in decisions as well. Decisions are only valid for the engine that made them
+            principal = engine.getGeneration() + "." + tokens.getFingerprint() + "."
+                    + hasher.digest(context.toMap(), Collections.emptySet());
+        }
         
-        if (!authorized && useLogging) {
-            List<String> decisionLogs = cedarlingAdapter.getLogsByRequestId(res.getRequestId());
+        for (int i = 0; i < decisions.length; i++) {
+            JSONObject resource = resources.get(i);
+            DecisionKey key = cache == null ? null : decisionKey(hasher, principal, action, resource, includesId);
+            if (key != null) {
+                decisions[i] = cache.get(key);
+                
+                if (decisions[i] != null) {
+                    stats.decisionCacheHit();
+                    metrics.decision(decisions[i]);
+                    continue;
+                }
+                stats.decisionCacheMiss();
+            }
+            
+            Boolean compiledDecision = compiled == null ? null : compiled.decide(resource);
+            if (compiledDecision != null && compiled.isConfirmed()) {
+                decisions[i] = compiledDecision;
+                stats.compiledDecision();
+                if (key != null) {
+                    cache.put(key, decisions[i], decisionExpiresAt(tokens));
+                }
+                metrics.decision(decisions[i]);
+                continue;
+            }
             
-            logger.debug("Unauthorized decision{}", decisionLogs.isEmpty() ? ". No logs available" : "");
-            decisionLogs.forEach(line -> logger.trace("   {}", line));                
+            try {
+                double logSampleRate = useLogging ? decisionLog.sampleRate(principalRate, resource) : 0;
+                long startedAt = System.nanoTime();
+                stats.cedarlingEvaluation();
+                decisions[i] = engine.authorize(tokenInputs, action, resource, context, logSampleRate);
+                metrics.decisionTook(System.nanoTime() - startedAt);
+                
+                if (key != null) {
+                    cache.put(key, decisions[i], decisionExpiresAt(tokens));
+                }
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+            if (compiledDecision != null) {
+                compiled.confirm(compiledDecision, decisions[i]);
+            }
+            metrics.decision(decisions[i]);
+        }
+        return decisions;
+        
+    }
+    
+    private long decisionExpiresAt(TokenBundle tokens) {
+        //Decisions are not served once a token of the principal has expired
+        return Math.min(tokens.getExpiresAt(), System.currentTimeMillis() + decisionCacheTtl);
+    }
+    
+    private DecisionKey decisionKey(CanonicalHasher hasher, String principal, String action, JSONObject resource,
+            boolean includesId) {
+        
+        JSONObject mapping = resource.getJSONObject(ENTITY_MAPPING_KEY);
+        String entityType = mapping.getString("entity_type");
+        String digest;
+        if (resource instanceof EncodedResource) {
+            //The map view of an encoded resource holds the entity mapping only: without the digest of its
+            //attributes, the resource cannot be told apart from others
+            digest = ((EncodedResource) resource).getAttributesDigest();
+            if (digest == null) return null;
+        } else {
+            digest = hasher.digest(resource.toMap(), Set.of(ENTITY_MAPPING_KEY));
+        }
+        if (includesId) {
+            digest += "." + mapping.get("id");
+        }
+        return new DecisionKey(principal, action, entityType, digest);
+        
+    }
+    
+    /**
+     * Compiled policies as applied to a single batch. Compiled decisions are not used until Cedarling permits a
+     * resource the compiled policies permit as well: this ensures Cedarling accepts the tokens (which are not
+     * validated in Java). A deny does not count, as Cedarling denies every resource when tokens are rejected. A
+     * disagreement disables compiled decisions for the rest of the batch
+     */
+    private class CompiledBatch {
+
+        private final CompiledPolicies policies;
+        private final TokenBundle tokens;
+        private final String action;
+        private final JSONObject context;
+        private final Map<String, Optional<CompiledPolicies.Evaluator>> evaluators = new HashMap<>();
+        private boolean confirmed;
+        private boolean disabled;
+
+        CompiledBatch(CompiledPolicies policies, TokenBundle tokens, String action, JSONObject context) {
+            this.policies = policies;
+            this.tokens = tokens;
+            this.action = action;
+            this.context = context;
+        }
+
+        Boolean decide(JSONObject resource) {
+
+            if (disabled) return null;
+            try {
+                JSONObject mapping = resource.getJSONObject(ENTITY_MAPPING_KEY);
+                String entityType = mapping.getString("entity_type");
+                Optional<CompiledPolicies.Evaluator> evaluator = evaluators.computeIfAbsent(entityType,
+                        t -> Optional.ofNullable(policies.forRequest(action, t, tokens.getClaims(), context)));
+                if (evaluator.isEmpty()) return null;
+
+                //Encoded resources only hold their attributes in serialized form
+                JSONObject document = new JSONObject(resource.toString());
+                document.remove(ENTITY_MAPPING_KEY);
+                return evaluator.get().decide(mapping.get("id").toString(), document);
+            } catch (Exception e) {
+                logger.debug("Compiled policies could not decide a resource: {}", e.getMessage());
+                return null;
+            }
+
+        }
+
+        boolean isConfirmed() {
+            return confirmed && !disabled;
+        }
+
+        void confirm(boolean compiledDecision, Boolean decision) {
+
+            if (decision != null && decision == compiledDecision) {
+                //Only a permit proves the tokens were accepted
+                confirmed |= compiledDecision;
+            } else if (!disabled) {
+                disabled = true;
+                logger.warn("Compiled policies disagree with Cedarling for action {}. Resources of this batch will "
+                        + "be evaluated by Cedarling", action);
+            }
+
         }
-        return authorized;
 
     }
     
@@ -0,0 +1,72 @@
+package io.jans.cedarling.opensearch;
+
+import java.io.*;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * A resource whose JSON representation (including the entity mapping envelope) has already been serialized.
+ * The Cedarling binding receives resources as JSONObject instances which are turned into strings before crossing
+ * into the native side: this class short-circuits such serialization. Only the entity mapping is held as regular
+ * JSONObject content, the document attributes are kept in their serialized form only.
+ * <p>
+ * This relies on the binding serializing resources through toString (or write) and reading nothing else from
+ * them; CompiledPoliciesTest covers this contract. Plugin code must likewise treat instances as opaque: map
+ * views (keySet, toMap, get, etc.) only expose the entity mapping, so use toString to get the attributes and
+ * getAttributesDigest to tell resources apart
+ */
+public class EncodedResource extends JSONObject {
+
+    private String json;
+    private String entityType;
+    private String id;
+    private String attributesDigest;
+
+    public EncodedResource(String json, String entityType, String id, String attributesDigest) {
+        super(Map.of(CedarlingService.ENTITY_MAPPING_KEY, Map.of("entity_type", entityType, "id", id)));
+        this.json = json;
+        this.entityType = entityType;
+        this.id = id;
+        this.attributesDigest = attributesDigest;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Digest of the serialized document attributes (the entity mapping is not part of the computation)
+     * @return A string, or null if the digest was not computed
+     */
+    public String getAttributesDigest() {
+        return attributesDigest;
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    @Override
+    public String toString(int indentFactor) {
+        return json;
+    }
+
+    @Override
+    public Writer write(Writer writer, int indentFactor, int indent) {
+
+        try {
+            writer.write(json);
+            return writer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+    }
+
+}
@@ -0,0 +1,571 @@
+package io.jans.cedarling.opensearch;
+
+import io.jans.cedarling.opensearch.policy.PolicyAnalyzer;
+import io.jans.cedarling.opensearch.stats.CedarlingMetrics;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+import org.opensearch.common.document.DocumentField;
+import org.opensearch.core.common.breaker.CircuitBreaker;
+import org.opensearch.search.SearchHit;
+import org.opensearch.search.lookup.SourceLookup;
+
+/**
+ * Computes Cedarling decisions for the hits of a search response. Hits are split in chunks which are
+ * processed by the calling thread and (optionally) by workers of the plugin's authorization thread pool.
+ * Decisions are stored in an array which follows the original order of hits
+ */
+public class HitsAuthorizer {
+
+    private static Logger logger = LogManager.getLogger(HitsAuthorizer.class);
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = threadMXBean();
+    //Estimated size of a parsed source relative to its JSON form, for circuit breaker accounting
+    private static final int PARSED_SOURCE_FACTOR = 3;
+
+    private PluginSettings pluginSettings;
+    private CedarlingEngine engine;
+    private TokenBundle tokens;
+    private String action;
+    private JSONObject context;
+    private RequestStats stats;
+    private RequestStats[] hitStats;
+    private long deadline = Long.MAX_VALUE;
+    private boolean failOpen;
+    private AuthzSession session;
+    private boolean shardDecisions;
+
+    /**
+     * Builds an authorizer
+     * @param snapshot Settings and engine to employ. The caller must keep it acquired while the authorizer is used
+     * @param tokens Tokens bundle
+     * @param action Cedar action
+     * @param context Context of the request
+     * @param stats Request statistics to update (see setHitStats)
+     */
+    public HitsAuthorizer(SettingsSnapshot snapshot, TokenBundle tokens, String action, JSONObject context,
+            RequestStats stats) {
+        this.pluginSettings = snapshot.getSettings();
+        this.engine = snapshot.getEngine();
+        this.tokens = tokens;
+        this.action = action;
+        this.context = context;
+        this.stats = stats;
+    }
+
+    /**
+     * Sets a time limit for computing decisions. Once it is reached, hits still pending are not evaluated: they
+     * get a fixed decision instead. The limit is checked before every chunk of hits (see authzChunkSize), so a
+     * chunk already started is completed
+     * @param deadline Value of System.nanoTime() after which no more hits are evaluated
+     * @param failOpen Decision given to the hits not evaluated
+     */
+    public void setDeadline(long deadline, boolean failOpen) {
+        this.deadline = deadline;
+        this.failOpen = failOpen;
+    }
+
+    /**
+     * Makes the statistics of every hit be recorded in the statistics of the response it comes from, when the hits
+     * of several responses are authorized together (see MultiSearchBatch). Only the profile of the statistics
+     * passed to the constructor is updated then
+     * @param hitStats Array (of the same length of the hits to authorize) with the statistics of every hit
+     */
+    public void setHitStats(RequestStats[] hitStats) {
+        this.hitStats = hitStats;
+    }
+
+    /**
+     * Makes decisions be shared with other pages of a scroll or point in time. Classes of equivalent hits
+     * decided in previous pages are not evaluated again
+     * @param session Authorization session of the scroll or point in time
+     */
+    public void setSession(AuthzSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Makes the decisions attached to hits in the data nodes be honored (see CedarlingFetchSubPhase). Callers
+     * must ensure those decisions could not be supplied by the client (see CedarlingFetchSubPhase.decisionsTrusted).
+     * Otherwise every hit is evaluated here
+     * @param shardDecisions Whether to honor the decisions made in the data nodes
+     */
+    public void setShardDecisions(boolean shardDecisions) {
+        this.shardDecisions = shardDecisions;
+    }
+
+    /**
+     * Computes the decisions for the hits passed. Hits whose policy-relevant attributes are identical form an
+     * equivalence class: only one hit per class is evaluated, and the rest take its decision
+     * @param hits array of hits
+     * @param decisions array (of the same length of hits) where decisions will be stored
+     * @return The sum of the time (in nanoseconds) spent on every decision
+     * @throws Exception if waiting for the worker threads failed
+     */
+    public long authorize(SearchHit[] hits, boolean[] decisions) throws Exception {
+
+        for (SearchHit hit : hits) {
+            //Hits of scrolls are marked in the data nodes until authorized (see CedarlingFetchSubPhase)
+            hit.removeDocumentField(CedarlingFetchSubPhase.PENDING_FIELD);
+        }
+        Map<String, Boolean> fastDecisions = fastDecisions(hits);
+        String[] keys = null;
+        int[] classOf = null;
+        int[] positions;
+
+        if (groupingApplies()) {
+            keys = new String[hits.length];
+            runInChunks(hits.length, (from, to) ->
+                    System.nanoTime() < deadline ? classKeys(hits, from, to, keys, fastDecisions) : 0);
+
+            //Every hit points to the first hit of its class, or to nothing if the class was decided in a previous page
+            classOf = new int[hits.length];
+            Map<String, Integer> classes = new HashMap<>();
+            List<Integer> representatives = new ArrayList<>();
+            for (int i = 0; i < hits.length; i++) {
+                Boolean memoized = keys[i] == null || session == null ? null : session.memoized(keys[i]);
+                if (memoized != null) {
+                    decisions[i] = memoized;
+                    classOf[i] = -1;
+                    statsOf(i).sessionMemoHits(1);
+                    statsOf(i).addEquivalenceClasses(0, 1);
+                    continue;
+                }
+                Integer first = keys[i] == null ? null : classes.putIfAbsent(keys[i], i);
+                classOf[i] = first == null ? i : first;
+                if (first == null) {
+                    representatives.add(i);
+                }
+                statsOf(i).addEquivalenceClasses(first == null ? 1 : 0, first == null ? 0 : 1);
+            }
+            positions = representatives.stream().mapToInt(Integer::intValue).toArray();
+        } else {
+            positions = new int[hits.length];
+            Arrays.setAll(positions, i -> i);
+        }
+
+        boolean[] unevaluated = new boolean[hits.length];
+        long decisionsTook = runInChunks(positions.length,
+                (from, to) -> authorizeChunk(hits, positions, from, to, decisions, unevaluated, fastDecisions));
+
+        if (classOf != null) {
+            CedarlingMetrics metrics = CedarlingMetrics.getInstance();
+            for (int i = 0; i < hits.length; i++) {
+                if (classOf[i] < 0) {
+                    metrics.decision(decisions[i]);
+                } else if (classOf[i] != i) {
+                    decisions[i] = decisions[classOf[i]];
+                    unevaluated[i] = unevaluated[classOf[i]];
+                    if (!unevaluated[i]) {
+                        metrics.decision(decisions[i]);
+                    }
+                }
+            }
+        }
+
+        if (session != null && keys != null) {
+            for (int i : positions) {
+                if (keys[i] != null && !unevaluated[i]) {
+                    session.memoize(keys[i], decisions[i]);
+                }
+            }
+        }
+
+        for (int i = 0; i < hits.length; i++) {
+            if (unevaluated[i]) {
+                statsOf(i).timedOut(1);
+            } else {
+                statsOf(i).addEvaluatedHits(1);
+            }
+        }
+        return decisionsTook;
+
+    }
+
+    /**
+     * Splits a range of positions in chunks which are processed by the calling thread and by workers of the
+     * authorization pool
+     * @param count Number of positions
+     * @param task Processes the positions of a chunk
+     * @return The sum of the values returned by the task for every chunk
+     * @throws Exception if the task or waiting for the worker threads failed. Workers are awaited in any case
+     */
+    private long runInChunks(int count, ChunkTask task) throws Exception {
+
+        int chunkSize = pluginSettings.getAuthzChunkSize();
+        int chunks = (count + chunkSize - 1) / chunkSize;
+        int workers = Math.min(chunks, parallelism()) - 1;
+        //the calling thread is a worker as well
+
+        AtomicInteger nextChunk = new AtomicInteger();
+        Callable<Long> callable = () -> {
+            long total = 0;
+            int chunk;
+            while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                int from = chunk * chunkSize;
+                total += task.run(from, Math.min(from + chunkSize, count));
+            }
+            return total;
+        };
+
+        List<Future<Long>> futures = new ArrayList<>();
+        if (workers > 0) {
+            ExecutorService executor = CedarlingPlugin.getThreadPool().executor(CedarlingPlugin.AUTHZ_THREAD_POOL);
+            try {
+                for (int i = 0; i < workers; i++) {
+                    futures.add(executor.submit(callable));
+                }
+            } catch (RejectedExecutionException e) {
+                //Pool is saturated: the chunks left will be processed by the threads already involved
+                logger.debug("Authorization pool rejected a task. {} workers in use", futures.size());
+            }
+        }
+
+        boolean completed = false;
+        try {
+            long total = callable.call();
+            for (Future<Long> future : futures) {
+                try {
+                    total += future.get();
+                } catch (ExecutionException e) {
+                    throw (Exception) Optional.ofNullable(e.getCause()).orElse(e);
+                }
+            }
+            completed = true;
+            return total;
+        } finally {
+            if (!completed) {
+                //Workers must be done with the hits and the engine before the caller releases them
+                nextChunk.set(chunks);
+                awaitAll(futures);
+            }
+        }
+
+    }
+
+    private static void awaitAll(List<Future<Long>> futures) {
+
+        boolean interrupted = false;
+        for (Future<Long> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    private boolean groupingApplies() {
+        //Hits with the same attributes may only share a decision if policies are known not to refer to identifiers
+        PolicyAnalyzer analyzer = engine.getPolicyAnalyzer();
+        return pluginSettings.isGroupEquivalentHits() && analyzer != null && !analyzer.isResourceIdUsed();
+    }
+
+    /**
+     * Computes the equivalence class keys of hits: the digest of the attributes policies refer to (or of the
+     * whole source if these are unknown) plus the entity type. Hits decided elsewhere get no key
+     */
+    private long classKeys(SearchHit[] hits, int from, int to, String[] keys, Map<String, Boolean> fastDecisions) {
+
+        ResourceEncoder encoder = ResourceEncoder.get();
+        SourceProjector policyProjector = engine.getPolicyProjector();
+
+        for (int i = from; i < to; i++) {
+            SearchHit hit = hits[i];
+            String index = hit.getIndex();
+            if (!hit.hasSource() || shardDecision(hit) != null || fastDecisions.containsKey(index)) continue;
+
+            String entityType = pluginSettings.getSchemaPrefix() + "::" + index;
+            SourceProjector projector = policyProjector == null ? pluginSettings.projectorFor(index) : policyProjector;
+            try {
+                EncodedResource resource = encoder.encode(hit.getSourceRef(), projector, entityType, "", true);
+                if (resource != null) {
+                    keys[i] = entityType + "." + resource.getAttributesDigest();
+                }
+            } catch (Exception e) {
+                //The hit is evaluated on its own
+                logger.debug("Class key of hit {} could not be computed: {}", hit.getId(), e.getMessage());
+            }
+        }
+        return 0;
+
+    }
+
+    /**
+     * Finds the indices whose hits all get the same decision, according to an analysis of the policies. Every
+     * outcome of the analysis is confirmed by evaluating one of the hits of the index regularly: if they disagree
+     * (e.g. policies use something the analysis does not model), the hits of that index are evaluated one by one
+     * @param hits array of hits
+     * @return A map from index names to decisions. It is empty if the fast path is disabled
+     */
+    private Map<String, Boolean> fastDecisions(SearchHit[] hits) {
+
+        PolicyAnalyzer analyzer = engine.getPolicyAnalyzer();
+        if (!pluginSettings.isPolicyFastPath() || analyzer == null) return Collections.emptyMap();
+
+        Map<String, Boolean> fastDecisions = new HashMap<>();
+        Set<String> analyzed = new HashSet<>();
+        boolean computeDigest = CedarlingService.getInstance().isDecisionCacheEnabled();
+
+        for (int i = 0; i < hits.length; i++) {
+            SearchHit hit = hits[i];
+            String index = hit.getIndex();
+            if (shardDecision(hit) != null || !analyzed.add(index)) continue;
+
+            String entityType = pluginSettings.getSchemaPrefix() + "::" + index;
+            PolicyAnalyzer.Outcome outcome = analyzer.decide(action, entityType, tokens.getClaims(), context);
+            if (outcome == PolicyAnalyzer.Outcome.UNDECIDED) continue;
+
+            boolean expected = outcome == PolicyAnalyzer.Outcome.ALLOW_ALL;
+            try {
+                Boolean[] results = CedarlingService.getInstance().authorizeBatch(engine, tokens, action,
+                        List.of(toResource(hit, ResourceEncoder.get(), computeDigest)), context, statsOf(i));
+
+                if (results[0] != null && results[0] == expected) {
+                    fastDecisions.put(index, expected);
+                } else {
+                    logger.warn("Policy analysis for {} disagrees with Cedarling. Hits will be evaluated one by one",
+                            entityType);
+                }
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return fastDecisions;
+
+    }
+
+    private long authorizeChunk(SearchHit[] hits, int[] positions, int from, int to, boolean[] decisions,
+            boolean[] unevaluated, Map<String, Boolean> fastDecisions) {
+
+        //The sources of a chunk are parsed at once: their memory is accounted for before, and released after
+        long reserved = System.nanoTime() < deadline ? reserve(hits, positions, from, to, fastDecisions) : 0;
+        try {
+            return evaluateChunk(hits, positions, from, to, decisions, unevaluated, fastDecisions);
+        } finally {
+            if (reserved > 0) {
+                CedarlingPlugin.getBreaker().addWithoutBreaking(-reserved);
+            }
+        }
+
+    }
+
+    /**
+     * Registers the estimated memory needed to parse the sources of a chunk in the plugin's circuit breaker
+     * @return The number of bytes registered
+     * @throws org.opensearch.core.common.breaker.CircuitBreakingException if the breaker limit would be exceeded
+     */
+    private long reserve(SearchHit[] hits, int[] positions, int from, int to, Map<String, Boolean> fastDecisions) {
+
+        CircuitBreaker breaker = CedarlingPlugin.getBreaker();
+        if (breaker == null) return 0;
+
+        long bytes = 0;
+        for (int p = from; p < to; p++) {
+            SearchHit hit = hits[positions[p]];
+            if (hit.hasSource() && shardDecision(hit) == null && !fastDecisions.containsKey(hit.getIndex())) {
+                bytes += hit.getSourceRef().length();
+            }
+        }
+        bytes *= PARSED_SOURCE_FACTOR;
+        if (bytes > 0) {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "cedarling_authz");
+        }
+        return bytes;
+
+    }
+
+    private long evaluateChunk(SearchHit[] hits, int[] positions, int from, int to, boolean[] decisions,
+            boolean[] unevaluated, Map<String, Boolean> fastDecisions) {
+
+        boolean expired = System.nanoTime() >= deadline;
+
+        ResourceEncoder encoder = ResourceEncoder.get();
+        boolean computeDigest = CedarlingService.getInstance().isDecisionCacheEnabled();
+        ProfileBreakdown profile = stats.getProfile();
+        //Allocations are only measured when profiling
+        long allocatedBefore = profile == null ? -1 : allocatedBytes();
+        
+        //When profiling, resources are grouped by index so that times can be reported per index. They are grouped
+        //by the statistics they are recorded in as well
+        Map<List<Object>, Batch> batches = new LinkedHashMap<>();
+
+        for (int p = from; p < to; p++) {
+            int i = positions[p];
+            Boolean shardDecision = shardDecision(hits[i]);
+            if (shardDecision != null) {
+                //The decision was already made in the data node
+                hits[i].removeDocumentField(CedarlingFetchSubPhase.DECISION_FIELD);
+                decisions[i] = shardDecision;
+                statsOf(i).shardDecision();
+                continue;
+            }
+
+            Boolean fastDecision = fastDecisions.get(hits[i].getIndex());
+            if (fastDecision != null) {
+                //The decision does not depend on the document
+                decisions[i] = fastDecision;
+                statsOf(i).fastPathDecision();
+                CedarlingMetrics.getInstance().decision(fastDecision);
+                continue;
+            }
+
+            if (expired) {
+                decisions[i] = failOpen;
+                unevaluated[i] = true;
+                continue;
+            }
+            
+            try {
+                String index = profile == null ? "" : hits[i].getIndex();
+                long temp = profile == null ? 0 : System.nanoTime();
+                JSONObject resource = toResource(hits[i], encoder, computeDigest);
+                
+                if (profile != null) {
+                    profile.sourceParsing(index, System.nanoTime() - temp);
+                }
+                RequestStats batchStats = statsOf(i);
+                batches.computeIfAbsent(List.of(index, batchStats), k -> new Batch(index, batchStats, to - from))
+                        .add(resource, i);
+            } catch (Exception e) {
+                decisions[i] = true;    //include the result when Cedarling cannot handle it
+                logger.error(e.getMessage(), e);
+            }
+        }
+
+        long decisionsTook = 0;
+        for (Iterator<Batch> it = batches.values().iterator(); it.hasNext(); ) {
+            Batch batch = it.next();
+            
+            long temp = System.nanoTime();
+            Boolean[] results = CedarlingService.getInstance().authorizeBatch(engine, tokens, action, batch.resources,
+                    context, batch.stats);
+            temp = System.nanoTime() - temp;
+            decisionsTook += temp;
+            batch.stats.addDecisionsTook(temp);
+
+            if (profile != null) {
+                profile.evaluation(batch.index, results.length, temp);
+            }
+            for (int i = 0; i < results.length; i++) {
+                //a null decision means Cedarling could not handle the resource: the result is included then
+                decisions[batch.positions.get(i)] = results[i] == null || results[i];
+            }
+            //Parsed sources are no longer needed
+            it.remove();
+        }
+        
+        if (allocatedBefore >= 0) {
+            profile.allocation(allocatedBytes() - allocatedBefore);
+        }
+        return decisionsTook;
+
+    }
+
+    private JSONObject toResource(SearchHit hit, ResourceEncoder encoder, boolean computeDigest) throws Exception {
+
+        String entityType = pluginSettings.getSchemaPrefix() + "::" + hit.getIndex();
+        if (hit.hasSource()) {
+            //Only the fields relevant for policy evaluation are parsed if a projector applies
+            SourceProjector projector = projectorFor(hit.getIndex());
+            EncodedResource resource = encoder.encode(hit.getSourceRef(), projector, entityType, hit.getId(),
+                    computeDigest);
+            
+            if (resource != null) return resource;
+        }
+
+        //Non-JSON sources go the map way. The map is not kept in the hit (see SearchHit.getSourceAsMap)
+        JSONObject resource = new JSONObject(hit.hasSource() ? SourceLookup.sourceAsMap(hit.getSourceRef())
+                : Collections.emptyMap());
+        resource.put(CedarlingService.ENTITY_MAPPING_KEY, Map.of("entity_type", entityType, "id", hit.getId()));
+        return resource;
+
+    }
+
+    /**
+     * Gets the projector for the sources of an index: the resourceFields of the settings if supplied for the index,
+     * otherwise the attributes policies refer to (if known)
+     */
+    private SourceProjector projectorFor(String index) {
+        return Optional.ofNullable(pluginSettings.projectorFor(index)).orElse(engine.getPolicyProjector());
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+
+        //Used to measure the memory allocated while hits are authorized
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean tmb = (com.sun.management.ThreadMXBean) bean;
+            if (tmb.isThreadAllocatedMemorySupported() && tmb.isThreadAllocatedMemoryEnabled()) {
+                return tmb;
+            }
+        }
+        return null;
+
+    }
+
+    private Boolean shardDecision(SearchHit hit) {
+
+        if (!shardDecisions) return null;
+        DocumentField field = hit.field(CedarlingFetchSubPhase.DECISION_FIELD);
+        Object value = field == null ? null : field.getValue();
+        return value instanceof Boolean ? (Boolean) value : null;
+
+    }
+
+    private long allocatedBytes() {
+        return THREAD_MX_BEAN == null ? -1 : THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    private int parallelism() {
+
+        int poolSize = CedarlingPlugin.getThreadPool().info(CedarlingPlugin.AUTHZ_THREAD_POOL).getMax();
+        int parallelism = pluginSettings.getAuthzParallelism();
+        return parallelism > 0 ? Math.min(parallelism, poolSize + 1) : poolSize + 1;
+
+    }
+
+    @FunctionalInterface
+    private interface ChunkTask {
+        long run(int from, int to) throws Exception;
+    }
+
+    private RequestStats statsOf(int position) {
+        return hitStats == null ? stats : hitStats[position];
+    }
+
+    private static class Batch {
+
+        final String index;
+        final RequestStats stats;
+        final List<JSONObject> resources;
+        final List<Integer> positions;
+
+        Batch(String index, RequestStats stats, int capacity) {
+            this.index = index;
+            this.stats = stats;
+            resources = new ArrayList<>(capacity);
+            positions = new ArrayList<>(capacity);
+        }
+
+        void add(JSONObject resource, int position) {
+            resources.add(resource);
+            positions.add(position);
+        }
+
+    }
+
+}
@@ -0,0 +1,296 @@
+package io.jans.cedarling.opensearch;
+
+import io.jans.cedarling.opensearch.cache.CanonicalHasher;
+import io.jans.cedarling.opensearch.stats.CedarlingMetrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+import org.opensearch.action.search.*;
+import org.opensearch.search.SearchExtBuilder;
+import org.opensearch.search.SearchHit;
+
+/**
+ * Authorization of the searches of a multi-search (_msearch) as a whole. The action filter tags the searches
+ * bearing the tbac extension with their position in the bundle; when the response processor gets a tagged
+ * response, it defers to the batch instead of authorizing it. Once all searches completed, tokens are handled
+ * once per distinct set of tokens, and the hits of all responses sharing tokens, context, and time budget go
+ * through a single authorization pass (see HitsAuthorizer). Every response gets its own ext section then, with
+ * the statistics of its own hits.
+ * <p>
+ * Searches that open a scroll or use a point in time are not tagged: they are processed on their own so that
+ * they get an authorization session (see AuthzSessions). Searches that request profiling are not tagged either,
+ * as the timing of a pass cannot be told apart per search
+ */
+public class MultiSearchBatch {
+
+    private static final Map<String, MultiSearchBatch> batches = new ConcurrentHashMap<>();
+
+    private static Logger logger = LogManager.getLogger(MultiSearchBatch.class);
+
+    private final String id;
+    private final AtomicReferenceArray<Deferred> deferred;
+
+    private MultiSearchBatch(String id, int size) {
+        this.id = id;
+        this.deferred = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * Tags the searches of a multi-search that carry the tbac extension and registers a batch for them
+     * @param request Multi-search request
+     * @return The batch, or null if no search was tagged or batching is disabled
+     */
+    public static MultiSearchBatch start(MultiSearchRequest request) {
+
+        PluginSettings pluginSettings = SettingsService.getInstance().getSettings();
+        if (pluginSettings == null || !pluginSettings.isEnabled() || !pluginSettings.isBatchMultiSearch()) {
+            return null;
+        }
+
+        String id = UUID.randomUUID().toString();
+        List<SearchRequest> requests = request.requests();
+        boolean tagged = false;
+
+        for (int i = 0; i < requests.size(); i++) {
+            SearchRequest searchRequest = requests.get(i);
+            if (searchRequest.source() == null || searchRequest.scroll() != null
+                    || searchRequest.pointInTimeBuilder() != null || searchRequest.source().profile()) continue;
+
+            CedarlingSearchExtBuilder cseb = CedarlingSearchExtBuilder.fromExtBuilderList(searchRequest.source().ext());
+            if (cseb == null) continue;
+
+            Map<String, Object> params = new HashMap<>(cseb.getParams());
+            params.put(CedarlingSearchExtBuilder.MSEARCH_PARAM, id + ":" + i);
+
+            List<SearchExtBuilder> exts = new ArrayList<>(searchRequest.source().ext());
+            exts.set(exts.indexOf(cseb), new CedarlingSearchExtBuilder(params));
+            searchRequest.source().ext(exts);
+            tagged = true;
+        }
+        if (!tagged) return null;
+
+        MultiSearchBatch batch = new MultiSearchBatch(id, requests.size());
+        batches.put(id, batch);
+        return batch;
+
+    }
+
+    /**
+     * Leaves the authorization of a search response to the batch the search belongs to, if any
+     * @param request Search request, as seen by the response processor
+     * @param processor Response processor
+     * @return Whether the response must be returned untouched because the batch will authorize it
+     */
+    static boolean defer(SearchRequest request, CedarlingSearchResponseProcessor processor) {
+
+        if (batches.isEmpty() || request.source() == null) return false;
+        CedarlingSearchExtBuilder cseb = CedarlingSearchExtBuilder.fromExtBuilderList(request.source().ext());
+        Object tag = cseb == null ? null : cseb.getParams().get(CedarlingSearchExtBuilder.MSEARCH_PARAM);
+        if (!(tag instanceof String)) return false;
+
+        //Tags not issued by a batch in progress (e.g. supplied by clients) are ignored
+        String value = (String) tag;
+        int sep = value.lastIndexOf(':');
+        MultiSearchBatch batch = sep < 0 ? null : batches.get(value.substring(0, sep));
+        if (batch == null) return false;
+
+        try {
+            int position = Integer.parseInt(value.substring(sep + 1));
+            if (position < 0 || position >= batch.deferred.length()) return false;
+
+            batch.deferred.set(position, new Deferred(request, processor));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+    }
+
+    /**
+     * Unregisters the batch. Responses of searches completing afterwards are not deferred
+     */
+    public void finish() {
+        batches.remove(id);
+    }
+
+    public boolean isEmpty() {
+
+        for (int i = 0; i < deferred.length(); i++) {
+            if (deferred.get(i) != null) return false;
+        }
+        return true;
+
+    }
+
+    /**
+     * Authorizes the hits of the responses deferred to the batch
+     * @param response Multi-search response
+     * @return A response where the deferred items are replaced by their authorized version. If authorizing the
+     * hits of some items failed, these become failures
+     */
+    public MultiSearchResponse authorize(MultiSearchResponse response) {
+
+        long startedAt = System.nanoTime();
+        MultiSearchResponse.Item[] items = response.getResponses().clone();
+
+        try (SettingsSnapshot snapshot = SettingsService.getInstance().acquire()) {
+            if (snapshot == null) {
+                logger.debug("Plugin settings not loaded yet");
+                return response;
+            }
+            if (!snapshot.getSettings().isEnabled() || !snapshot.getEngine().isStarted()) {
+                logger.debug("Cedarling processing is disabled or did not start properly");
+                return response;
+            }
+
+            //Responses are grouped by principal and time budget
+            Map<String, List<Integer>> groups = new LinkedHashMap<>();
+            CanonicalHasher hasher = new CanonicalHasher();
+            for (int i = 0; i < items.length; i++) {
+                Deferred d = deferred.get(i);
+                if (d == null || items[i].isFailure()) continue;
+
+                try {
+                    Map<String, Object> tbac = d.getParams();
+                    String key = TokenBundle.fingerprint(d.getTokens()) + "."
+                            + hasher.digest(d.getContext().toMap(), Collections.emptySet()) + "."
+                            + CedarlingSearchResponseProcessor.timeout(snapshot.getSettings(), tbac.get("timeout"));
+                    groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+                } catch (Exception e) {
+                    fail(items, List.of(i), e);
+                }
+            }
+
+            Map<String, TokenBundle> tokenBundles = new HashMap<>();
+            for (List<Integer> group : groups.values()) {
+                try {
+                    authorize(group, items, snapshot, tokenBundles, startedAt);
+                } catch (Exception e) {
+                    fail(items, group, e);
+                }
+            }
+        }
+
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        return new MultiSearchResponse(items, response.getTook().millis() + took);
+
+    }
+
+    private void authorize(List<Integer> group, MultiSearchResponse.Item[] items, SettingsSnapshot snapshot,
+            Map<String, TokenBundle> tokenBundles, long startedAt) throws Exception {
+
+        PluginSettings pluginSettings = snapshot.getSettings();
+        Deferred first = deferred.get(group.get(0));
+        Map<String, String> tokens = first.getTokens();
+        //Token sets are handled once, even if they come with different contexts
+        TokenBundle tokenBundle = tokenBundles.get(TokenBundle.fingerprint(tokens));
+        if (tokenBundle == null) {
+            tokenBundle = CedarlingService.getInstance().getTokenBundle(tokens);
+            tokenBundles.put(tokenBundle.getFingerprint(), tokenBundle);
+        }
+
+        //Hits of all responses of the group are authorized together
+        int total = 0;
+        for (int i : group) {
+            total += items[i].getResponse().getHits().getHits().length;
+        }
+        SearchHit[] hits = new SearchHit[total];
+        total = 0;
+        for (int i : group) {
+            SearchHit[] itemHits = items[i].getResponse().getHits().getHits();
+            System.arraycopy(itemHits, 0, hits, total, itemHits.length);
+            total += itemHits.length;
+        }
+        boolean[] decisions = new boolean[hits.length];
+        //Statistics are recorded per response
+        Map<Integer, RequestStats> itemStats = new HashMap<>();
+        RequestStats[] hitStats = new RequestStats[hits.length];
+        total = 0;
+        for (int i : group) {
+            RequestStats stats = new RequestStats();
+            itemStats.put(i, stats);
+            int count = items[i].getResponse().getHits().getHits().length;
+            Arrays.fill(hitStats, total, total + count, stats);
+            total += count;
+        }
+
+        if (hits.length > 0) {
+            HitsAuthorizer authorizer = new HitsAuthorizer(snapshot, tokenBundle,
+                    pluginSettings.getSearchActionName(), first.getContext(), new RequestStats());
+            authorizer.setHitStats(hitStats);
+            long timeout = CedarlingSearchResponseProcessor.timeout(pluginSettings, first.getParams().get("timeout"));
+            if (timeout > 0) {
+                authorizer.setDeadline(startedAt + TimeUnit.MILLISECONDS.toNanos(timeout),
+                        pluginSettings.isAuthzTimeoutFailOpen());
+            }
+            authorizer.setShardDecisions(group.stream().allMatch(i ->
+                    CedarlingFetchSubPhase.decisionsTrusted(pluginSettings, deferred.get(i).request.source())));
+            authorizer.authorize(hits, decisions);
+        }
+
+        Map<String, Object> batchParams = Map.of("msearch", Map.of(
+            "batched_searches", group.size(),
+            "batched_hits", hits.length
+        ));
+        int offset = 0;
+        for (int i : group) {
+            SearchResponse itemResponse = items[i].getResponse();
+            SearchHit[] itemHits = itemResponse.getHits().getHits();
+            SearchHit[] authorized = null;
+
+            if (itemHits.length > 0) {
+                int allowed = CedarlingSearchResponseProcessor.countAllowed(decisions, offset, offset + itemHits.length);
+                authorized = CedarlingSearchResponseProcessor.filter(itemHits, decisions, offset, allowed,
+                        Collections.emptyList());
+            }
+            offset += itemHits.length;
+            items[i] = new MultiSearchResponse.Item(deferred.get(i).processor.rebuild(itemResponse, authorized,
+                    itemStats.get(i), pluginSettings, false, startedAt, batchParams), null);
+        }
+
+    }
+
+    private void fail(MultiSearchResponse.Item[] items, List<Integer> positions, Exception e) {
+
+        logger.error("Error authorizing the hits of a multi-search", e);
+        for (int i : positions) {
+            CedarlingMetrics.getInstance().requestFailed();
+            items[i] = new MultiSearchResponse.Item(null, e);
+        }
+
+    }
+
+    private static class Deferred {
+
+        private final SearchRequest request;
+        private final CedarlingSearchResponseProcessor processor;
+
+        Deferred(SearchRequest request, CedarlingSearchResponseProcessor processor) {
+            this.request = request;
+            this.processor = processor;
+        }
+
+        Map<String, Object> getParams() {
+            return CedarlingSearchExtBuilder.fromExtBuilderList(request.source().ext()).getParams();
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> getTokens() {
+            return Optional.ofNullable(getParams().get("tokens")).map(Map.class::cast)
+                    .orElse(Collections.emptyMap());
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject getContext() {
+            return new JSONObject(Optional.ofNullable(getParams().get("context")).map(Map.class::cast)
+                    .orElse(Collections.emptyMap()));
+        }
+
+    }
+
+}
@@ -0,0 +1,206 @@
+package io.jans.cedarling.opensearch;
+
+import io.jans.cedarling.opensearch.cache.LruCache;
+
+import java.util.*;
+
+import org.apache.logging.log4j.*;
+import org.opensearch.action.ActionRunnable;
+import org.opensearch.action.search.*;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.action.ActionListener;
+import org.opensearch.search.SearchHit;
+import org.opensearch.search.builder.SearchSourceBuilder;
+import org.opensearch.search.pipeline.SearchPipelineService;
+
+/**
+ * Completes pages of search results that came out short after authorization. Subsequent windows of documents
+ * are fetched (through the node client) and authorized until the page is full or a limit is reached. The size
+ * of windows is computed from the ratio of allowed documents learned from previous searches of the same
+ * principal on the same indices, so that one additional round usually suffices. Documents fetched but left out
+ * because the page got full are not skipped: the offset the next page should start at is reported
+ */
+public class PageRefiller {
+
+    private static final int MAX_RESULT_WINDOW = 10000;
+    private static final double MIN_ALLOW_RATIO = 0.01;
+    private static final double DEFAULT_ALLOW_RATIO = 0.5;
+    //weight of the most recent observation in the learned allow ratios
+    private static final double SMOOTHING = 0.3;
+    private static final long RATIO_TTL = 3600 * 1000L;
+
+    private static LruCache<String, Double> allowRatios = new LruCache<>(10000);
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    private int maxFetched;
+    private long maxMillis;
+
+    public PageRefiller(int maxFetched, long maxMillis) {
+        this.maxFetched = maxFetched;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Updates the allow ratio learned for a given key
+     * @param key Key, see ratioKey
+     * @param allowed Number of documents allowed
+     * @param evaluated Number of documents evaluated
+     */
+    public static void learn(String key, int allowed, int evaluated) {
+
+        if (evaluated == 0) return;
+
+        double ratio = 1.0d * allowed / evaluated;
+        Double previous = allowRatios.get(key);
+        allowRatios.put(key, previous == null ? ratio : SMOOTHING * ratio + (1 - SMOOTHING) * previous,
+                System.currentTimeMillis() + RATIO_TTL);
+
+    }
+
+    /**
+     * Builds the key under which allow ratios are learned
+     * @param request Search request
+     * @param tokens Tokens supplied in the request
+     * @return A string
+     */
+    public static String ratioKey(SearchRequest request, TokenBundle tokens) {
+        return String.join(",", request.indices()) + "/" + tokens.getFingerprint();
+    }
+
+    /**
+     * Fetches and authorizes more documents. Searches are issued asynchronously, and the hits of every round are
+     * authorized in the plugin's response thread pool, so no thread is blocked waiting for shards
+     * @param request Original search request
+     * @param lastHit Last hit of the original response
+     * @param offset Number of documents (authorized or not) the original search skipped plus those it returned
+     * @param missing Number of authorized documents needed to complete the page
+     * @param authorizer Authorizer to employ
+     * @param ratioKey Key of the allow ratio to employ (see ratioKey)
+     * @param stats Request statistics to update. The offset the next page should start at is recorded there
+     * (see RequestStats.getRefillNextFrom) unless the search uses search_after
+     * @param listener Gets the authorized documents found (at most missing), or the failure of a search or of the
+     * authorization
+     */
+    public void refill(SearchRequest request, SearchHit lastHit, int offset, int missing,
+            HitsAuthorizer authorizer, String ratioKey, RequestStats stats, ActionListener<List<SearchHit>> listener) {
+        new Rounds(request, lastHit, offset, missing, authorizer, ratioKey, stats, listener).next();
+    }
+
+    /**
+     * State of a refill in progress. Every round searches a window of documents and authorizes them, then starts
+     * the next round if the page is still short
+     */
+    private class Rounds {
+
+        private final SearchRequest request;
+        private final int missing;
+        private final HitsAuthorizer authorizer;
+        private final String ratioKey;
+        private final RequestStats stats;
+        private final ActionListener<List<SearchHit>> listener;
+        private final boolean searchAfter;
+        private final long deadline = System.currentTimeMillis() + maxMillis;
+        private final List<SearchHit> found = new ArrayList<>();
+
+        private SearchHit lastHit;
+        private int offset;
+        private int fetched;
+
+        Rounds(SearchRequest request, SearchHit lastHit, int offset, int missing, HitsAuthorizer authorizer,
+                String ratioKey, RequestStats stats, ActionListener<List<SearchHit>> listener) {
+            this.request = request;
+            this.lastHit = lastHit;
+            this.offset = offset;
+            this.missing = missing;
+            this.authorizer = authorizer;
+            this.ratioKey = ratioKey;
+            this.stats = stats;
+            this.listener = listener;
+            this.searchAfter = request.source().searchAfter() != null;
+        }
+
+        void next() {
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (found.size() >= missing || fetched >= maxFetched || stats.isTimedOut() || remaining <= 0) {
+                done();
+                return;
+            }
+
+            double ratio = Math.max(MIN_ALLOW_RATIO, Optional.ofNullable(allowRatios.get(ratioKey)).orElse(DEFAULT_ALLOW_RATIO));
+            int window = (int) Math.min(maxFetched - fetched, Math.ceil((missing - found.size()) / ratio));
+
+            //Shards return what they collected so far once the time left is over
+            SearchSourceBuilder source = request.source().shallowCopy().size(window)
+                    .timeout(TimeValue.timeValueMillis(remaining));
+            if (searchAfter) {
+                source.searchAfter(lastHit.getSortValues());
+            } else if (offset + window <= MAX_RESULT_WINDOW) {
+                source.from(offset);
+            } else {
+                done();
+                return;
+            }
+
+            //The pipeline must not be run again on the internal searches
+            SearchRequest sr = new SearchRequest(request).source(source).pipeline(SearchPipelineService.NOOP_PIPELINE_ID);
+            CedarlingPlugin.getClient().search(sr, ActionListener.wrap(
+                    response -> CedarlingPlugin.getThreadPool().executor(CedarlingPlugin.RESPONSE_THREAD_POOL)
+                            .execute(ActionRunnable.wrap(listener, l -> round(response.getHits().getHits(), window))),
+                    listener::onFailure));
+
+        }
+
+        private void round(SearchHit[] hits, int window) throws Exception {
+
+            stats.refillRound(hits.length);
+            if (hits.length == 0) {
+                done();
+                return;
+            }
+
+            boolean[] decisions = new boolean[hits.length];
+            authorizer.authorize(hits, decisions);
+
+            int allowed = 0;
+            int consumed = hits.length;
+            for (int i = 0; i < hits.length; i++) {
+                if (decisions[i]) {
+                    allowed++;
+                    if (found.size() < missing) {
+                        found.add(hits[i]);
+                        if (found.size() == missing) {
+                            //Documents past the last one returned are left for the next page
+                            consumed = i + 1;
+                        }
+                    }
+                }
+            }
+            learn(ratioKey, allowed, hits.length);
+
+            fetched += hits.length;
+            offset += consumed;
+            lastHit = hits[hits.length - 1];
+            if (hits.length < window) {
+                done();     //no more documents
+            } else {
+                next();
+            }
+
+        }
+
+        private void done() {
+
+            if (!searchAfter) {
+                stats.refillNextFrom(offset);
+            }
+            logger.debug("{} documents fetched to complete page. {} of {} missing documents found", fetched,
+                    found.size(), missing);
+            listener.onResponse(found);
+
+        }
+
+    }
+
+}
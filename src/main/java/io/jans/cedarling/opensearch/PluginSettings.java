@@ -1,12 +1,14 @@
 package io.jans.cedarling.opensearch;
 
-import java.util.Map;
+import java.util.*;
 
 import org.apache.logging.log4j.*;
 import org.json.*;
 
 public class PluginSettings {
     
+    private static final String ANY_INDEX = "*";
+    
     private static Logger logger = LogManager.getLogger(PluginSettings.class);
 
     private long lastUpdated;
@@ -16,6 +18,31 @@ public class PluginSettings {
     private JSONObject bootstrapProperties;
     private String searchActionName;
     private String schemaPrefix;
+    private int authzParallelism;
+    private int authzChunkSize;
+    private int tokenCacheMaxEntries;
+    private int tokenCacheMaxTtl;
+    private int decisionCacheMaxEntries;
+    private long decisionCacheMaxWeight;
+    private int decisionCacheTtl;
+    private boolean decisionCacheIncludesId;
+    private Map<String, List<String>> resourceFields;
+    private Map<String, SourceProjector> projectors;
+    private boolean queryPushdown;
+    private boolean shardLevelAuthz;
+    private double decisionLogSampleRate;
+    private String decisionLogPrincipalClaim;
+    private Map<String, Double> decisionLogPrincipalRates;
+    private Map<String, Double> decisionLogIndexRates;
+    private int enginePoolSize;
+    private boolean policyFastPath;
+    private boolean groupEquivalentHits;
+    private int authzTimeout;
+    private boolean authzTimeoutFailOpen;
+    private int scrollSessionsMax;
+    private int scrollSessionMemoSize;
+    private boolean batchMultiSearch;
+    private boolean compiledPolicies;
     
     public static PluginSettings from(JSONObject job, long lastUdpated) {
         
@@ -23,6 +50,40 @@ public class PluginSettings {
         ps.enabled = job.optBoolean("enabled", true);
         ps.skipHits = job.optBoolean("skipHits", false);
         ps.logCedarlingLogs = job.optBoolean("logCedarlingLogs", true);
+        //A non-positive value means "as many threads as the authorization pool has"
+        ps.authzParallelism = job.optInt("authzParallelism", 0);
+        ps.authzChunkSize = Math.max(1, job.optInt("authzChunkSize", 100));
+        ps.tokenCacheMaxEntries = job.optInt("tokenCacheMaxEntries", 1000);
+        ps.tokenCacheMaxTtl = job.optInt("tokenCacheMaxTtl", 300);
+        //Decision cache is opt-in
+        ps.decisionCacheMaxEntries = job.optInt("decisionCacheMaxEntries", 0);
+        ps.decisionCacheMaxWeight = job.optLong("decisionCacheMaxWeight", 16 * 1024 * 1024);
+        ps.decisionCacheTtl = job.optInt("decisionCacheTtl", 60);
+        ps.decisionCacheIncludesId = job.optBoolean("decisionCacheIncludesId", false);
+        ps.resourceFields = parseResourceFields(job.opt("resourceFields"));
+        ps.projectors = new HashMap<>();
+        ps.resourceFields.forEach((index, fields) -> ps.projectors.put(index, new SourceProjector(fields)));
+        ps.queryPushdown = job.optBoolean("queryPushdown", false);
+        ps.shardLevelAuthz = job.optBoolean("shardLevelAuthz", false);
+        ps.decisionLogSampleRate = job.optDouble("decisionLogSampleRate", 1.0d);
+        ps.decisionLogPrincipalClaim = job.optString("decisionLogPrincipalClaim", "sub");
+        ps.decisionLogPrincipalRates = parseRates(job.optJSONObject("decisionLogPrincipalRates"));
+        ps.decisionLogIndexRates = parseRates(job.optJSONObject("decisionLogIndexRates"));
+        //A non-positive value means "as many instances as processors"
+        ps.enginePoolSize = job.optInt("enginePoolSize", 0);
+        if (ps.enginePoolSize <= 0) {
+            ps.enginePoolSize = Runtime.getRuntime().availableProcessors();
+        }
+        ps.policyFastPath = job.optBoolean("policyFastPath", false);
+        ps.groupEquivalentHits = job.optBoolean("groupEquivalentHits", true);
+        //A non-positive value means "no limit"
+        ps.authzTimeout = job.optInt("authzTimeout", 0);
+        ps.authzTimeoutFailOpen = job.optBoolean("authzTimeoutFailOpen", false);
+        //Zero disables sessions
+        ps.scrollSessionsMax = Math.max(0, job.optInt("scrollSessionsMax", 1000));
+        ps.scrollSessionMemoSize = Math.max(0, job.optInt("scrollSessionMemoSize", 10000));
+        ps.batchMultiSearch = job.optBoolean("batchMultiSearch", true);
+        ps.compiledPolicies = job.optBoolean("compiledPolicies", false);
         
         ps.bootstrapProperties = job.optJSONObject("bootstrapProperties");        
         if (ps.bootstrapProperties == null) {
@@ -76,6 +137,160 @@ public class PluginSettings {
         return schemaPrefix;
     }
     
+    public int getAuthzParallelism() {
+        return authzParallelism;
+    }
+    
+    public int getAuthzChunkSize() {
+        return authzChunkSize;
+    }
+    
+    public int getTokenCacheMaxEntries() {
+        return tokenCacheMaxEntries;
+    }
+    
+    public int getTokenCacheMaxTtl() {
+        return tokenCacheMaxTtl;
+    }
+    
+    public int getDecisionCacheMaxEntries() {
+        return decisionCacheMaxEntries;
+    }
+    
+    public long getDecisionCacheMaxWeight() {
+        return decisionCacheMaxWeight;
+    }
+    
+    public int getDecisionCacheTtl() {
+        return decisionCacheTtl;
+    }
+    
+    public boolean isDecisionCacheIncludesId() {
+        return decisionCacheIncludesId;
+    }
+    
+    public Map<String, List<String>> getResourceFields() {
+        return resourceFields;
+    }
+    
+    public boolean isShardLevelAuthz() {
+        return shardLevelAuthz;
+    }
+    
+    public boolean isQueryPushdown() {
+        return queryPushdown;
+    }
+    
+    public double getDecisionLogSampleRate() {
+        return decisionLogSampleRate;
+    }
+    
+    public String getDecisionLogPrincipalClaim() {
+        return decisionLogPrincipalClaim;
+    }
+    
+    public Map<String, Double> getDecisionLogPrincipalRates() {
+        return decisionLogPrincipalRates;
+    }
+    
+    public Map<String, Double> getDecisionLogIndexRates() {
+        return decisionLogIndexRates;
+    }
+    
+    public int getEnginePoolSize() {
+        return enginePoolSize;
+    }
+    
+    public boolean isPolicyFastPath() {
+        return policyFastPath;
+    }
+    
+    public boolean isGroupEquivalentHits() {
+        return groupEquivalentHits;
+    }
+    
+    public int getAuthzTimeout() {
+        return authzTimeout;
+    }
+    
+    public boolean isAuthzTimeoutFailOpen() {
+        return authzTimeoutFailOpen;
+    }
+    
+    public int getScrollSessionsMax() {
+        return scrollSessionsMax;
+    }
+    
+    public int getScrollSessionMemoSize() {
+        return scrollSessionMemoSize;
+    }
+    
+    public boolean isBatchMultiSearch() {
+        return batchMultiSearch;
+    }
+    
+    public boolean isCompiledPolicies() {
+        return compiledPolicies;
+    }
+    
+    /**
+     * Returns the source projector applicable to an index
+     * @param index Index name
+     * @return A projector or null if the whole document source must be used
+     */
+    public SourceProjector projectorFor(String index) {
+        return Optional.ofNullable(projectors.get(index)).orElse(projectors.get(ANY_INDEX));
+    }
+    
+    private static Map<String, List<String>> parseResourceFields(Object value) {
+        
+        //Either a list of fields (applicable to all indices) or an object whose keys are index names
+        Map<String, List<String>> map = new HashMap<>();
+        if (value instanceof JSONArray) {
+            map.put(ANY_INDEX, toStringList((JSONArray) value));
+
+        } else if (value instanceof JSONObject) {
+            JSONObject job = (JSONObject) value;
+            for (String index : job.keySet()) {
+                JSONArray fields = job.optJSONArray(index);
+                if (fields == null) {
+                    logger.warn("Fields for index '{}' must be a JSON array", index);
+                } else {
+                    map.put(index, toStringList(fields));
+                }
+            }
+        } else if (value != null) {
+            logger.warn("Unexpected value for 'resourceFields'");
+        }
+        return map;
+        
+    }
+    
+    private static Map<String, Double> parseRates(JSONObject job) {
+        
+        Map<String, Double> map = new HashMap<>();
+        if (job != null) {
+            for (String key : job.keySet()) {
+                double rate = job.optDouble(key);
+                if (Double.isNaN(rate)) {
+                    logger.warn("Sampling rate for '{}' is not a number", key);
+                } else {
+                    map.put(key, rate);
+                }
+            }
+        }
+        return map;
+        
+    }
+    
+    private static List<String> toStringList(JSONArray array) {
+        
+        List<String> list = new ArrayList<>();
+        array.forEach(item -> list.add(item.toString()));
+        return list;
+        
+    }
+    
 /*
     public void setLastUdpated(long lastUdpated) {
         this.lastUdpated = lastUdpated;
@@ -0,0 +1,292 @@
+package io.jans.cedarling.opensearch;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.zip.*;
+
+import org.apache.logging.log4j.*;
+import org.json.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps in the node data path the last plugin settings that produced a working Cedarling engine, as well as the
+ * policy store and the trusted issuers' JWKS they refer to. This allows Cedarling to be started as soon as the
+ * node starts, even without network access. Every file is recorded in a manifest along with its SHA-256 digest
+ * and the source it was obtained from: files whose digest or source do not match are not used. Freshly downloaded
+ * files are staged under separate names, and only replace the local copies once an engine started with them
+ * (see promote)
+ */
+public class PolicyStoreCache {
+
+    public static final String POLICY_STORE_URI_KEY = "CEDARLING_POLICY_STORE_URI";
+    public static final String POLICY_STORE_LOCAL_FN_KEY = "CEDARLING_POLICY_STORE_LOCAL_FN";
+    public static final String LOCAL_JWKS_KEY = "CEDARLING_LOCAL_JWKS";
+    public static final String JWT_SIG_VALIDATION_KEY = "CEDARLING_JWT_SIG_VALIDATION";
+
+    //Bump when the layout of files changes: existing caches are ignored then
+    private static final int FORMAT_VERSION = 1;
+    private static final String MANIFEST = "manifest.json";
+    private static final String SETTINGS = "settings.json";
+    private static final String JWKS = "jwks.json";
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    private Path dir;
+    private HttpClient httpClient;
+    //Staged files by name, along with their sources
+    private Map<String, Map.Entry<byte[], String>> staged = new HashMap<>();
+
+    public PolicyStoreCache(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        httpClient = HttpClient.newBuilder().connectTimeout(TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL).build();
+    }
+
+    /**
+     * Stores plugin settings known to produce a working engine
+     * @param json Plugin settings
+     * @param lastUpdated Timestamp of the settings
+     */
+    public void saveSettings(String json, long lastUpdated) {
+
+        try {
+            write(SETTINGS, json.getBytes(UTF_8), String.valueOf(lastUpdated));
+        } catch (Exception e) {
+            logger.warn("Plugin settings could not be saved locally: {}", e.getMessage());
+        }
+
+    }
+
+    /**
+     * Reads the settings previously stored with saveSettings
+     * @return A JSON object with properties "settings" (string) and "lastUpdated" (number), or null if no valid
+     * settings are stored
+     */
+    public JSONObject loadSettings() {
+
+        JSONObject entry = manifest().optJSONObject(SETTINGS);
+        byte[] json = entry == null ? null : read(SETTINGS, entry.optString("source"));
+        if (json == null) return null;
+
+        return new JSONObject().put("settings", new String(json, UTF_8))
+                .put("lastUpdated", Long.parseLong(entry.getString("source")));
+
+    }
+
+    /**
+     * Makes Cedarling take the policy store (and JWKS, if needed) from local files. The policy store is downloaded
+     * and staged, or if the download fails, the copy previously saved for the same URI is used. The JWKS of
+     * trusted issuers are downloaded too, but they are only handed to Cedarling when the policy store could not be
+     * downloaded: when the network is available Cedarling keeps fetching (fresh) keys on its own
+     * @param bootstrapProperties Cedarling bootstrap properties
+     * @return The properties to initialize Cedarling with. These are the same as passed when the policy store is not
+     * taken from a URI or no local copy of it is available
+     */
+    public JSONObject localize(JSONObject bootstrapProperties) {
+
+        discardStaged();
+        String uri = bootstrapProperties.optString(POLICY_STORE_URI_KEY, "");
+        if (uri.isEmpty()) return bootstrapProperties;
+
+        String name = "policy-store" + (uri.toLowerCase().endsWith(".json") ? ".json" : ".cjar");
+        String fileName = name;
+        boolean online = true;
+        byte[] store;
+        try {
+            store = fetch(uri);
+            fileName = stage(name, store, uri);
+        } catch (Exception e) {
+            logger.warn("Policy store could not be obtained from {} ({}). Trying the local copy", uri, e.getMessage());
+            store = read(name, uri);
+            online = false;
+
+            if (store == null) {
+                logger.warn("No valid local copy of the policy store found");
+                return bootstrapProperties;
+            }
+        }
+
+        JSONObject props = new JSONObject(bootstrapProperties.toMap());
+        props.remove(POLICY_STORE_URI_KEY);
+        props.put(POLICY_STORE_LOCAL_FN_KEY, dir.resolve(fileName).toString());
+
+        if (!"enabled".equals(props.optString(JWT_SIG_VALIDATION_KEY)) || props.has(LOCAL_JWKS_KEY)) return props;
+
+        //JWKS are tied to the policy store they were derived from
+        String storeDigest = digest(store);
+        if (online) {
+            try {
+                stage(JWKS, fetchJwks(store, name).toString().getBytes(UTF_8), storeDigest);
+            } catch (Exception e) {
+                logger.warn("JWKS of trusted issuers could not be saved locally: {}", e.getMessage());
+            }
+        } else if (read(JWKS, storeDigest) != null) {
+            logger.info("Using the local copy of trusted issuers JWKS");
+            props.put(LOCAL_JWKS_KEY, dir.resolve(JWKS).toString());
+        }
+        return props;
+
+    }
+
+    /**
+     * Makes the files staged by the last call to localize the local copies to fall back on. To be called once
+     * an engine started with them
+     */
+    public synchronized void promote() {
+
+        staged.forEach((name, content) -> {
+            try {
+                write(name, content.getKey(), content.getValue());
+            } catch (Exception e) {
+                logger.warn("{} could not be saved locally: {}", name, e.getMessage());
+            }
+        });
+        staged.clear();
+
+    }
+
+    private synchronized String stage(String name, byte[] content, String source) throws IOException {
+
+        //The extension is kept: Cedarling tells the format of the policy store by it
+        int dot = name.lastIndexOf('.');
+        String stagedName = name.substring(0, dot) + ".staged" + name.substring(dot);
+        Path tmp = dir.resolve(stagedName + ".tmp");
+        Files.write(tmp, content);
+        Files.move(tmp, dir.resolve(stagedName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        staged.put(name, Map.entry(content, source));
+        return stagedName;
+
+    }
+
+    private synchronized void discardStaged() {
+        staged.clear();
+    }
+
+    private JSONObject fetchJwks(byte[] store, String name) throws Exception {
+
+        JSONObject jwks = new JSONObject();
+        for (Map.Entry<String, String> issuer : trustedIssuers(store, name).entrySet()) {
+            JSONObject config = new JSONObject(new String(fetch(issuer.getValue()), UTF_8));
+            JSONObject keys = new JSONObject(new String(fetch(config.getString("jwks_uri")), UTF_8));
+            jwks.put(issuer.getKey(), keys.getJSONArray("keys"));
+        }
+        return jwks;
+
+    }
+
+    private Map<String, String> trustedIssuers(byte[] store, String name) throws IOException {
+
+        //Maps issuer IDs to their OpenID configuration endpoints
+        Map<String, String> issuers = new HashMap<>();
+
+        if (name.endsWith(".json")) {
+            JSONObject stores = new JSONObject(new String(store, UTF_8)).optJSONObject("policy_stores", new JSONObject());
+            for (String id : stores.keySet()) {
+                JSONObject trusted = stores.getJSONObject(id).optJSONObject("trusted_issuers", new JSONObject());
+                trusted.keySet().forEach(k -> addIssuer(issuers, k, trusted.getJSONObject(k)));
+            }
+        } else {
+            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(store))) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    String entryName = entry.getName();
+                    if (entryName.startsWith("trusted-issuers/") && entryName.endsWith(".json")) {
+                        String id = entryName.substring(entryName.lastIndexOf('/') + 1, entryName.length() - 5);
+                        addIssuer(issuers, id, new JSONObject(new String(zis.readAllBytes(), UTF_8)));
+                    }
+                }
+            }
+        }
+        return issuers;
+
+    }
+
+    private void addIssuer(Map<String, String> issuers, String id, JSONObject issuer) {
+
+        String endpoint = issuer.optString("openid_configuration_endpoint", "");
+        if (!endpoint.isEmpty()) {
+            issuers.put(issuer.optString("id", id), endpoint);
+        }
+
+    }
+
+    private byte[] fetch(String uri) throws Exception {
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri)).timeout(TIMEOUT).GET().build();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IOException("Unexpected status " + response.statusCode() + " fetching " + uri);
+        }
+        return response.body();
+
+    }
+
+    private synchronized void write(String name, byte[] content, String source) throws IOException {
+
+        //Write to a temporary file first so a crash never leaves a truncated file in place
+        Path tmp = dir.resolve(name + ".tmp");
+        Files.write(tmp, content);
+        Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        JSONObject manifest = manifest();
+        manifest.put(name, new JSONObject().put("source", source).put("sha256", digest(content))
+                .put("storedAt", System.currentTimeMillis()));
+
+        tmp = dir.resolve(MANIFEST + ".tmp");
+        Files.write(tmp, manifest.toString(2).getBytes(UTF_8));
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    private synchronized byte[] read(String name, String source) {
+
+        try {
+            JSONObject entry = manifest().optJSONObject(name);
+            if (entry == null || !entry.optString("source").equals(source)) return null;
+
+            byte[] content = Files.readAllBytes(dir.resolve(name));
+            if (digest(content).equals(entry.optString("sha256"))) return content;
+
+            logger.warn("Local copy of {} is corrupted", name);
+        } catch (Exception e) {
+            logger.warn("Local copy of {} could not be read: {}", name, e.getMessage());
+        }
+        return null;
+
+    }
+
+    private JSONObject manifest() {
+
+        try {
+            Path path = dir.resolve(MANIFEST);
+            if (Files.exists(path)) {
+                JSONObject manifest = new JSONObject(Files.readString(path));
+                if (manifest.optInt("version") == FORMAT_VERSION) return manifest;
+            }
+        } catch (Exception e) {
+            logger.warn("Local cache manifest could not be read: {}", e.getMessage());
+        }
+        return new JSONObject().put("version", FORMAT_VERSION);
+
+    }
+
+    private static String digest(byte[] content) {
+
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                    MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+}
@@ -0,0 +1,101 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing of the stages the plugin goes through when processing a search response. It is only collected for
+ * requests with profiling enabled. Times of stages run by several threads at once (source parsing and evaluation)
+ * are summed over all threads, so they may exceed the wall time of the whole processing
+ */
+public class ProfileBreakdown {
+
+    private final LongAdder settingsLookup = new LongAdder();
+    private final LongAdder tokenHandling = new LongAdder();
+    private final LongAdder sourceParsing = new LongAdder();
+    private final LongAdder evaluation = new LongAdder();
+    private final LongAdder responseRebuild = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private volatile boolean allocationMeasured;
+    private final Map<String, IndexTimes> indices = new ConcurrentHashMap<>();
+
+    public void settingsLookup(long nanos) {
+        settingsLookup.add(nanos);
+    }
+
+    public void tokenHandling(long nanos) {
+        tokenHandling.add(nanos);
+    }
+
+    public void sourceParsing(String index, long nanos) {
+        sourceParsing.add(nanos);
+        indexTimes(index).sourceParsing.add(nanos);
+    }
+
+    public void evaluation(String index, int hits, long nanos) {
+        evaluation.add(nanos);
+        IndexTimes times = indexTimes(index);
+        times.hits.add(hits);
+        times.evaluation.add(nanos);
+    }
+
+    public void responseRebuild(long nanos) {
+        responseRebuild.add(nanos);
+    }
+
+    /**
+     * Registers the memory allocated by a thread while parsing and evaluating a chunk of hits
+     * @param bytes Number of bytes, as reported by the JVM
+     */
+    public void allocation(long bytes) {
+        allocatedBytes.add(bytes);
+        allocationMeasured = true;
+    }
+
+    /**
+     * Renders the breakdown in a form similar to that of the search profile API
+     * @param total Wall time of the whole processing in nanoseconds
+     * @return A map
+     */
+    public Map<String, Object> asMap(long total) {
+
+        Map<String, Object> breakdown = new LinkedHashMap<>();
+        breakdown.put("settings_lookup", settingsLookup.sum());
+        breakdown.put("token_handling", tokenHandling.sum());
+        breakdown.put("source_parsing", sourceParsing.sum());
+        breakdown.put("evaluation", evaluation.sum());
+        breakdown.put("response_rebuild", responseRebuild.sum());
+
+        Map<String, Object> perIndex = new TreeMap<>();
+        long hits = 0;
+        for (IndexTimes times : indices.values()) {
+            hits += times.hits.sum();
+        }
+        indices.forEach((index, times) -> perIndex.put(index, Map.of(
+                "hits", times.hits.sum(),
+                "source_parsing", times.sourceParsing.sum(),
+                "evaluation", times.evaluation.sum()
+            )));
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("time_in_nanos", total);
+        map.put("breakdown", breakdown);
+        map.put("indices", perIndex);
+        //Only available in JVMs that support thread allocation accounting
+        map.put("allocated_bytes_per_hit", allocationMeasured && hits > 0 ? allocatedBytes.sum() / hits : -1);
+        return map;
+
+    }
+
+    private IndexTimes indexTimes(String index) {
+        return indices.computeIfAbsent(index, k -> new IndexTimes());
+    }
+
+    private static class IndexTimes {
+        final LongAdder hits = new LongAdder();
+        final LongAdder sourceParsing = new LongAdder();
+        final LongAdder evaluation = new LongAdder();
+    }
+
+}
@@ -0,0 +1,209 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters gathered while authorizing the hits of a single search response. It can be updated concurrently
+ * by the threads involved in the authorization
+ */
+public class RequestStats {
+
+    private final LongAdder decisionCacheHits = new LongAdder();
+    private final LongAdder decisionCacheMisses = new LongAdder();
+    private final LongAdder evaluatedHits = new LongAdder();
+    private final LongAdder cedarlingEvaluations = new LongAdder();
+    private final LongAdder decisionsTook = new LongAdder();
+    private final LongAdder refillRounds = new LongAdder();
+    private final LongAdder refillFetched = new LongAdder();
+    private final LongAdder shardDecisions = new LongAdder();
+    private final LongAdder fastPathDecisions = new LongAdder();
+    private final LongAdder equivalenceClasses = new LongAdder();
+    private final LongAdder savedEvaluations = new LongAdder();
+    private final LongAdder unevaluatedHits = new LongAdder();
+    private final LongAdder sessionMemoHits = new LongAdder();
+    private final LongAdder compiledDecisions = new LongAdder();
+    private final ProfileBreakdown profile;
+    private volatile long refillNextFrom = -1;
+
+    public RequestStats() {
+        this(false);
+    }
+
+    /**
+     * Creates an instance
+     * @param profiling Whether the timing of the processing stages has to be collected (see getProfile)
+     */
+    public RequestStats(boolean profiling) {
+        profile = profiling ? new ProfileBreakdown() : null;
+    }
+
+    public void decisionCacheHit() {
+        decisionCacheHits.increment();
+    }
+
+    public void decisionCacheMiss() {
+        decisionCacheMisses.increment();
+    }
+
+    public void addEvaluatedHits(int hits) {
+        evaluatedHits.add(hits);
+    }
+
+    public void cedarlingEvaluation() {
+        cedarlingEvaluations.increment();
+    }
+
+    public void addDecisionsTook(long nanos) {
+        decisionsTook.add(nanos);
+    }
+
+    public void refillRound(int fetched) {
+        refillRounds.increment();
+        refillFetched.add(fetched);
+    }
+
+    public void refillNextFrom(long offset) {
+        refillNextFrom = offset;
+    }
+
+    public void shardDecision() {
+        shardDecisions.increment();
+    }
+
+    public void fastPathDecision() {
+        fastPathDecisions.increment();
+    }
+
+    public void addEquivalenceClasses(int classes, int saved) {
+        equivalenceClasses.add(classes);
+        savedEvaluations.add(saved);
+    }
+
+    public void timedOut(int hits) {
+        unevaluatedHits.add(hits);
+    }
+
+    public void sessionMemoHits(int hits) {
+        sessionMemoHits.add(hits);
+    }
+
+    public void compiledDecision() {
+        compiledDecisions.increment();
+    }
+
+    public long getDecisionCacheHits() {
+        return decisionCacheHits.sum();
+    }
+
+    public long getDecisionCacheMisses() {
+        return decisionCacheMisses.sum();
+    }
+
+    public long getEvaluatedHits() {
+        return evaluatedHits.sum();
+    }
+
+    /**
+     * Number of decisions Cedarling was asked for, i.e. not served by the decision cache, the compiled policies,
+     * the data nodes, the policy fast path, or an equivalent hit
+     * @return A number
+     */
+    public long getCedarlingEvaluations() {
+        return cedarlingEvaluations.sum();
+    }
+
+    /**
+     * Sum of the time spent on decisions
+     * @return Time in nanoseconds
+     */
+    public long getDecisionsTook() {
+        return decisionsTook.sum();
+    }
+
+    public long getRefillRounds() {
+        return refillRounds.sum();
+    }
+
+    public long getRefillFetched() {
+        return refillFetched.sum();
+    }
+
+    /**
+     * Offset (from) the next page of a refilled search should start at, so that documents consumed to complete
+     * this page are neither repeated nor skipped
+     * @return A number, or -1 if the page was not refilled or the search uses search_after
+     */
+    public long getRefillNextFrom() {
+        return refillNextFrom;
+    }
+
+    /**
+     * Number of hits whose decision was made in data nodes
+     * @return A number
+     */
+    public long getShardDecisions() {
+        return shardDecisions.sum();
+    }
+
+    /**
+     * Number of hits whose decision was inferred from a policy analysis, with no evaluation
+     * @return A number
+     */
+    public long getFastPathDecisions() {
+        return fastPathDecisions.sum();
+    }
+
+    /**
+     * Number of classes hits with identical policy-relevant attributes were grouped in
+     * @return A number
+     */
+    public long getEquivalenceClasses() {
+        return equivalenceClasses.sum();
+    }
+
+    /**
+     * Number of hits that took the decision of an equivalent hit instead of being evaluated
+     * @return A number
+     */
+    public long getSavedEvaluations() {
+        return savedEvaluations.sum();
+    }
+
+    /**
+     * Number of hits left unevaluated because the authorization time limit was reached
+     * @return A number
+     */
+    public long getUnevaluatedHits() {
+        return unevaluatedHits.sum();
+    }
+
+    public boolean isTimedOut() {
+        return unevaluatedHits.sum() > 0;
+    }
+
+    /**
+     * Number of hits decided with the decision made for an equivalent hit in a previous page of the same scroll
+     * or point in time
+     * @return A number
+     */
+    public long getSessionMemoHits() {
+        return sessionMemoHits.sum();
+    }
+
+    /**
+     * Number of hits decided by the compiled policies instead of Cedarling
+     * @return A number
+     */
+    public long getCompiledDecisions() {
+        return compiledDecisions.sum();
+    }
+
+    /**
+     * Timing of the processing stages
+     * @return A ProfileBreakdown, or null if profiling was not requested
+     */
+    public ProfileBreakdown getProfile() {
+        return profile;
+    }
+
+}
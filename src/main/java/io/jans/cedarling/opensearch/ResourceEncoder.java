@@ -0,0 +1,184 @@
+package io.jans.cedarling.opensearch;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import org.json.JSONObject;
+import org.opensearch.common.xcontent.*;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.xcontent.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Serializes document sources into Cedarling resources. The JSON content is written straight from the bytes of
+ * the source (or from a projection of it) into a buffer that every thread reuses across hits, and the entity
+ * mapping envelope is appended right there. This avoids building intermediate maps and JSONObject instances.
+ * An entity mapping found in the source itself is dropped, so that documents cannot choose their entity type or id
+ */
+public class ResourceEncoder {
+
+    private static final ThreadLocal<ResourceEncoder> LOCAL = ThreadLocal.withInitial(ResourceEncoder::new);
+    private static final byte[] MAPPING_KEY_BYTES = CedarlingService.ENTITY_MAPPING_KEY.getBytes(UTF_8);
+    private static final byte[] UNICODE_ESCAPE = "\\u".getBytes(UTF_8);
+
+    private Buffer buffer = new Buffer();
+    private MessageDigest md;
+
+    private ResourceEncoder() {
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the encoder associated to the current thread
+     * @return A ResourceEncoder
+     */
+    public static ResourceEncoder get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Encodes a document source as a Cedarling resource
+     * @param source Document source
+     * @param projector Projector to apply to the source. If null, the whole source is used
+     * @param entityType Entity type of the resource
+     * @param id Document ID
+     * @param computeDigest Whether to compute the digest of the document attributes
+     * @return The encoded resource, or null if the source is not JSON content and no projector was supplied
+     * @throws IOException If the source could not be parsed
+     */
+    public EncodedResource encode(BytesReference source, SourceProjector projector, String entityType, String id,
+            boolean computeDigest) throws IOException {
+
+        buffer.reset();
+        if (projector == null) {
+            if (MediaTypeRegistry.xContentType(source) != XContentType.JSON) return null;
+            source.writeTo(buffer);
+
+            //The envelope appended below must be the only entity mapping Cedarling sees. Keys may be written
+            //with unicode escapes, so their presence also forces the source to be rewritten without the mapping
+            if (buffer.indexOf(MAPPING_KEY_BYTES) >= 0 || buffer.indexOf(UNICODE_ESCAPE) >= 0) {
+                buffer.reset();
+                try (XContentBuilder builder = XContentFactory.jsonBuilder(buffer)) {
+                    copyWithoutMapping(source, builder);
+                }
+            }
+        } else {
+            try (XContentBuilder builder = XContentFactory.jsonBuilder(buffer)) {
+                projector.project(source, builder);
+            }
+        }
+
+        //Locate the closing brace of the top-level object and determine if it is empty
+        int end = buffer.lastIndexOf((byte) '}');
+        if (end < 0) throw new IOException("Document source is not an object");
+
+        int start = buffer.indexOf((byte) '{');
+        boolean empty = true;
+        for (int i = start + 1; i < end && empty; i++) {
+            empty = Character.isWhitespace(buffer.byteAt(i));
+        }
+
+        String digest = null;
+        if (computeDigest) {
+            md.reset();
+            md.update(buffer.array(), 0, end);
+            digest = Base64.getUrlEncoder().withoutPadding().encodeToString(md.digest());
+        }
+
+        buffer.truncate(end);
+        String envelope = String.format("%s\"%s\":{\"entity_type\":%s,\"id\":%s}}", empty ? "" : ",",
+                CedarlingService.ENTITY_MAPPING_KEY, JSONObject.quote(entityType), JSONObject.quote(id));
+        buffer.write(envelope.getBytes(UTF_8));
+
+        return new EncodedResource(buffer.toString(UTF_8), entityType, id, digest);
+
+    }
+
+    private static void copyWithoutMapping(BytesReference source, XContentBuilder builder) throws IOException {
+
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, XContentType.JSON)) {
+
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new IOException("Document source is not an object");
+            }
+            builder.startObject();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                if (name.equals(CedarlingService.ENTITY_MAPPING_KEY)) {
+                    parser.skipChildren();
+                } else {
+                    builder.field(name);
+                    builder.copyCurrentStructure(parser);
+                }
+            }
+            builder.endObject();
+        }
+
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+        Buffer() {
+            super(8192);
+        }
+
+        @Override
+        public synchronized void reset() {
+            //Do not let a single huge document pin a big array for the rest of the thread's life
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[8192];
+            }
+            super.reset();
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        byte byteAt(int i) {
+            return buf[i];
+        }
+
+        int indexOf(byte b) {
+            for (int i = 0; i < count; i++) {
+                if (buf[i] == b) return i;
+            }
+            return -1;
+        }
+
+        int indexOf(byte[] bytes) {
+            for (int i = 0; i + bytes.length <= count; i++) {
+                if (Arrays.equals(buf, i, i + bytes.length, bytes, 0, bytes.length)) return i;
+            }
+            return -1;
+        }
+
+        int lastIndexOf(byte b) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (buf[i] == b) return i;
+            }
+            return -1;
+        }
+
+        void truncate(int length) {
+            count = length;
+        }
+
+        @Override
+        public void close() {
+            //XContentBuilder closes the stream it writes to: the buffer must outlive it
+        }
+
+    }
+
+}
@@ -1,86 +1,157 @@
 package io.jans.cedarling.opensearch;
 
-import java.util.*;
+import io.jans.cedarling.opensearch.log.DecisionLog;
+import io.jans.cedarling.opensearch.stats.CedarlingMetrics;
+
+import java.nio.file.Path;
 import java.time.Instant;
 
 import org.apache.logging.log4j.*;
 import org.json.*;
-import org.opensearch.common.settings.*;
 
+/**
+ * Holds the current plugin settings and Cedarling engine. They are rebuilt when the cluster settings of the
+ * plugin change (see onSettingsUpdate), in a background thread, and then published at once. Searches only read
+ * a volatile reference
+ */
 public class SettingsService {
 
     private static SettingsService instance = new SettingsService();
-    
+
     private Logger logger = LogManager.getLogger(getClass());
-    private PluginSettings pluginSettings;
-    
+    private volatile SettingsSnapshot snapshot;
+    private PolicyStoreCache policyStoreCache;
+
     public static SettingsService getInstance() {
         return instance;
     }
-    
+
     private SettingsService() { }
-    
-    public PluginSettings getSettings() {
-        
-        AbstractScopedSettings clSettings = getClusterSettings();
-        if (pluginSettings == null) {
-            reloadPluginSettings(clSettings);
-        } else {
-            long lastUpdated = getLastUpdated(clSettings);
-
-            if (lastUpdated <= 0) {
-                logger.warn("Plugin settings seem to have been wiped. Previous settings are retained");
-            } else if (pluginSettings.getLastUpdated() < lastUpdated) {
-                //Current "in memory" settings are not in sync with database settings
-                reloadPluginSettings(clSettings);
+
+    /**
+     * Starts Cedarling with the last settings known to work on this node, if any. This happens before the cluster
+     * state is recovered, so the network is not required: the policy store can be taken from the local cache
+     * @param cacheDir Directory where settings and policy store are cached
+     */
+    public void start(Path cacheDir) {
+
+        try {
+            policyStoreCache = new PolicyStoreCache(cacheDir);
+            JSONObject saved = policyStoreCache.loadSettings();
+
+            if (saved == null) {
+                logger.info("No local copy of plugin settings found. Cedarling will start when settings are applied");
+            } else {
+                logger.info("Starting Cedarling with the local copy of plugin settings");
+                reload(saved.getString("settings"), saved.getLong("lastUpdated"));
             }
+        } catch (Exception e) {
+            logger.error("Cedarling could not be started eagerly", e);
         }
-        return pluginSettings;
-        
+
     }
-    
-    public void reloadPluginSettings() {
-        reloadPluginSettings(getClusterSettings());
+
+    /**
+     * Gets the current plugin settings
+     * @return A PluginSettings instance, or null if the settings have not been loaded yet
+     */
+    public PluginSettings getSettings() {
+        SettingsSnapshot current = snapshot;
+        return current == null ? null : current.getSettings();
     }
-    
-    private void reloadPluginSettings(AbstractScopedSettings settings) {
-        
+
+    /**
+     * Gets the current settings snapshot, holding a reference to its engine. The snapshot must be closed
+     * once the engine is no longer needed
+     * @return A SettingsSnapshot, or null if the settings have not been loaded yet
+     */
+    public SettingsSnapshot acquire() {
+
+        while (true) {
+            SettingsSnapshot current = snapshot;
+            if (current == null || current.getEngine().tryIncRef()) return current;
+            //The engine was retired in the meantime: a newer snapshot has been published already
+        }
+
+    }
+
+    /**
+     * Called by the cluster settings machinery when the plugin settings change. The new snapshot is built
+     * in a generic thread so that the cluster state applier is not delayed
+     * @param json Plugin settings
+     * @param lastUpdated Timestamp of the settings
+     */
+    public void onSettingsUpdate(String json, Long lastUpdated) {
+        CedarlingPlugin.getThreadPool().generic().execute(() -> reload(json, lastUpdated));
+    }
+
+    private synchronized void reload(String json, long lastUpdated) {
+
+        SettingsSnapshot current = snapshot;
+        if (lastUpdated <= 0) {
+            logger.warn("Plugin settings seem to have been wiped or not set yet. Previous settings are retained");
+            return;
+        }
+        if (current != null && current.getSettings().getLastUpdated() >= lastUpdated) {
+            logger.debug("Settings update already applied");
+            return;
+        }
+        if (json == null || json.isEmpty()) {
+            logger.warn("Plugin settings have not been set yet. {} is missing", CedarlingPlugin.SETTINGS_KEY);
+            return;
+        }
+
+        CedarlingEngine engine = null;
         try {
             logger.info("Reloading Cedarling plugin settings...");
-            
-            long lastUpdated = getLastUpdated(settings);
-            if (lastUpdated <= 0) {
-                logger.warn("Plugin settings not set yet");
-                return;
-            }
             logger.debug("Last updated on {}", Instant.ofEpochMilli(lastUpdated).toString());
-            
-            String key = CedarlingPlugin.SETTINGS_KEY;
-            JSONObject job = Optional.ofNullable(settings.get(settings.get(key)))
-                    .map(Object::toString).map(JSONObject::new).orElse(null);
-
-            if (job == null) {
-                logger.warn("Plugin settings have not been set yet. {} is missing", key);
-                return;
+
+            PluginSettings pluginSettings = PluginSettings.from(new JSONObject(json), lastUpdated);
+            if (pluginSettings == null) {
+                throw new IllegalArgumentException("Plugin settings are incomplete");
             }
-                    
-            pluginSettings = PluginSettings.from(job, lastUpdated);
-            CedarlingService.getInstance()
-                .init(pluginSettings.getBootstrapProperties(), pluginSettings.isLogCedarlingLogs());
+
+            //The engine is rebuilt only if its configuration changed
+            CedarlingEngine currentEngine = current == null ? null : current.getEngine();
+            if (currentEngine != null && currentEngine.isStarted() && currentEngine.isBuiltFor(
+                    pluginSettings.getBootstrapProperties(), pluginSettings.isLogCedarlingLogs(),
+                    pluginSettings.getEnginePoolSize())
+                    && currentEngine.tryIncRef()) {
+                logger.info("Cedarling configuration unchanged");
+                engine = currentEngine;
+            } else {
+                JSONObject bootstrapProperties = pluginSettings.getBootstrapProperties();
+                engine = new CedarlingEngine(bootstrapProperties, policyStoreCache == null ?
+                        bootstrapProperties : policyStoreCache.localize(bootstrapProperties),
+                        pluginSettings.isLogCedarlingLogs(), pluginSettings.getSearchActionName(),
+                        pluginSettings.getSchemaPrefix() + "::_warmup", pluginSettings.getEnginePoolSize());
+            }
+
+            //cached data may no longer be valid under the new settings
+            CedarlingService.getInstance().configureCaches(pluginSettings);
+            DecisionLog.getInstance().configure(pluginSettings);
+            AuthzSessions.getInstance().configure(pluginSettings);
+            snapshot = new SettingsSnapshot(pluginSettings, engine);
+            if (engine.isStarted() && policyStoreCache != null) {
+                //Only now the downloaded policy store is known to work
+                policyStoreCache.promote();
+                policyStoreCache.saveSettings(json, lastUpdated);
+            }
+            engine = null;
+
+            if (current != null) {
+                current.close();
+            }
+            CedarlingMetrics.getInstance().settingsReload(true);
 
         } catch (Exception e) {
             logger.error("Error trying to parse Cedarling plugin settings", e);
+            CedarlingMetrics.getInstance().settingsReload(false);
+            if (engine != null) {
+                engine.decRef();
+            }
         }
 
     }
 
-    private AbstractScopedSettings getClusterSettings() {
-        return CedarlingPlugin.getClusterService().getClusterSettings();
-    }
-    
-    private long getLastUpdated(AbstractScopedSettings settings) {
-        return Optional.ofNullable(settings.get(settings.get(CedarlingPlugin.LAST_UPDATED_KEY)))
-                .map(Long.class::cast).orElse(0L);
-    }
-    
 }
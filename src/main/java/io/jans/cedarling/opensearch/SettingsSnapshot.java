@@ -0,0 +1,33 @@
+package io.jans.cedarling.opensearch;
+
+/**
+ * The plugin settings together with the Cedarling engine built for them. Instances are immutable and published
+ * as a whole, so readers never observe settings paired with an engine built for others
+ */
+public class SettingsSnapshot implements AutoCloseable {
+
+    private final PluginSettings settings;
+    private final CedarlingEngine engine;
+
+    SettingsSnapshot(PluginSettings settings, CedarlingEngine engine) {
+        this.settings = settings;
+        this.engine = engine;
+    }
+
+    public PluginSettings getSettings() {
+        return settings;
+    }
+
+    public CedarlingEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Releases the reference to the engine held through this snapshot (see SettingsService.acquire)
+     */
+    @Override
+    public void close() {
+        engine.decRef();
+    }
+
+}
@@ -0,0 +1,90 @@
+package io.jans.cedarling.opensearch;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.opensearch.common.xcontent.XContentHelper;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.xcontent.*;
+
+/**
+ * Extracts a subset of fields from a document source. The source is stream-parsed: the contents of
+ * fields not requested are skipped without being materialized, and the rest are copied as they are parsed
+ */
+public class SourceProjector {
+
+    private static final Object LEAF = new Object();
+
+    //A tree of field names. Inner nodes are maps, and leaves hold the LEAF marker
+    private Map<String, Object> paths = new HashMap<>();
+
+    /**
+     * Builds a projector
+     * @param fields Collection of field paths. Nested fields are expressed with dot notation, e.g. "address.city".
+     * When a path is a prefix of another, the shorter one prevails
+     */
+    public SourceProjector(Collection<String> fields) {
+
+        for (String field : fields) {
+            Map<String, Object> node = paths;
+            String[] parts = field.split("\\.");
+
+            for (int i = 0; i < parts.length && node != null; i++) {
+                if (i == parts.length - 1) {
+                    node.put(parts[i], LEAF);
+                } else {
+                    Object child = node.computeIfAbsent(parts[i], k -> new HashMap<String, Object>());
+                    node = child == LEAF ? null : (Map<String, Object>) child;
+                }
+            }
+        }
+        //The entity mapping is supplied by the plugin, never taken from documents
+        paths.remove(CedarlingService.ENTITY_MAPPING_KEY);
+
+    }
+
+    /**
+     * Copies the fields of interest of a source into a builder. Nesting of fields is preserved
+     * @param source Document source
+     * @param builder Builder where a JSON object containing the fields found will be written
+     * @throws IOException If the source could not be parsed
+     */
+    public void project(BytesReference source, XContentBuilder builder) throws IOException {
+
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, MediaTypeRegistry.xContentType(source))) {
+
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new IOException("Document source is not an object");
+            }
+            builder.startObject();
+            copyObject(parser, paths, builder);
+            builder.endObject();
+        }
+
+    }
+
+    private void copyObject(XContentParser parser, Map<String, Object> node, XContentBuilder builder)
+            throws IOException {
+
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+
+            String name = parser.currentName();
+            Object child = node.get(name);
+            XContentParser.Token token = parser.nextToken();
+
+            if (child == LEAF) {
+                builder.field(name);
+                builder.copyCurrentStructure(parser);
+            } else if (child != null && token == XContentParser.Token.START_OBJECT) {
+                builder.startObject(name);
+                copyObject(parser, (Map<String, Object>) child, builder);
+                builder.endObject();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+    }
+
+}
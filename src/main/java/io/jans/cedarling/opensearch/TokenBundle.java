@@ -0,0 +1,98 @@
+package io.jans.cedarling.opensearch;
+
+import java.security.MessageDigest;
+import java.util.*;
+
+import org.json.JSONObject;
+
+import uniffi.cedarling_uniffi.TokenInput;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The set of tokens supplied in a search request in a form ready to be passed to Cedarling. It also holds the
+ * decoded claims of every token, and the earliest expiration time found among them
+ */
+public class TokenBundle {
+
+    private String fingerprint;
+    private List<TokenInput> tokenInputs;
+    private Map<String, JSONObject> claims;
+    private long expiresAt;
+
+    private TokenBundle() { }
+
+    /**
+     * Computes a digest that identifies a set of tokens regardless of the order of its entries
+     * @param tokens Map of token mappings to (encoded) token values
+     * @return A string
+     * @throws Exception If computing the digest failed
+     */
+    public static String fingerprint(Map<String, String> tokens) throws Exception {
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (String mapping : new TreeSet<>(tokens.keySet())) {
+            md.update(mapping.getBytes(UTF_8));
+            md.update((byte) 0);
+            md.update(String.valueOf(tokens.get(mapping)).getBytes(UTF_8));
+            md.update((byte) 0);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(md.digest());
+
+    }
+
+    public static TokenBundle from(Map<String, String> tokens, String fingerprint) {
+
+        TokenBundle tb = new TokenBundle();
+        tb.fingerprint = fingerprint;
+        tb.tokenInputs = new ArrayList<>();
+        tb.claims = new HashMap<>();
+        tb.expiresAt = Long.MAX_VALUE;
+
+        for (Map.Entry<String, String> e : tokens.entrySet()) {
+            tb.tokenInputs.add(new TokenInput(e.getKey(), e.getValue()));
+
+            JSONObject payload = decodePayload(e.getValue());
+            if (payload != null) {
+                tb.claims.put(e.getKey(), payload);
+                if (payload.has("exp")) {
+                    tb.expiresAt = Math.min(tb.expiresAt, payload.optLong("exp") * 1000);
+                }
+            }
+        }
+        tb.tokenInputs = Collections.unmodifiableList(tb.tokenInputs);
+        tb.claims = Collections.unmodifiableMap(tb.claims);
+        return tb;
+
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public List<TokenInput> getTokenInputs() {
+        return tokenInputs;
+    }
+
+    public Map<String, JSONObject> getClaims() {
+        return claims;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    private static JSONObject decodePayload(String jwt) {
+
+        //Signature and status validation is Cedarling's job. Here only the claims are extracted, if possible
+        try {
+            String[] parts = jwt.split("\\.");
+            return parts.length < 2 ? null :
+                new JSONObject(new String(Base64.getUrlDecoder().decode(parts[1]), UTF_8));
+        } catch (Exception e) {
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+package io.jans.cedarling.opensearch.cache;
+
+import java.security.*;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Computes digests of JSON-like structures (maps, lists, and scalars) which do not depend on the order
+ * in which the keys of maps were inserted
+ */
+public class CanonicalHasher {
+
+    private MessageDigest md;
+
+    public CanonicalHasher() {
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the digest of a map
+     * @param map The map
+     * @param excludedKeys Top-level keys to leave out of the computation
+     * @return A Base64URL-encoded string
+     */
+    public String digest(Map<String, ?> map, Set<String> excludedKeys) {
+
+        md.reset();
+        update(map, excludedKeys);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(md.digest());
+
+    }
+
+    private void update(Object obj, Set<String> excludedKeys) {
+
+        //Keys and scalars are length-prefixed so that no two different structures feed the same bytes
+        if (obj instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) obj;
+            md.update((byte) '{');
+
+            for (String key : new TreeSet<>(map.keySet().stream().map(String::valueOf).toList())) {
+                if (!excludedKeys.contains(key)) {
+                    updateString(key);
+                    update(map.get(key), Collections.emptySet());
+                }
+            }
+            md.update((byte) '}');
+
+        } else if (obj instanceof Collection) {
+            md.update((byte) '[');
+            for (Object item : (Collection<?>) obj) {
+                update(item, Collections.emptySet());
+            }
+            md.update((byte) ']');
+
+        } else if (obj == null) {
+            md.update((byte) 'n');
+        } else {
+            //The type initial avoids collisions like "1" vs. 1
+            md.update((byte) obj.getClass().getSimpleName().charAt(0));
+            updateString(obj.toString());
+        }
+
+    }
+
+    private void updateString(String value) {
+
+        byte[] bytes = value.getBytes(UTF_8);
+        int length = bytes.length;
+        md.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length });
+        md.update(bytes);
+
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.jans.cedarling.opensearch.cache;
+
+import java.util.Objects;
+
+/**
+ * Identifies a Cedarling decision: who (principal fingerprint) attempts what (action) on which kind of
+ * resource (entity type plus a digest of the resource attributes)
+ */
+public final class DecisionKey {
+
+    private final String principal;
+    private final String action;
+    private final String entityType;
+    private final String attributesDigest;
+    private final int hash;
+
+    public DecisionKey(String principal, String action, String entityType, String attributesDigest) {
+        this.principal = principal;
+        this.action = action;
+        this.entityType = entityType;
+        this.attributesDigest = attributesDigest;
+        hash = Objects.hash(principal, action, entityType, attributesDigest);
+    }
+
+    /**
+     * Roughly estimates the memory footprint of this key
+     * @return Size in bytes
+     */
+    public long weight() {
+        return 64 + 2L * (principal.length() + action.length() + entityType.length() + attributesDigest.length());
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj) return true;
+        if (!(obj instanceof DecisionKey)) return false;
+
+        DecisionKey other = (DecisionKey) obj;
+        return hash == other.hash && attributesDigest.equals(other.attributesDigest)
+            && principal.equals(other.principal) && entityType.equals(other.entityType)
+            && action.equals(other.action);
+
+    }
+
+}
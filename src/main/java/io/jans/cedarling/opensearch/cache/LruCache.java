@@ -0,0 +1,198 @@
+package io.jans.cedarling.opensearch.cache;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * A thread-safe cache with least-recently-used eviction. Entries are bounded by count and (optionally) by weight,
+ * and every entry carries its own expiration time. Keys are spread among a number of independently locked
+ * segments so that concurrent search threads seldom contend for the same lock. Clearing the cache swaps all
+ * segments at once: readers never observe a partially cleared cache
+ */
+public class LruCache<K, V> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final int segmentMaxEntries;
+    private final long segmentMaxWeight;
+    private final ToLongBiFunction<K, V> weigher;
+
+    private volatile Segment<K, V>[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache bounded by number of entries only
+     * @param maxEntries Maximum number of entries
+     */
+    public LruCache(int maxEntries) {
+        this(maxEntries, 0, null);
+    }
+
+    /**
+     * Creates a cache bounded by number of entries and total weight
+     * @param maxEntries Maximum number of entries
+     * @param maxWeight Maximum total weight. A non-positive value means no weight limit
+     * @param weigher Function computing the weight of an entry. Ignored if maxWeight is not positive
+     */
+    public LruCache(int maxEntries, long maxWeight, ToLongBiFunction<K, V> weigher) {
+
+        int n = Math.max(1, Math.min(MAX_SEGMENTS, maxEntries / MAX_SEGMENTS));
+        segmentMaxEntries = Math.max(1, (maxEntries + n - 1) / n);
+        segmentMaxWeight = maxWeight > 0 && weigher != null ? Math.max(1, (maxWeight + n - 1) / n) : 0;
+        this.weigher = weigher;
+        segments = newSegments(n);
+
+    }
+
+    /**
+     * Retrieves the value associated to a key
+     * @param key Key
+     * @return The value or null if there is no entry for the key or the entry has expired
+     */
+    public V get(K key) {
+
+        Segment<K, V> segment = segmentFor(key);
+        V value = null;
+
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    value = entry.value;
+                } else {
+                    segment.remove(key);
+                    segment.weight -= entry.weight;
+                }
+            }
+        }
+
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+
+    }
+
+    /**
+     * Adds or replaces an entry
+     * @param key Key
+     * @param value Value
+     * @param expiresAt Expiration time of the entry in milliseconds since epoch
+     */
+    public void put(K key, V value, long expiresAt) {
+
+        long weight = segmentMaxWeight > 0 ? weigher.applyAsLong(key, value) : 0;
+        if (segmentMaxWeight > 0 && weight > segmentMaxWeight) return;  //too heavy to be cached
+
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> previous = segment.put(key, new Entry<>(value, weight, expiresAt));
+            segment.weight += weight - (previous == null ? 0 : previous.weight);
+
+            //The iteration order of an access-ordered LinkedHashMap is least-recently accessed first
+            Iterator<Entry<V>> it = segment.values().iterator();
+            while (it.hasNext() && (segment.size() > segmentMaxEntries ||
+                    (segmentMaxWeight > 0 && segment.weight > segmentMaxWeight))) {
+
+                segment.weight -= it.next().weight;
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+    }
+
+    /**
+     * Drops all entries of this cache
+     */
+    public void clear() {
+        segments = newSegments(segments.length);
+    }
+
+    public int size() {
+
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Computes the ratio of lookups that found a valid entry
+     * @return A number between 0 and 1, or -1 if no lookups have been made
+     */
+    public double getHitRatio() {
+
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? -1 : 1.0d * h / total;
+
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+
+        Segment<K, V>[] current = segments;
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return current[(h & 0x7fffffff) % current.length];
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private Segment<K, V>[] newSegments(int n) {
+
+        Segment<K, V>[] array = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            array[i] = new Segment<>();
+        }
+        return array;
+
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+
+        private long weight;
+
+        Segment() {
+            super(16, 0.75f, true);
+        }
+
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+        private final long weight;
+        private final long expiresAt;
+
+        Entry(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+package io.jans.cedarling.opensearch.log;
+
+import io.jans.cedarling.opensearch.*;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.threadpool.ThreadPool;
+
+/**
+ * Writes the Cedarling logs of denied decisions to the plugin log without slowing searches down. Search threads
+ * only decide whether a denial is sampled and, if so, enqueue its request ID in a lock-free ring buffer. A
+ * background task drains the buffer periodically, fetches the Cedarling logs of every entry, and writes them
+ * to the "io.jans.cedarling.opensearch.decisions" logger at debug level. Nothing is sampled unless that level is
+ * enabled for the logger. When the buffer is full, entries are dropped and counted
+ */
+public class DecisionLog {
+
+    public static final String LOGGER_NAME = "io.jans.cedarling.opensearch.decisions";
+
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final TimeValue DRAIN_INTERVAL = TimeValue.timeValueMillis(200);
+
+    private static DecisionLog instance = new DecisionLog();
+
+    private Logger logger = LogManager.getLogger(getClass());
+    private Logger decisionsLogger = LogManager.getLogger(LOGGER_NAME);
+
+    private final RingBuffer<Entry> buffer = new RingBuffer<>(CAPACITY);
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    private volatile double defaultRate = 1.0d;
+    private volatile String principalClaim = "sub";
+    private volatile Map<String, Double> principalRates = Collections.emptyMap();
+    private volatile Map<String, Double> indexRates = Collections.emptyMap();
+
+    private DecisionLog() { }
+
+    public static DecisionLog getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts the periodic draining of the buffer
+     * @param threadPool Node thread pool
+     */
+    public void start(ThreadPool threadPool) {
+        threadPool.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL, ThreadPool.Names.GENERIC);
+    }
+
+    /**
+     * Applies the sampling rates found in the plugin settings
+     * @param pluginSettings Plugin settings
+     */
+    public void configure(PluginSettings pluginSettings) {
+        defaultRate = pluginSettings.getDecisionLogSampleRate();
+        principalClaim = pluginSettings.getDecisionLogPrincipalClaim();
+        principalRates = Map.copyOf(pluginSettings.getDecisionLogPrincipalRates());
+        indexRates = Map.copyOf(pluginSettings.getDecisionLogIndexRates());
+    }
+
+    /**
+     * Finds the sampling rate configured for the principal of a request, if any. Tokens are searched in no
+     * particular order for the principal claim configured
+     * @param tokens Tokens of the request
+     * @return A rate, or NaN if there is no rate specific to the principal
+     */
+    public double principalRate(TokenBundle tokens) {
+
+        Map<String, Double> rates = principalRates;
+        if (rates.isEmpty()) return Double.NaN;
+
+        for (JSONObject claims : tokens.getClaims().values()) {
+            Double rate = rates.get(claims.optString(principalClaim, null));
+            if (rate != null) return rate;
+        }
+        return Double.NaN;
+
+    }
+
+    /**
+     * Determines the sampling rate applicable to a resource. Principal rates take precedence over index rates,
+     * and these over the default rate
+     * @param principalRate Rate returned by principalRate
+     * @param resource Resource
+     * @return A rate
+     */
+    public double sampleRate(double principalRate, JSONObject resource) {
+
+        if (!Double.isNaN(principalRate)) return principalRate;
+
+        Map<String, Double> rates = indexRates;
+        if (rates.isEmpty()) return defaultRate;
+
+        //Entity types are built as prefix::index
+        String entityType = resource.getJSONObject(CedarlingService.ENTITY_MAPPING_KEY).getString("entity_type");
+        return rates.getOrDefault(entityType.substring(entityType.lastIndexOf("::") + 2), defaultRate);
+
+    }
+
+    /**
+     * Enqueues a denied decision for logging, if sampled
+     * @param engine Engine that made the decision
+     * @param stripe Index of the engine instance that made the decision
+     * @param requestId Cedarling request ID of the decision
+     * @param rate Sampling rate
+     */
+    public void offer(CedarlingEngine engine, int stripe, String requestId, double rate) {
+
+        if (rate <= 0 || !decisionsLogger.isDebugEnabled()
+                || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) return;
+
+        sampled.increment();
+        //The engine must not be closed before its logs are fetched
+        if (!engine.tryIncRef()) return;
+
+        if (!buffer.offer(new Entry(engine, stripe, requestId))) {
+            engine.decRef();
+            dropped.increment();
+        }
+
+    }
+
+    public long getSampled() {
+        return sampled.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    private void drain() {
+
+        int n = 0;
+        Entry entry;
+        //Bounded so that a busy node does not monopolize a generic thread
+        while (n < BATCH_SIZE && (entry = buffer.poll()) != null) {
+            n++;
+            try {
+                List<String> lines = entry.engine.getLogsByRequestId(entry.stripe, entry.requestId);
+                decisionsLogger.debug("Unauthorized decision {}{}", entry.requestId,
+                        lines.isEmpty() ? ". No logs available" : "");
+                lines.forEach(line -> decisionsLogger.debug("   {}", line));
+                written.increment();
+            } catch (Exception e) {
+                logger.warn("Logs of decision {} could not be retrieved: {}", entry.requestId, e.getMessage());
+            } finally {
+                entry.engine.decRef();
+            }
+        }
+
+    }
+
+    private static class Entry {
+
+        final CedarlingEngine engine;
+        final int stripe;
+        final String requestId;
+
+        Entry(CedarlingEngine engine, int stripe, String requestId) {
+            this.engine = engine;
+            this.stripe = stripe;
+            this.requestId = requestId;
+        }
+
+    }
+
+}
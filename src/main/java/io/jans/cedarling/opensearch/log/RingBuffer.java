@@ -0,0 +1,96 @@
+package io.jans.cedarling.opensearch.log;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by an array. Every slot carries a sequence
+ * number which tells producers and consumers whether the slot is ready for them, so neither side ever blocks:
+ * offering to a full buffer and polling an empty one simply fail
+ */
+public class RingBuffer<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a buffer
+     * @param capacity Minimum capacity. The actual capacity is the next power of two
+     */
+    public RingBuffer(int capacity) {
+
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+    }
+
+    /**
+     * Adds an item at the end of the buffer
+     * @param item The item
+     * @return False if the buffer is full
+     */
+    public boolean offer(T item) {
+
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.set(index, item);
+                    //publish the slot to consumers
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                //another producer took the slot
+                pos = tail.get();
+            }
+        }
+
+    }
+
+    /**
+     * Removes the item at the head of the buffer
+     * @return The item, or null if the buffer is empty
+     */
+    public T poll() {
+
+        long pos = head.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T item = items.getAndSet(index, null);
+                    //hand the slot back to producers for the next lap
+                    sequences.set(index, pos + mask + 1);
+                    return item;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+}
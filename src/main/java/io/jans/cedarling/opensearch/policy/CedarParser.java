@@ -0,0 +1,542 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+/**
+ * A recursive-descent parser of Cedar policies in human-readable syntax. It covers the policy and expression
+ * grammar of Cedar 4 (annotations, scopes, when/unless clauses, all operators, entity literals, sets, records,
+ * method and extension function calls). Schemas are not needed nor handled
+ */
+public class CedarParser {
+
+    /** Stands for an escaped star (\*) in strings, so that like patterns can tell it from a wildcard */
+    static final char LITERAL_STAR = '\uFFFF';
+
+    private static final Set<String> VARIABLES = Set.of("principal", "action", "resource", "context");
+    private static final Set<String> RELATIONAL = Set.of("==", "!=", "<", "<=", ">", ">=");
+
+    private final List<Token> tokens;
+    private int pos;
+
+    private CedarParser(String text) {
+        tokens = tokenize(text);
+    }
+
+    /**
+     * Parses a text holding zero or more policies
+     * @param text Policies source
+     * @return A list of policies in the order they appear
+     * @throws IllegalArgumentException If the text is not valid Cedar
+     */
+    public static List<Policy> parsePolicies(String text) {
+
+        CedarParser parser = new CedarParser(text);
+        List<Policy> policies = new ArrayList<>();
+        while (!parser.peekIs(TokenType.EOF)) {
+            policies.add(parser.policy("policy" + policies.size()));
+        }
+        return policies;
+
+    }
+
+    /**
+     * Parses an entity literal
+     * @param text Entity in Cedar syntax, e.g. Jans::Action::"Search"
+     * @return An EntityRef
+     * @throws IllegalArgumentException If the text is not an entity literal
+     */
+    public static EntityRef parseEntity(String text) {
+
+        CedarParser parser = new CedarParser(text);
+        EntityRef ref = parser.entity();
+        parser.expect(TokenType.EOF);
+        return ref;
+
+    }
+
+    private Policy policy(String defaultId) {
+
+        String id = defaultId;
+        while (accept("@")) {
+            String key = expect(TokenType.IDENT).text;
+            String value = null;
+            if (accept("(")) {
+                value = expect(TokenType.STRING).text;
+                expectSymbol(")");
+            }
+            if (key.equals("id") && value != null) {
+                id = value;
+            }
+        }
+
+        String effect = expect(TokenType.IDENT).text;
+        if (!effect.equals("permit") && !effect.equals("forbid")) {
+            throw error("permit or forbid expected");
+        }
+
+        boolean[] template = new boolean[1];
+        List<Expr> conjuncts = new ArrayList<>();
+        expectSymbol("(");
+        scope("principal", conjuncts, template);
+        expectSymbol(",");
+        scope("action", conjuncts, template);
+        expectSymbol(",");
+        scope("resource", conjuncts, template);
+        expectSymbol(")");
+
+        while (peekIs(TokenType.IDENT)) {
+            String clause = next().text;
+            if (!clause.equals("when") && !clause.equals("unless")) {
+                throw error("when or unless expected");
+            }
+            expectSymbol("{");
+            Expr condition = expr();
+            expectSymbol("}");
+            conjuncts.add(clause.equals("when") ? condition : Expr.of(Expr.Kind.NOT, condition));
+        }
+        expectSymbol(";");
+
+        Expr condition = conjuncts.isEmpty() ? Expr.literal(true)
+                : conjuncts.size() == 1 ? conjuncts.get(0) : Expr.of(Expr.Kind.AND, conjuncts);
+        return new Policy(id, effect.equals("permit") ? Policy.Effect.PERMIT : Policy.Effect.FORBID,
+                condition, template[0]);
+
+    }
+
+    private void scope(String variable, List<Expr> conjuncts, boolean[] template) {
+
+        Token t = expect(TokenType.IDENT);
+        if (!t.text.equals(variable)) {
+            throw error(variable + " expected");
+        }
+        Expr var = Expr.var(variable);
+
+        if (accept("==")) {
+            conjuncts.add(Expr.named(Expr.Kind.BINARY, "==", var, scopeTarget(template)));
+        } else if (peekIsIdent("in")) {
+            next();
+            Expr target;
+            if (variable.equals("action") && accept("[")) {
+                List<Expr> elements = new ArrayList<>();
+                if (!accept("]")) {
+                    do {
+                        elements.add(Expr.entity(entity()));
+                    } while (accept(","));
+                    expectSymbol("]");
+                }
+                target = Expr.of(Expr.Kind.SET, elements);
+            } else {
+                target = scopeTarget(template);
+            }
+            conjuncts.add(Expr.named(Expr.Kind.BINARY, "in", var, target));
+        } else if (peekIsIdent("is")) {
+            next();
+            String type = path();
+            if (peekIsIdent("in")) {
+                next();
+                conjuncts.add(Expr.named(Expr.Kind.IS, type, var, scopeTarget(template)));
+            } else {
+                conjuncts.add(Expr.named(Expr.Kind.IS, type, var));
+            }
+        }
+
+    }
+
+    private Expr scopeTarget(boolean[] template) {
+
+        if (accept("?")) {
+            //A slot: the policy is a template
+            template[0] = true;
+            return Expr.var("?" + expect(TokenType.IDENT).text);
+        }
+        return Expr.entity(entity());
+
+    }
+
+    private Expr expr() {
+
+        if (peekIsIdent("if")) {
+            next();
+            Expr condition = expr();
+            expectIdent("then");
+            Expr then = expr();
+            expectIdent("else");
+            return Expr.of(Expr.Kind.IF, condition, then, expr());
+        }
+        return or();
+
+    }
+
+    private Expr or() {
+
+        Expr left = and();
+        if (!peekIsSymbol("||")) return left;
+
+        List<Expr> operands = new ArrayList<>(List.of(left));
+        while (accept("||")) {
+            operands.add(and());
+        }
+        return Expr.of(Expr.Kind.OR, operands);
+
+    }
+
+    private Expr and() {
+
+        Expr left = relation();
+        if (!peekIsSymbol("&&")) return left;
+
+        List<Expr> operands = new ArrayList<>(List.of(left));
+        while (accept("&&")) {
+            operands.add(relation());
+        }
+        return Expr.of(Expr.Kind.AND, operands);
+
+    }
+
+    private Expr relation() {
+
+        Expr left = add();
+        Token t = peek();
+
+        if (t.type == TokenType.SYMBOL && RELATIONAL.contains(t.text)) {
+            next();
+            return Expr.named(Expr.Kind.BINARY, t.text, left, add());
+        }
+        if (t.type != TokenType.IDENT) return left;
+
+        switch (t.text) {
+            case "in":
+                next();
+                return Expr.named(Expr.Kind.BINARY, "in", left, add());
+            case "has":
+                next();
+                //"e has a.b" stands for "e has a && e.a has b"
+                String attr = attributeName();
+                Expr result = Expr.named(Expr.Kind.HAS, attr, left);
+                Expr target = left;
+                while (accept(".")) {
+                    target = Expr.named(Expr.Kind.ATTR, attr, target);
+                    attr = attributeName();
+                    result = Expr.of(Expr.Kind.AND, result, Expr.named(Expr.Kind.HAS, attr, target));
+                }
+                return result;
+            case "like":
+                next();
+                return Expr.like(left, expect(TokenType.STRING).text);
+            case "is":
+                next();
+                String type = path();
+                if (peekIsIdent("in")) {
+                    next();
+                    return Expr.named(Expr.Kind.IS, type, left, add());
+                }
+                return Expr.named(Expr.Kind.IS, type, left);
+            default:
+                return left;
+        }
+
+    }
+
+    private Expr add() {
+
+        Expr left = mult();
+        while (peekIsSymbol("+") || peekIsSymbol("-")) {
+            String op = next().text;
+            left = Expr.named(Expr.Kind.BINARY, op, left, mult());
+        }
+        return left;
+
+    }
+
+    private Expr mult() {
+
+        Expr left = unary();
+        while (accept("*")) {
+            left = Expr.named(Expr.Kind.BINARY, "*", left, unary());
+        }
+        return left;
+
+    }
+
+    private Expr unary() {
+
+        if (accept("!")) return Expr.of(Expr.Kind.NOT, unary());
+        if (accept("-")) {
+            //Negative literals are folded so that the minimum long can be expressed
+            if (peekIs(TokenType.INT)) return Expr.literal(Long.parseLong("-" + next().text));
+            return Expr.of(Expr.Kind.NEG, unary());
+        }
+        return member();
+
+    }
+
+    private Expr member() {
+
+        Expr e = primary();
+        while (true) {
+            if (accept(".")) {
+                String name = expect(TokenType.IDENT).text;
+                if (accept("(")) {
+                    List<Expr> args = new ArrayList<>(List.of(e));
+                    args.addAll(exprList(")"));
+                    e = Expr.named(Expr.Kind.CALL, name, args);
+                } else {
+                    e = Expr.named(Expr.Kind.ATTR, name, e);
+                }
+            } else if (accept("[")) {
+                String name = expect(TokenType.STRING).text;
+                expectSymbol("]");
+                e = Expr.named(Expr.Kind.ATTR, name, e);
+            } else {
+                return e;
+            }
+        }
+
+    }
+
+    private Expr primary() {
+
+        Token t = peek();
+        switch (t.type) {
+            case INT:
+                next();
+                return Expr.literal(Long.parseLong(t.text));
+            case STRING:
+                next();
+                return Expr.literal(t.text);
+            case SYMBOL:
+                if (accept("(")) {
+                    Expr e = expr();
+                    expectSymbol(")");
+                    return e;
+                }
+                if (accept("[")) return Expr.of(Expr.Kind.SET, exprList("]"));
+                if (accept("{")) return record();
+                throw error("Unexpected " + t.text);
+            case IDENT:
+                if (t.text.equals("true") || t.text.equals("false")) {
+                    next();
+                    return Expr.literal(Boolean.valueOf(t.text));
+                }
+                if (VARIABLES.contains(t.text)) {
+                    next();
+                    return Expr.var(t.text);
+                }
+                StringBuilder path = new StringBuilder(next().text);
+                while (accept("::")) {
+                    if (peekIs(TokenType.STRING)) {
+                        return Expr.entity(new EntityRef(path.toString(), next().text));
+                    }
+                    path.append("::").append(expect(TokenType.IDENT).text);
+                }
+                expectSymbol("(");
+                return Expr.named(Expr.Kind.EXT, path.toString(), exprList(")"));
+            default:
+                throw error("Unexpected end of input");
+        }
+
+    }
+
+    private Expr record() {
+
+        List<String> keys = new ArrayList<>();
+        List<Expr> values = new ArrayList<>();
+        if (accept("}")) return Expr.record(keys, values);
+        do {
+            if (peekIsSymbol("}")) break;   //trailing comma
+            keys.add(attributeName());
+            expectSymbol(":");
+            values.add(expr());
+        } while (accept(","));
+        expectSymbol("}");
+        return Expr.record(keys, values);
+
+    }
+
+    private List<Expr> exprList(String closing) {
+
+        List<Expr> list = new ArrayList<>();
+        if (accept(closing)) return list;
+        do {
+            list.add(expr());
+        } while (accept(","));
+        expectSymbol(closing);
+        return list;
+
+    }
+
+    private EntityRef entity() {
+
+        StringBuilder path = new StringBuilder(expect(TokenType.IDENT).text);
+        while (true) {
+            expectSymbol("::");
+            if (peekIs(TokenType.STRING)) return new EntityRef(path.toString(), next().text);
+            path.append("::").append(expect(TokenType.IDENT).text);
+        }
+
+    }
+
+    private String path() {
+
+        StringBuilder path = new StringBuilder(expect(TokenType.IDENT).text);
+        while (accept("::")) {
+            path.append("::").append(expect(TokenType.IDENT).text);
+        }
+        return path.toString();
+
+    }
+
+    private String attributeName() {
+        Token t = next();
+        if (t.type != TokenType.IDENT && t.type != TokenType.STRING) throw error("Attribute name expected");
+        return t.text;
+    }
+
+    private Token peek() {
+        return tokens.get(pos);
+    }
+
+    private Token next() {
+        Token t = tokens.get(pos);
+        if (t.type != TokenType.EOF) {
+            pos++;
+        }
+        return t;
+    }
+
+    private boolean peekIs(TokenType type) {
+        return peek().type == type;
+    }
+
+    private boolean peekIsSymbol(String symbol) {
+        Token t = peek();
+        return t.type == TokenType.SYMBOL && t.text.equals(symbol);
+    }
+
+    private boolean peekIsIdent(String ident) {
+        Token t = peek();
+        return t.type == TokenType.IDENT && t.text.equals(ident);
+    }
+
+    private boolean accept(String symbol) {
+        if (!peekIsSymbol(symbol)) return false;
+        pos++;
+        return true;
+    }
+
+    private Token expect(TokenType type) {
+        if (!peekIs(type)) throw error(type + " expected");
+        return next();
+    }
+
+    private void expectSymbol(String symbol) {
+        if (!accept(symbol)) throw error("'" + symbol + "' expected");
+    }
+
+    private void expectIdent(String ident) {
+        if (!peekIsIdent(ident)) throw error("'" + ident + "' expected");
+        next();
+    }
+
+    private IllegalArgumentException error(String message) {
+        Token t = peek();
+        return new IllegalArgumentException(message + " at line " + t.line + (t.type == TokenType.EOF ? ""
+                : " near '" + t.text + "'"));
+    }
+
+    static List<Token> tokenize(String text) {
+
+        List<Token> list = new ArrayList<>();
+        int i = 0, line = 1, len = text.length();
+
+        while (i < len) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                line++;
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '/' && i + 1 < len && text.charAt(i + 1) == '/') {
+                while (i < len && text.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i < len && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+                    i++;
+                }
+                list.add(new Token(TokenType.IDENT, text.substring(start, i), line));
+            } else if (Character.isDigit(c)) {
+                int start = i;
+                while (i < len && Character.isDigit(text.charAt(i))) {
+                    i++;
+                }
+                list.add(new Token(TokenType.INT, text.substring(start, i), line));
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (i < len && text.charAt(i) != '"') {
+                    char ch = text.charAt(i++);
+                    if (ch == '\\' && i < len) {
+                        char esc = text.charAt(i++);
+                        switch (esc) {
+                            case 'n': sb.append('\n'); break;
+                            case 'r': sb.append('\r'); break;
+                            case 't': sb.append('\t'); break;
+                            case '0': sb.append('\0'); break;
+                            case '*': sb.append(LITERAL_STAR); break;
+                            case 'u':
+                                int close = text.indexOf('}', i);
+                                if (i >= len || text.charAt(i) != '{' || close < 0) {
+                                    throw new IllegalArgumentException("Bad unicode escape at line " + line);
+                                }
+                                sb.appendCodePoint(Integer.parseInt(text.substring(i + 1, close), 16));
+                                i = close + 1;
+                                break;
+                            default: sb.append(esc);
+                        }
+                    } else {
+                        if (ch == '\n') {
+                            line++;
+                        }
+                        sb.append(ch);
+                    }
+                }
+                if (i >= len) throw new IllegalArgumentException("Unterminated string at line " + line);
+                i++;
+                list.add(new Token(TokenType.STRING, sb.toString(), line));
+            } else {
+                String two = i + 1 < len ? text.substring(i, i + 2) : "";
+                if (Set.of("::", "==", "!=", "<=", ">=", "&&", "||").contains(two)) {
+                    list.add(new Token(TokenType.SYMBOL, two, line));
+                    i += 2;
+                } else if ("()[]{},;.:@!-+*<>?=".indexOf(c) >= 0) {
+                    list.add(new Token(TokenType.SYMBOL, String.valueOf(c), line));
+                    i++;
+                } else {
+                    throw new IllegalArgumentException("Unexpected character '" + c + "' at line " + line);
+                }
+            }
+        }
+        list.add(new Token(TokenType.EOF, "", line));
+        return list;
+
+    }
+
+    enum TokenType { IDENT, INT, STRING, SYMBOL, EOF }
+
+    static class Token {
+
+        final TokenType type;
+        final String text;
+        final int line;
+
+        Token(TokenType type, String text, int line) {
+            this.type = type;
+            this.text = text;
+            this.line = line;
+        }
+
+    }
+
+}
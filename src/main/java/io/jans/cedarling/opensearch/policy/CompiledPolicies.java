@@ -0,0 +1,171 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+
+/**
+ * Decides requests in Java for the policies of a policy store, without calling Cedarling. This is only possible
+ * for a subset of Cedar: the policies that may apply to a request must be compilable (see PolicyCompiler), and
+ * the document must have exactly the shape the schema declares for its entity type, so that the resource entity
+ * Cedarling would build is known. In any other case no decision is made and the caller must resort to Cedarling.
+ * <p>
+ * Tokens are not validated here: callers must confirm that Cedarling accepts the tokens of a request before
+ * relying on these decisions
+ */
+public class CompiledPolicies {
+
+    private static Logger logger = LogManager.getLogger(CompiledPolicies.class);
+
+    private final List<Policy> policies;
+    private final List<PolicyCompiler.Compiled> compiled;
+    private final boolean actionGroups;
+    private final SchemaShapes shapes;
+
+    private CompiledPolicies(List<Policy> policies, List<PolicyCompiler.Compiled> compiled, boolean actionGroups,
+            SchemaShapes shapes) {
+        this.policies = policies;
+        this.compiled = compiled;
+        this.actionGroups = actionGroups;
+        this.shapes = shapes;
+    }
+
+    /**
+     * Compiles the policies an analyzer was loaded with. Policies outside the supported subset are kept
+     * uncompiled: requests they may apply to are not decided
+     * @param analyzer Policy analyzer
+     * @return A CompiledPolicies instance, or null if the schema of the policy store is missing or unsupported
+     */
+    public static CompiledPolicies from(PolicyAnalyzer analyzer) {
+
+        if (analyzer.schema == null || analyzer.schema.isBlank()) {
+            logger.info("Policy store has no schema. Policies will not be compiled");
+            return null;
+        }
+        SchemaShapes shapes;
+        try {
+            shapes = SchemaShapes.parse(analyzer.schema);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Schema could not be read. Policies will not be compiled: {}", e.getMessage());
+            return null;
+        }
+
+        PolicyCompiler compiler = new PolicyCompiler(analyzer.actionGroups);
+        List<PolicyCompiler.Compiled> compiled = new ArrayList<>();
+        for (Policy policy : analyzer.policies) {
+            try {
+                compiled.add(compiler.compile(policy.getCondition()));
+            } catch (IllegalArgumentException e) {
+                logger.debug("Policy {} not compiled: {}", policy.getId(), e.getMessage());
+                compiled.add(null);
+            }
+        }
+        CompiledPolicies cp = new CompiledPolicies(analyzer.policies, compiled, analyzer.actionGroups, shapes);
+        logger.info("{} of {} policies compiled", cp.getCompiledCount(), compiled.size());
+        return cp;
+
+    }
+
+    public int getCompiledCount() {
+        return (int) compiled.stream().filter(Objects::nonNull).count();
+    }
+
+    /**
+     * Prepares the evaluation of the resources of a request. Policies that cannot apply to the request whatever
+     * the resource are left aside (see PartialEvaluator)
+     * @param action Cedar action, e.g. Jans::Action::"Search"
+     * @param entityType Entity type of the resources
+     * @param claims Decoded claims of the tokens, keyed by token mapping
+     * @param context Context of the request
+     * @return An Evaluator, or null if the entity type is not declared in the schema or some policy that may
+     * apply was not compiled
+     */
+    public Evaluator forRequest(String action, String entityType, Map<String, JSONObject> claims,
+            JSONObject context) {
+
+        SchemaShapes.Type shape = shapes.shapeOf(entityType);
+        if (shape == null) return null;
+
+        EntityRef actionRef;
+        try {
+            actionRef = CedarParser.parseEntity(action);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        Map<String, Object> contextRecord = PolicyAnalyzer.contextRecord(claims, context);
+        PartialEvaluator partial = new PartialEvaluator(actionRef, entityType, contextRecord, actionGroups);
+
+        List<PolicyCompiler.Compiled> permits = new ArrayList<>();
+        List<PolicyCompiler.Compiled> forbids = new ArrayList<>();
+        for (int i = 0; i < policies.size(); i++) {
+            Policy policy = policies.get(i);
+            Object applies = partial.eval(policy.getCondition());
+            //Conditions that are false or fail for any resource are exactly those of policies that do not apply
+            if (Boolean.FALSE.equals(applies) || applies == PartialEvaluator.ERROR) continue;
+
+            if (compiled.get(i) == null) return null;
+            (policy.getEffect() == Policy.Effect.PERMIT ? permits : forbids).add(compiled.get(i));
+        }
+        return new Evaluator(actionRef, entityType, contextRecord, shape, permits, forbids);
+
+    }
+
+    /**
+     * Decides the resources of a single request
+     */
+    public class Evaluator {
+
+        private final EntityRef action;
+        private final String entityType;
+        private final Map<String, Object> context;
+        private final SchemaShapes.Type shape;
+        private final List<PolicyCompiler.Compiled> permits;
+        private final List<PolicyCompiler.Compiled> forbids;
+
+        private Evaluator(EntityRef action, String entityType, Map<String, Object> context, SchemaShapes.Type shape,
+                List<PolicyCompiler.Compiled> permits, List<PolicyCompiler.Compiled> forbids) {
+            this.action = action;
+            this.entityType = entityType;
+            this.context = context;
+            this.shape = shape;
+            this.permits = permits;
+            this.forbids = forbids;
+        }
+
+        /**
+         * Decides a resource
+         * @param id Identifier of the resource
+         * @param document Attributes of the resource
+         * @return The decision, or null if it could not be made here
+         */
+        @SuppressWarnings("unchecked")
+        public Boolean decide(String id, JSONObject document) {
+
+            Object attributes = PolicyAnalyzer.toValue(document);
+            if (!shapes.conforms(attributes, shape)) return null;
+
+            PolicyCompiler.Env env = new PolicyCompiler.Env(action, context,
+                    new PolicyCompiler.ResourceEntity(new EntityRef(entityType, id), (Map<String, Object>) attributes));
+
+            //Errors make a policy not apply
+            boolean unknown = false;
+            for (PolicyCompiler.Compiled forbid : forbids) {
+                Object applies = forbid.eval(env);
+                if (Boolean.TRUE.equals(applies)) return false;
+                unknown |= applies == PartialEvaluator.UNKNOWN;
+            }
+            if (unknown) return null;
+
+            for (PolicyCompiler.Compiled permit : permits) {
+                Object applies = permit.eval(env);
+                if (Boolean.TRUE.equals(applies)) return true;
+                unknown |= applies == PartialEvaluator.UNKNOWN;
+            }
+            return unknown ? null : false;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.Objects;
+
+/**
+ * A reference to a Cedar entity, like Jans::Action::"Search"
+ */
+public class EntityRef {
+
+    private final String type;
+    private final String id;
+
+    public EntityRef(String type, String id) {
+        this.type = type;
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EntityRef)) return false;
+        EntityRef other = (EntityRef) o;
+        return type.equals(other.type) && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, id);
+    }
+
+    @Override
+    public String toString() {
+        return type + "::\"" + id + "\"";
+    }
+
+}
@@ -0,0 +1,114 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+/**
+ * A node of the syntax tree of a Cedar expression. A single node class is used for all kinds of expressions:
+ * the meaning of fields depends on the kind. Policy scopes are expressed with these nodes too (see Policy)
+ */
+public class Expr {
+
+    public enum Kind {
+        /** A boolean, long or string literal held in value */
+        LITERAL,
+        /** principal, action, resource or context, held in name */
+        VAR,
+        /** An entity literal held in value */
+        ENTITY,
+        /** A set whose elements are the children */
+        SET,
+        /** A record whose keys are in names and values in children */
+        RECORD,
+        AND,
+        OR,
+        NOT,
+        NEG,
+        /** if children[0] then children[1] else children[2] */
+        IF,
+        /** A binary operator (==, !=, <, <=, >, >=, in, +, -, *) held in name, applied to the two children */
+        BINARY,
+        /** children[0] has name */
+        HAS,
+        /** children[0] like value (a pattern where * is a wildcard) */
+        LIKE,
+        /** children[0] is name, optionally followed by "in children[1]" */
+        IS,
+        /** Attribute name of children[0] */
+        ATTR,
+        /** Method name called on children[0], with the rest of children as arguments */
+        CALL,
+        /** Extension function name (like ip or decimal) applied to the children */
+        EXT
+    }
+
+    final Kind kind;
+    final String name;
+    final Object value;
+    final List<Expr> children;
+    final List<String> names;
+
+    private Expr(Kind kind, String name, Object value, List<Expr> children, List<String> names) {
+        this.kind = kind;
+        this.name = name;
+        this.value = value;
+        this.children = children;
+        this.names = names;
+    }
+
+    static Expr literal(Object value) {
+        return new Expr(Kind.LITERAL, null, value, List.of(), null);
+    }
+
+    static Expr var(String name) {
+        return new Expr(Kind.VAR, name, null, List.of(), null);
+    }
+
+    static Expr entity(EntityRef ref) {
+        return new Expr(Kind.ENTITY, null, ref, List.of(), null);
+    }
+
+    static Expr record(List<String> keys, List<Expr> values) {
+        return new Expr(Kind.RECORD, null, null, values, keys);
+    }
+
+    static Expr of(Kind kind, Expr... children) {
+        return new Expr(kind, null, null, List.of(children), null);
+    }
+
+    static Expr of(Kind kind, List<Expr> children) {
+        return new Expr(kind, null, null, children, null);
+    }
+
+    static Expr named(Kind kind, String name, Expr... children) {
+        return new Expr(kind, name, null, List.of(children), null);
+    }
+
+    static Expr named(Kind kind, String name, List<Expr> children) {
+        return new Expr(kind, name, null, children, null);
+    }
+
+    static Expr like(Expr child, String pattern) {
+        return new Expr(Kind.LIKE, null, pattern, List.of(child), null);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public List<Expr> getChildren() {
+        return children;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+}
@@ -0,0 +1,171 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+/**
+ * Translates the residual of policy conditions (what remains once the action, the context, and the tokens are
+ * known, see PartialEvaluator) into a ResourceFilter. Only comparisons of resource attributes with known values
+ * are translated, and only if the schema declares the attribute with the type of such value: anything else is
+ * taken as matching every document. Negations are never translated. This way, a filter never leaves out a
+ * document for which the condition may hold
+ */
+class FilterTranslator {
+
+    private static final Set<String> RANGES = Set.of("<", "<=", ">", ">=");
+    private static final Map<String, String> FLIPPED = Map.of("<", ">", "<=", ">=", ">", "<", ">=", "<=", "==", "==");
+
+    private final PartialEvaluator evaluator;
+    private final SchemaShapes shapes;
+    private final SchemaShapes.Type shape;
+
+    /**
+     * @param evaluator Evaluator for the request
+     * @param shapes Schema shapes, or null if the schema is not known
+     * @param shape Shape of the entity type of the resources, or null if not known
+     */
+    FilterTranslator(PartialEvaluator evaluator, SchemaShapes shapes, SchemaShapes.Type shape) {
+        this.evaluator = evaluator;
+        this.shapes = shapes;
+        this.shape = shape;
+    }
+
+    /**
+     * Translates a condition
+     * @param e Condition (a boolean expression)
+     * @return A filter every document for which the condition may evaluate to true matches
+     */
+    ResourceFilter translate(Expr e) {
+
+        Object v = evaluator.eval(e);
+        if (Boolean.TRUE.equals(v)) return ResourceFilter.ALL;
+        //False, errors, and non-boolean values: the condition does not hold for any resource
+        if (v != PartialEvaluator.UNKNOWN) return ResourceFilter.NONE;
+
+        switch (e.kind) {
+            case AND:
+                return ResourceFilter.and(e.children.stream().map(this::translate).toList());
+            case OR:
+                return ResourceFilter.or(e.children.stream().map(this::translate).toList());
+            case IF:
+                //The else branch is only taken if the condition is false, which is not modeled
+                return ResourceFilter.or(List.of(
+                        ResourceFilter.and(List.of(translate(e.children.get(0)), translate(e.children.get(1)))),
+                        translate(e.children.get(2))));
+            case BINARY:
+                return comparison(e);
+            case CALL:
+                return membership(e);
+            default:
+                return ResourceFilter.ALL;
+        }
+
+    }
+
+    private ResourceFilter comparison(Expr e) {
+
+        if (!e.name.equals("==") && !RANGES.contains(e.name)) return ResourceFilter.ALL;
+
+        Expr left = e.children.get(0), right = e.children.get(1);
+        String operator = e.name;
+        String field = fieldPath(left);
+        if (field == null) {
+            field = fieldPath(right);
+            right = left;
+            operator = FLIPPED.get(operator);
+        }
+        if (field == null) return ResourceFilter.ALL;
+
+        Object value = evaluator.eval(right);
+        SchemaShapes.Type type = fieldType(field);
+        if (!isScalar(value, type)) return ResourceFilter.ALL;
+
+        return operator.equals("==") ? ResourceFilter.equalTo(field, value)
+                : value instanceof Long ? ResourceFilter.range(field, operator, (Long) value) : ResourceFilter.ALL;
+
+    }
+
+    private ResourceFilter membership(Expr e) {
+
+        String field = fieldPath(e.children.get(0));
+        if (field == null || e.children.size() != 2) return ResourceFilter.ALL;
+
+        SchemaShapes.Type type = shapes == null ? null : shapes.resolve(fieldType(field));
+        if (type == null || type.kind != SchemaShapes.Type.Kind.SET) return ResourceFilter.ALL;
+        Object arg = evaluator.eval(e.children.get(1));
+
+        switch (e.name) {
+            case "contains":
+                return isScalar(arg, type.element) ? ResourceFilter.equalTo(field, arg) : ResourceFilter.ALL;
+            case "containsAny":
+                if (!(arg instanceof Set)) return ResourceFilter.ALL;
+                List<ResourceFilter> alternatives = new ArrayList<>();
+                for (Object item : (Set<?>) arg) {
+                    if (!isScalar(item, type.element)) return ResourceFilter.ALL;
+                    alternatives.add(ResourceFilter.equalTo(field, item));
+                }
+                return ResourceFilter.or(alternatives);
+            case "containsAll":
+                if (!(arg instanceof Set)) return ResourceFilter.ALL;
+                List<ResourceFilter> required = new ArrayList<>();
+                for (Object item : (Set<?>) arg) {
+                    if (!isScalar(item, type.element)) return ResourceFilter.ALL;
+                    required.add(ResourceFilter.equalTo(field, item));
+                }
+                return ResourceFilter.and(required);
+            default:
+                return ResourceFilter.ALL;
+        }
+
+    }
+
+    /**
+     * Whether a known value is a string, long or boolean that an attribute of the type given may be equal to
+     */
+    private boolean isScalar(Object value, SchemaShapes.Type type) {
+
+        type = shapes == null ? null : shapes.resolve(type);
+        if (type == null) return false;
+        switch (type.kind) {
+            case STRING:
+                return value instanceof String;
+            case LONG:
+                return value instanceof Long;
+            case BOOL:
+                return value instanceof Boolean;
+            default:
+                return false;
+        }
+
+    }
+
+    /**
+     * Gets the document field an expression like resource.a.b refers to
+     * @return A dot-separated path, or null if the expression is not an attribute of the resource
+     */
+    private static String fieldPath(Expr e) {
+
+        Deque<String> names = new ArrayDeque<>();
+        while (e.kind == Expr.Kind.ATTR) {
+            names.addFirst(e.name);
+            e = e.children.get(0);
+        }
+        //Attribute names containing dots cannot be told from nested fields
+        boolean valid = !names.isEmpty() && PartialEvaluator.isResource(e)
+                && names.stream().noneMatch(n -> n.contains("."));
+        return valid ? String.join(".", names) : null;
+
+    }
+
+    private SchemaShapes.Type fieldType(String field) {
+
+        SchemaShapes.Type type = shape;
+        for (String name : field.split("\\.")) {
+            type = shapes == null ? null : shapes.resolve(type);
+            if (type == null || type.kind != SchemaShapes.Type.Kind.RECORD) return null;
+            type = type.attributes.get(name);
+        }
+        return type;
+
+    }
+
+}
@@ -0,0 +1,388 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+/**
+ * Evaluates policy conditions for a request whose resource is not known, only its entity type. Besides regular
+ * values, expressions can evaluate to UNKNOWN (the outcome depends on the resource, the principal, or something
+ * this class cannot compute) or ERROR (Cedar would raise an error, so the policy does not apply).
+ * <p>
+ * UNKNOWN || true is taken as true. This is only exact if the resource-dependent operand does not raise an
+ * error, i.e. if the resource attributes it refers to are present and well-typed. The rest of rules are exact
+ */
+class PartialEvaluator {
+
+    static final Object UNKNOWN = new Object() {
+        @Override
+        public String toString() {
+            return "unknown";
+        }
+    };
+
+    static final Object ERROR = new Object() {
+        @Override
+        public String toString() {
+            return "error";
+        }
+    };
+
+    private final EntityRef action;
+    private final String resourceType;
+    private final Map<String, Object> context;
+    private final boolean actionGroups;
+
+    /**
+     * @param action Action of the request
+     * @param resourceType Entity type of the resources
+     * @param context Context record, as built by PolicyAnalyzer
+     * @param actionGroups Whether the schema declares action groups. If not, an action is only "in" itself
+     */
+    PartialEvaluator(EntityRef action, String resourceType, Map<String, Object> context, boolean actionGroups) {
+        this.action = action;
+        this.resourceType = resourceType;
+        this.context = context;
+        this.actionGroups = actionGroups;
+    }
+
+    Object eval(Expr e) {
+
+        switch (e.kind) {
+            case LITERAL:
+                return e.value;
+            case ENTITY:
+                return e.value;
+            case VAR:
+                return variable(e.name);
+            case SET:
+                Set<Object> set = new LinkedHashSet<>();
+                for (Expr child : e.children) {
+                    Object v = eval(child);
+                    if (v == UNKNOWN || v == ERROR) return v;
+                    set.add(v);
+                }
+                return set;
+            case RECORD:
+                Map<String, Object> record = new HashMap<>();
+                for (int i = 0; i < e.children.size(); i++) {
+                    Object v = eval(e.children.get(i));
+                    if (v == UNKNOWN || v == ERROR) return v;
+                    record.put(e.names.get(i), v);
+                }
+                return record;
+            case AND:
+                return and(e.children);
+            case OR:
+                return or(e.children);
+            case NOT:
+                Object v = eval(e.children.get(0));
+                if (v instanceof Boolean) return !(Boolean) v;
+                return v == UNKNOWN ? UNKNOWN : ERROR;
+            case NEG:
+                v = eval(e.children.get(0));
+                if (v instanceof Long) return (Long) v == Long.MIN_VALUE ? ERROR : -(Long) v;
+                return v == UNKNOWN ? UNKNOWN : ERROR;
+            case IF:
+                return ifThenElse(e);
+            case BINARY:
+                return binary(e);
+            case HAS:
+                return has(eval(e.children.get(0)), e.name);
+            case LIKE:
+                v = eval(e.children.get(0));
+                if (v instanceof String) return like((String) v, (String) e.value);
+                return v == UNKNOWN ? UNKNOWN : ERROR;
+            case IS:
+                return is(e);
+            case ATTR:
+                return attribute(eval(e.children.get(0)), e.name);
+            case CALL:
+                return call(e);
+            default:
+                //Extension functions (ip, decimal, datetime...) are not supported
+                return UNKNOWN;
+        }
+
+    }
+
+    private Object variable(String name) {
+
+        switch (name) {
+            case "action":
+                return action;
+            case "context":
+                return context;
+            default:
+                //resource, principal, and template slots
+                return UNKNOWN;
+        }
+
+    }
+
+    private Object and(List<Expr> operands) {
+
+        boolean unknown = false;
+        for (Expr operand : operands) {
+            Object v = eval(operand);
+            if (v == UNKNOWN) {
+                unknown = true;
+            } else if (!(v instanceof Boolean)) {
+                //An error after an unknown operand only matters if the latter is true
+                return unknown ? UNKNOWN : ERROR;
+            } else if (!(Boolean) v) {
+                return false;
+            }
+        }
+        return unknown ? UNKNOWN : true;
+
+    }
+
+    private Object or(List<Expr> operands) {
+
+        boolean unknown = false;
+        for (Expr operand : operands) {
+            Object v = eval(operand);
+            if (v == UNKNOWN) {
+                unknown = true;
+            } else if (!(v instanceof Boolean)) {
+                return unknown ? UNKNOWN : ERROR;
+            } else if ((Boolean) v) {
+                return true;
+            }
+        }
+        return unknown ? UNKNOWN : false;
+
+    }
+
+    private Object ifThenElse(Expr e) {
+
+        Object condition = eval(e.children.get(0));
+        if (condition instanceof Boolean) return eval(e.children.get((Boolean) condition ? 1 : 2));
+        if (condition != UNKNOWN) return ERROR;
+
+        Object then = eval(e.children.get(1));
+        Object otherwise = eval(e.children.get(2));
+        return then instanceof Boolean && then.equals(otherwise) ? then : UNKNOWN;
+
+    }
+
+    private Object binary(Expr e) {
+
+        Object left = eval(e.children.get(0));
+        Object right = eval(e.children.get(1));
+        if (left == ERROR || right == ERROR) return ERROR;
+
+        if (e.name.equals("in")) return in(left, right);
+        if (isResource(e.children.get(0)) && right instanceof EntityRef
+                && (e.name.equals("==") || e.name.equals("!="))) {
+            //A resource is never equal to an entity of another type
+            if (!((EntityRef) right).getType().equals(resourceType)) return e.name.equals("!=");
+        }
+        if (left == UNKNOWN || right == UNKNOWN) return UNKNOWN;
+
+        switch (e.name) {
+            case "==":
+                return equal(left, right);
+            case "!=":
+                Object eq = equal(left, right);
+                return eq instanceof Boolean ? !(Boolean) eq : eq;
+            default:
+                break;
+        }
+
+        if (!(left instanceof Long) || !(right instanceof Long)) return ERROR;
+        long a = (Long) left, b = (Long) right;
+        try {
+            switch (e.name) {
+                case "<": return a < b;
+                case "<=": return a <= b;
+                case ">": return a > b;
+                case ">=": return a >= b;
+                case "+": return Math.addExact(a, b);
+                case "-": return Math.subtractExact(a, b);
+                case "*": return Math.multiplyExact(a, b);
+                default: return ERROR;
+            }
+        } catch (ArithmeticException ex) {
+            return ERROR;
+        }
+
+    }
+
+    private Object equal(Object left, Object right) {
+        //Identities of token entities are assigned by Cedarling
+        if (left instanceof TokenEntity || right instanceof TokenEntity) return UNKNOWN;
+        return left.equals(right);
+    }
+
+    private Object in(Object left, Object right) {
+
+        if (left == UNKNOWN) return UNKNOWN;
+        if (!(left instanceof EntityRef)) return left instanceof TokenEntity ? UNKNOWN : ERROR;
+
+        Collection<?> targets;
+        if (right == UNKNOWN) return UNKNOWN;
+        if (right instanceof EntityRef) {
+            targets = List.of(right);
+        } else if (right instanceof Set) {
+            targets = (Set<?>) right;
+        } else {
+            return ERROR;
+        }
+
+        if (targets.contains(left)) return true;
+        //Entity hierarchies are unknown, except for actions when the schema declares no groups
+        return left.equals(action) && !actionGroups ? false : UNKNOWN;
+
+    }
+
+    private Object has(Object target, String name) {
+
+        if (target instanceof Map) return ((Map<?, ?>) target).containsKey(name);
+        if (target instanceof TokenEntity) return ((TokenEntity) target).attributes.containsKey(name);
+        if (target == UNKNOWN || target instanceof EntityRef) return UNKNOWN;
+        return ERROR;
+
+    }
+
+    private Object attribute(Object target, String name) {
+
+        Map<?, ?> attributes;
+        if (target instanceof Map) {
+            attributes = (Map<?, ?>) target;
+        } else if (target instanceof TokenEntity) {
+            attributes = ((TokenEntity) target).attributes;
+        } else if (target == UNKNOWN || target instanceof EntityRef) {
+            return UNKNOWN;
+        } else {
+            return ERROR;
+        }
+        return attributes.containsKey(name) ? attributes.get(name) : ERROR;
+
+    }
+
+    private Object is(Expr e) {
+
+        Expr subject = e.children.get(0);
+        String type;
+        if (isResource(subject)) {
+            type = resourceType;
+        } else {
+            Object v = eval(subject);
+            if (v instanceof EntityRef) {
+                type = ((EntityRef) v).getType();
+            } else if (v instanceof TokenEntity) {
+                type = ((TokenEntity) v).type;
+            } else {
+                return v == UNKNOWN ? UNKNOWN : ERROR;
+            }
+        }
+
+        if (!type.equals(e.name)) return false;
+        return e.children.size() == 1 ? true : eval(Expr.named(Expr.Kind.BINARY, "in", e.children));
+
+    }
+
+    static boolean isResource(Expr e) {
+        return e.kind == Expr.Kind.VAR && e.name.equals("resource");
+    }
+
+    private Object call(Expr e) {
+
+        Object receiver = eval(e.children.get(0));
+        List<Object> args = new ArrayList<>();
+        for (Expr arg : e.children.subList(1, e.children.size())) {
+            args.add(eval(arg));
+        }
+        if (receiver == ERROR || args.contains(ERROR)) return ERROR;
+
+        if (receiver instanceof TokenEntity && (e.name.equals("hasTag") || e.name.equals("getTag"))) {
+            if (args.size() != 1) return ERROR;
+            if (args.get(0) == UNKNOWN) return UNKNOWN;
+            if (!(args.get(0) instanceof String)) return ERROR;
+
+            Map<String, Object> tags = ((TokenEntity) receiver).tags;
+            String tag = (String) args.get(0);
+            if (e.name.equals("hasTag")) return tags.containsKey(tag);
+            return tags.containsKey(tag) ? tags.get(tag) : ERROR;
+        }
+        if (receiver == UNKNOWN || args.contains(UNKNOWN)) return UNKNOWN;
+        if (!(receiver instanceof Set)) return receiver instanceof Map || receiver instanceof EntityRef ? ERROR : UNKNOWN;
+
+        Set<?> set = (Set<?>) receiver;
+        switch (e.name) {
+            case "contains":
+                return args.size() == 1 ? contains(set, args.get(0)) : ERROR;
+            case "containsAll":
+            case "containsAny":
+                if (args.size() != 1 || !(args.get(0) instanceof Set)) return ERROR;
+                boolean any = false, all = true;
+                for (Object element : (Set<?>) args.get(0)) {
+                    Object c = contains(set, element);
+                    if (c == UNKNOWN) return UNKNOWN;
+                    any |= (Boolean) c;
+                    all &= (Boolean) c;
+                }
+                return e.name.equals("containsAll") ? all : any;
+            case "isEmpty":
+                return args.isEmpty() ? set.isEmpty() : ERROR;
+            default:
+                return ERROR;
+        }
+
+    }
+
+    private Object contains(Set<?> set, Object element) {
+        if (element instanceof TokenEntity) return UNKNOWN;
+        for (Object item : set) {
+            if (item instanceof TokenEntity) return UNKNOWN;
+        }
+        return set.contains(element);
+    }
+
+    static boolean like(String value, String pattern) {
+
+        //Classic wildcard matching with backtracking on the last star
+        int v = 0, p = 0, star = -1, mark = 0;
+        while (v < value.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                mark = v;
+            } else if (p < pattern.length() && matches(pattern.charAt(p), value.charAt(v))) {
+                p++;
+                v++;
+            } else if (star >= 0) {
+                p = star + 1;
+                v = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+
+    }
+
+    private static boolean matches(char patternChar, char c) {
+        return patternChar == CedarParser.LITERAL_STAR ? c == '*' : patternChar == c;
+    }
+
+    /**
+     * The entity Cedarling builds for a token: claims become both attributes and tags
+     */
+    static class TokenEntity {
+
+        final String type;
+        final Map<String, Object> attributes;
+        final Map<String, Object> tags;
+
+        TokenEntity(String type, Map<String, Object> attributes, Map<String, Object> tags) {
+            this.type = type;
+            this.attributes = attributes;
+            this.tags = tags;
+        }
+
+    }
+
+}
@@ -0,0 +1,43 @@
+package io.jans.cedarling.opensearch.policy;
+
+/**
+ * A parsed Cedar policy. The scope and the when/unless clauses are folded into a single condition: the policy
+ * applies to a request if and only if the condition evaluates to true
+ */
+public class Policy {
+
+    public enum Effect { PERMIT, FORBID }
+
+    private final String id;
+    private final Effect effect;
+    private final Expr condition;
+    private final boolean template;
+
+    Policy(String id, Effect effect, Expr condition, boolean template) {
+        this.id = id;
+        this.effect = effect;
+        this.condition = condition;
+        this.template = template;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Effect getEffect() {
+        return effect;
+    }
+
+    public Expr getCondition() {
+        return condition;
+    }
+
+    /**
+     * Whether the policy has slots (?principal, ?resource). Templates only take effect once linked
+     * @return A boolean value
+     */
+    public boolean isTemplate() {
+        return template;
+    }
+
+}
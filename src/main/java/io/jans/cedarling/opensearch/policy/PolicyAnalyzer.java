@@ -0,0 +1,339 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.*;
+
+import org.apache.logging.log4j.*;
+import org.json.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Finds out whether the policies of a policy store decide a request the same way for every resource of a given
+ * entity type. This happens for instance when a policy permits everything to principals holding some role, or
+ * when no policy applies to the action requested. Policies are evaluated with the resource and the principal
+ * left unknown (see PartialEvaluator); the context and the claims of the tokens supplied are known
+ */
+public class PolicyAnalyzer {
+
+    public enum Outcome { ALLOW_ALL, DENY_ALL, UNDECIDED }
+
+    private static final Pattern ACTION_GROUP = Pattern.compile("\"memberOf\"|\\baction\\s+[^;{]*\\bin\\b");
+
+    private static Logger logger = LogManager.getLogger(PolicyAnalyzer.class);
+
+    final List<Policy> policies;
+    final boolean actionGroups;
+    String schema;
+    SchemaShapes shapes;
+    private final Set<String> resourceAttributes = new HashSet<>();
+    private boolean resourceIdUsed;
+
+    PolicyAnalyzer(List<Policy> policies, boolean actionGroups) {
+        this.policies = policies;
+        this.actionGroups = actionGroups;
+        policies.forEach(p -> collectResourceUsage(p.getCondition()));
+    }
+
+    /**
+     * Builds an analyzer for the policy store Cedarling is initialized with. Only policy stores in local files
+     * (.cjar archives or JSON) are supported
+     * @param bootstrapProperties Properties Cedarling is initialized with
+     * @param localFnKey Name of the property holding the policy store file path
+     * @return An analyzer, or null if the policy store cannot be analyzed, e.g. it is remote or it has templates
+     */
+    public static PolicyAnalyzer load(JSONObject bootstrapProperties, String localFnKey) {
+
+        String fn = bootstrapProperties.optString(localFnKey, "");
+        if (fn.isEmpty()) {
+            logger.info("Policy store is not a local file. Policies will not be analyzed");
+            return null;
+        }
+
+        try {
+            List<String> sources = new ArrayList<>();
+            StringBuilder schema = new StringBuilder();
+            byte[] store = Files.readAllBytes(Path.of(fn));
+
+            if (fn.toLowerCase().endsWith(".json")) {
+                readJson(store, sources, schema);
+            } else {
+                readArchive(store, sources, schema);
+            }
+
+            List<Policy> policies = new ArrayList<>();
+            for (String source : sources) {
+                policies.addAll(CedarParser.parsePolicies(source));
+            }
+            if (policies.stream().anyMatch(Policy::isTemplate)) {
+                logger.info("Policy store has templates. Policies will not be analyzed");
+                return null;
+            }
+
+            logger.info("{} policies loaded for analysis", policies.size());
+            PolicyAnalyzer analyzer = new PolicyAnalyzer(policies, ACTION_GROUP.matcher(schema).find());
+            analyzer.schema = schema.toString();
+            if (!analyzer.schema.isBlank()) {
+                try {
+                    analyzer.shapes = SchemaShapes.parse(analyzer.schema);
+                } catch (IllegalArgumentException e) {
+                    logger.info("Schema could not be read. Query filters will not compare attributes: {}",
+                            e.getMessage());
+                }
+            }
+            return analyzer;
+        } catch (Exception e) {
+            logger.warn("Policies could not be analyzed: {}", e.getMessage());
+            return null;
+        }
+
+    }
+
+    /**
+     * Determines whether the decision for a request is the same for every resource of the entity type given
+     * @param action Cedar action, e.g. Jans::Action::"Search"
+     * @param entityType Entity type of the resources
+     * @param claims Decoded claims of the tokens, keyed by token mapping
+     * @param context Context of the request
+     * @return ALLOW_ALL or DENY_ALL if the decision does not depend on the resource, UNDECIDED otherwise
+     */
+    public Outcome decide(String action, String entityType, Map<String, JSONObject> claims, JSONObject context) {
+
+        EntityRef actionRef;
+        try {
+            actionRef = CedarParser.parseEntity(action);
+        } catch (IllegalArgumentException e) {
+            return Outcome.UNDECIDED;
+        }
+        PartialEvaluator evaluator = new PartialEvaluator(actionRef, entityType, contextRecord(claims, context),
+                actionGroups);
+
+        boolean permitted = false;
+        boolean somePermitUnknown = false;
+        boolean someForbidUnknown = false;
+
+        for (Policy policy : policies) {
+            Object applies = evaluator.eval(policy.getCondition());
+            //Errors make a policy not apply
+            if (applies == PartialEvaluator.UNKNOWN) {
+                if (policy.getEffect() == Policy.Effect.PERMIT) {
+                    somePermitUnknown = true;
+                } else {
+                    someForbidUnknown = true;
+                }
+            } else if (Boolean.TRUE.equals(applies)) {
+                if (policy.getEffect() == Policy.Effect.FORBID) return Outcome.DENY_ALL;
+                permitted = true;
+            }
+        }
+
+        if (permitted) return someForbidUnknown ? Outcome.UNDECIDED : Outcome.ALLOW_ALL;
+        return somePermitUnknown ? Outcome.UNDECIDED : Outcome.DENY_ALL;
+
+    }
+
+    /**
+     * Derives a filter for the documents of the entity type given. A document can only be permitted if it matches
+     * the filter. Every permit policy that may apply contributes the conditions it imposes on resource attributes
+     * (see FilterTranslator); forbid policies are not taken into account
+     * @param action Cedar action, e.g. Jans::Action::"Search"
+     * @param entityType Entity type of the resources
+     * @param claims Decoded claims of the tokens, keyed by token mapping
+     * @param context Context of the request
+     * @return A filter. It is ResourceFilter.ALL if some permit policy applies to every resource, and
+     * ResourceFilter.NONE if none may apply
+     */
+    public ResourceFilter filterFor(String action, String entityType, Map<String, JSONObject> claims,
+            JSONObject context) {
+
+        EntityRef actionRef;
+        try {
+            actionRef = CedarParser.parseEntity(action);
+        } catch (IllegalArgumentException e) {
+            return ResourceFilter.ALL;
+        }
+        PartialEvaluator evaluator = new PartialEvaluator(actionRef, entityType, contextRecord(claims, context),
+                actionGroups);
+        FilterTranslator translator = new FilterTranslator(evaluator, shapes,
+                shapes == null ? null : shapes.shapeOf(entityType));
+
+        List<ResourceFilter> permits = new ArrayList<>();
+        for (Policy policy : policies) {
+            if (policy.getEffect() == Policy.Effect.PERMIT) {
+                ResourceFilter filter = translator.translate(policy.getCondition());
+                if (filter == ResourceFilter.ALL) return filter;
+                permits.add(filter);
+            }
+        }
+        return ResourceFilter.or(permits);
+
+    }
+
+    /**
+     * Entity types declared in the schema of the policy store
+     * @return An unmodifiable set of fully qualified names. It is empty if the schema could not be read
+     */
+    public Set<String> getEntityTypes() {
+        return shapes == null ? Collections.emptySet() : shapes.entityTypes();
+    }
+
+    public int getPolicyCount() {
+        return policies.size();
+    }
+
+    /**
+     * Top-level resource attributes policies refer to, e.g. "address" for resource.address.city
+     * @return An unmodifiable set
+     */
+    public Set<String> getResourceAttributes() {
+        return Collections.unmodifiableSet(resourceAttributes);
+    }
+
+    /**
+     * Whether some policy depends on the identity of the resource, e.g. resource == Jans::student::"1"
+     * @return A boolean value
+     */
+    public boolean isResourceIdUsed() {
+        return resourceIdUsed;
+    }
+
+    private void collectResourceUsage(Expr e) {
+
+        boolean resourceChild = !e.children.isEmpty() && PartialEvaluator.isResource(e.children.get(0));
+        switch (e.kind) {
+            case VAR:
+                //The resource as a whole takes part in comparisons, memberships, etc.
+                resourceIdUsed |= e.name.equals("resource");
+                return;
+            case ATTR:
+            case HAS:
+                if (resourceChild) {
+                    resourceAttributes.add(e.name);
+                    return;
+                }
+                break;
+            case IS:
+                if (resourceChild) {
+                    //Only the entity type is involved, unless it is combined with "in"
+                    e.children.subList(1, e.children.size()).forEach(this::collectResourceUsage);
+                    resourceIdUsed |= e.children.size() > 1;
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        e.children.forEach(this::collectResourceUsage);
+
+    }
+
+    static Map<String, Object> contextRecord(Map<String, JSONObject> claims, JSONObject context) {
+
+        Map<String, Object> record = new HashMap<>();
+        context.keySet().forEach(k -> record.put(k, toValue(context.get(k))));
+
+        //Cedarling adds the token entities under "tokens", e.g. Jans::Userinfo_token as jans_userinfo_token
+        Map<String, Object> tokens = new HashMap<>();
+        for (Map.Entry<String, JSONObject> entry : claims.entrySet()) {
+            Map<String, Object> attributes = new HashMap<>();
+            JSONObject payload = entry.getValue();
+            payload.keySet().forEach(k -> attributes.put(k, toValue(payload.get(k))));
+
+            Map<String, Object> tags = new HashMap<>(attributes);
+            //The issuer is an entity reference whose identifier Cedarling assigns
+            attributes.put("iss", PartialEvaluator.UNKNOWN);
+
+            String mapping = entry.getKey();
+            tokens.put(mapping.toLowerCase().replace("::", "_"),
+                    new PartialEvaluator.TokenEntity(mapping, attributes, tags));
+        }
+        record.put("tokens", tokens);
+        return record;
+
+    }
+
+    static Object toValue(Object json) {
+
+        if (json instanceof String || json instanceof Boolean) return json;
+        if (json instanceof Integer || json instanceof Long) return ((Number) json).longValue();
+
+        if (json instanceof JSONArray) {
+            Set<Object> set = new LinkedHashSet<>();
+            for (Object item : (JSONArray) json) {
+                Object value = toValue(item);
+                if (value == PartialEvaluator.UNKNOWN) return value;
+                set.add(value);
+            }
+            return set;
+        }
+        if (json instanceof JSONObject) {
+            JSONObject job = (JSONObject) json;
+            Map<String, Object> record = new HashMap<>();
+            for (String key : job.keySet()) {
+                Object value = toValue(job.get(key));
+                if (value == PartialEvaluator.UNKNOWN) return value;
+                record.put(key, value);
+            }
+            return record;
+        }
+        //Decimals, nulls, big numbers: their Cedar counterpart is not obvious
+        return PartialEvaluator.UNKNOWN;
+
+    }
+
+    private static void readJson(byte[] store, List<String> sources, StringBuilder schema) {
+
+        JSONObject stores = new JSONObject(new String(store, UTF_8)).getJSONObject("policy_stores");
+        if (stores.length() != 1) throw new IllegalArgumentException("Expected exactly one policy store");
+
+        JSONObject ps = stores.getJSONObject(stores.keys().next());
+        JSONObject policies = ps.optJSONObject("policies", new JSONObject());
+        for (String id : policies.keySet()) {
+            String source = content(policies.getJSONObject(id).get("policy_content"));
+            //Policies without an @id annotation are identified by their key
+            sources.add(source.stripLeading().startsWith("@id") ? source : "@id(\"" + id + "\")\n" + source);
+        }
+        if (ps.has("schema")) {
+            schema.append(content(ps.get("schema")));
+        }
+
+    }
+
+    private static String content(Object value) {
+
+        //Either a base64-encoded string, or an object with the body and its encoding
+        if (value instanceof JSONObject) {
+            JSONObject job = (JSONObject) value;
+            String body = job.optString("body", "");
+            return "base64".equals(job.optString("encoding")) ? decode(body) : body;
+        }
+        return decode(value.toString());
+
+    }
+
+    private static String decode(String base64) {
+        return new String(Base64.getMimeDecoder().decode(base64), UTF_8);
+    }
+
+    private static void readArchive(byte[] store, List<String> sources, StringBuilder schema) throws IOException {
+
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(store))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (name.startsWith("templates/") && name.endsWith(".cedar")) {
+                    throw new IllegalArgumentException("Templates are not supported");
+                } else if (name.startsWith("policies/") && name.endsWith(".cedar")) {
+                    sources.add(new String(zis.readAllBytes(), UTF_8));
+                } else if (name.startsWith("schema.")) {
+                    schema.append(new String(zis.readAllBytes(), UTF_8));
+                }
+            }
+        }
+
+    }
+
+}
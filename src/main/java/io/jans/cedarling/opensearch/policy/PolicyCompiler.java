@@ -0,0 +1,431 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+import static io.jans.cedarling.opensearch.policy.PartialEvaluator.ERROR;
+import static io.jans.cedarling.opensearch.policy.PartialEvaluator.UNKNOWN;
+
+/**
+ * Turns policy conditions into trees of closures that evaluate them for a given resource. Unlike
+ * PartialEvaluator, the resource (its identifier and attributes) is known here, and the rules are exact:
+ * UNKNOWN stands for "some value, or an error" and is only produced where the outcome depends on something
+ * Cedarling computes (token entity identifiers, entity hierarchies, resource tags). Operands are evaluated in
+ * Cedar order with the same short-circuits, so an expression evaluates to ERROR if and only if Cedar raises an
+ * error for it.
+ * <p>
+ * Conditions referring to the principal or calling extension functions (ip, decimal, datetime...) are not
+ * supported: compiling them fails
+ */
+class PolicyCompiler {
+
+    private static final Set<String> METHODS = Set.of("hasTag", "getTag", "contains", "containsAll",
+            "containsAny", "isEmpty");
+
+    interface Compiled {
+        Object eval(Env env);
+    }
+
+    /**
+     * Values a compiled condition is evaluated against
+     */
+    static class Env {
+
+        final EntityRef action;
+        final Map<String, Object> context;
+        final ResourceEntity resource;
+
+        Env(EntityRef action, Map<String, Object> context, ResourceEntity resource) {
+            this.action = action;
+            this.context = context;
+            this.resource = resource;
+        }
+
+    }
+
+    /**
+     * The resource entity Cedarling builds out of a document
+     */
+    static class ResourceEntity {
+
+        final EntityRef ref;
+        final Map<String, Object> attributes;
+
+        ResourceEntity(EntityRef ref, Map<String, Object> attributes) {
+            this.ref = ref;
+            this.attributes = attributes;
+        }
+
+    }
+
+    private final boolean actionGroups;
+
+    /**
+     * @param actionGroups Whether the schema declares action groups. If not, an action is only "in" itself
+     */
+    PolicyCompiler(boolean actionGroups) {
+        this.actionGroups = actionGroups;
+    }
+
+    /**
+     * Compiles an expression
+     * @param e Expression
+     * @return A Compiled instance
+     * @throws IllegalArgumentException If the expression uses something outside the supported subset
+     */
+    Compiled compile(Expr e) {
+
+        switch (e.kind) {
+            case LITERAL:
+            case ENTITY:
+                Object value = e.value;
+                return env -> value;
+            case VAR:
+                return variable(e.name);
+            case SET:
+                return set(compileAll(e.children));
+            case RECORD:
+                return record(e.names, compileAll(e.children));
+            case AND:
+                return and(compileAll(e.children));
+            case OR:
+                return or(compileAll(e.children));
+            case NOT:
+                Compiled operand = compile(e.children.get(0));
+                return env -> {
+                    Object v = operand.eval(env);
+                    if (v instanceof Boolean) return !(Boolean) v;
+                    return v == UNKNOWN ? UNKNOWN : ERROR;
+                };
+            case NEG:
+                operand = compile(e.children.get(0));
+                return env -> {
+                    Object v = operand.eval(env);
+                    if (v instanceof Long) return (Long) v == Long.MIN_VALUE ? ERROR : -(Long) v;
+                    return v == UNKNOWN ? UNKNOWN : ERROR;
+                };
+            case IF:
+                return ifThenElse(compile(e.children.get(0)), compile(e.children.get(1)),
+                        compile(e.children.get(2)));
+            case BINARY:
+                return binary(e.name, compile(e.children.get(0)), compile(e.children.get(1)));
+            case HAS:
+                operand = compile(e.children.get(0));
+                String name = e.name;
+                return env -> has(operand.eval(env), name);
+            case LIKE:
+                operand = compile(e.children.get(0));
+                String pattern = (String) e.value;
+                return env -> {
+                    Object v = operand.eval(env);
+                    if (v instanceof String) return PartialEvaluator.like((String) v, pattern);
+                    return v == UNKNOWN ? UNKNOWN : ERROR;
+                };
+            case IS:
+                return is(e.name, compile(e.children.get(0)),
+                        e.children.size() > 1 ? compile(e.children.get(1)) : null);
+            case ATTR:
+                operand = compile(e.children.get(0));
+                name = e.name;
+                return env -> attribute(operand.eval(env), name);
+            case CALL:
+                if (!METHODS.contains(e.name)) throw new IllegalArgumentException("Unsupported method " + e.name);
+                return call(e.name, compile(e.children.get(0)), compileAll(e.children.subList(1, e.children.size())));
+            default:
+                throw new IllegalArgumentException("Unsupported extension function " + e.name);
+        }
+
+    }
+
+    private Compiled[] compileAll(List<Expr> exprs) {
+
+        Compiled[] compiled = new Compiled[exprs.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(exprs.get(i));
+        }
+        return compiled;
+
+    }
+
+    private Compiled variable(String name) {
+
+        switch (name) {
+            case "action":
+                return env -> env.action;
+            case "context":
+                return env -> env.context;
+            case "resource":
+                return env -> env.resource;
+            default:
+                throw new IllegalArgumentException("Unsupported variable " + name);
+        }
+
+    }
+
+    private Compiled set(Compiled[] elements) {
+
+        return env -> {
+            //Every element is evaluated unless one fails, so an error prevails over unknown elements
+            Set<Object> set = new LinkedHashSet<>();
+            boolean unknown = false;
+            for (Compiled element : elements) {
+                Object v = element.eval(env);
+                if (v == ERROR) return ERROR;
+                unknown |= v == UNKNOWN;
+                set.add(entity(v));
+            }
+            return unknown ? UNKNOWN : set;
+        };
+
+    }
+
+    private Compiled record(List<String> keys, Compiled[] values) {
+
+        return env -> {
+            Map<String, Object> record = new HashMap<>();
+            boolean unknown = false;
+            for (int i = 0; i < values.length; i++) {
+                Object v = values[i].eval(env);
+                if (v == ERROR) return ERROR;
+                unknown |= v == UNKNOWN;
+                record.put(keys.get(i), v);
+            }
+            return unknown ? UNKNOWN : record;
+        };
+
+    }
+
+    private Compiled and(Compiled[] operands) {
+
+        return env -> {
+            for (Compiled operand : operands) {
+                Object v = operand.eval(env);
+                //Whether the rest would be evaluated is not known
+                if (v == UNKNOWN) return UNKNOWN;
+                if (!(v instanceof Boolean)) return ERROR;
+                if (!(Boolean) v) return false;
+            }
+            return true;
+        };
+
+    }
+
+    private Compiled or(Compiled[] operands) {
+
+        return env -> {
+            for (Compiled operand : operands) {
+                Object v = operand.eval(env);
+                if (v == UNKNOWN) return UNKNOWN;
+                if (!(v instanceof Boolean)) return ERROR;
+                if ((Boolean) v) return true;
+            }
+            return false;
+        };
+
+    }
+
+    private Compiled ifThenElse(Compiled condition, Compiled then, Compiled otherwise) {
+
+        return env -> {
+            Object c = condition.eval(env);
+            if (c instanceof Boolean) return ((Boolean) c ? then : otherwise).eval(env);
+            return c == UNKNOWN ? UNKNOWN : ERROR;
+        };
+
+    }
+
+    private Compiled binary(String operator, Compiled left, Compiled right) {
+
+        return env -> {
+            Object l = left.eval(env);
+            Object r = right.eval(env);
+            if (l == ERROR || r == ERROR) return ERROR;
+            if (operator.equals("in")) return in(l, r, env);
+            if (l == UNKNOWN || r == UNKNOWN) return UNKNOWN;
+
+            switch (operator) {
+                case "==":
+                    return equal(l, r);
+                case "!=":
+                    Object eq = equal(l, r);
+                    return eq instanceof Boolean ? !(Boolean) eq : eq;
+                default:
+                    break;
+            }
+
+            if (!(l instanceof Long) || !(r instanceof Long)) return ERROR;
+            long a = (Long) l, b = (Long) r;
+            try {
+                switch (operator) {
+                    case "<": return a < b;
+                    case "<=": return a <= b;
+                    case ">": return a > b;
+                    case ">=": return a >= b;
+                    case "+": return Math.addExact(a, b);
+                    case "-": return Math.subtractExact(a, b);
+                    case "*": return Math.multiplyExact(a, b);
+                    default: return ERROR;
+                }
+            } catch (ArithmeticException ex) {
+                return ERROR;
+            }
+        };
+
+    }
+
+    private static Object entity(Object value) {
+        return value instanceof ResourceEntity ? ((ResourceEntity) value).ref : value;
+    }
+
+    private static Object equal(Object left, Object right) {
+        //Identities of token entities are assigned by Cedarling
+        if (left instanceof PartialEvaluator.TokenEntity || right instanceof PartialEvaluator.TokenEntity) {
+            return UNKNOWN;
+        }
+        return entity(left).equals(entity(right));
+    }
+
+    private Object in(Object left, Object right, Env env) {
+
+        left = entity(left);
+        if (left == UNKNOWN || left instanceof PartialEvaluator.TokenEntity) return UNKNOWN;
+        if (!(left instanceof EntityRef)) return ERROR;
+        if (right == UNKNOWN) return UNKNOWN;
+
+        Collection<?> targets;
+        right = entity(right);
+        if (right instanceof EntityRef) {
+            targets = List.of(right);
+        } else if (right instanceof Set) {
+            targets = (Set<?>) right;
+        } else {
+            return right instanceof PartialEvaluator.TokenEntity ? UNKNOWN : ERROR;
+        }
+
+        boolean unknown = false;
+        for (Object target : targets) {
+            if (target instanceof PartialEvaluator.TokenEntity) {
+                unknown = true;
+            } else if (!(target instanceof EntityRef)) {
+                return ERROR;
+            }
+        }
+        if (targets.contains(left)) return true;
+        //Entity hierarchies are unknown, except for actions when the schema declares no groups
+        return !unknown && left.equals(env.action) && !actionGroups ? false : UNKNOWN;
+
+    }
+
+    private static Map<?, ?> attributesOf(Object target) {
+
+        if (target instanceof Map) return (Map<?, ?>) target;
+        if (target instanceof ResourceEntity) return ((ResourceEntity) target).attributes;
+        if (target instanceof PartialEvaluator.TokenEntity) return ((PartialEvaluator.TokenEntity) target).attributes;
+        return null;
+
+    }
+
+    private static Object has(Object target, String name) {
+
+        Map<?, ?> attributes = attributesOf(target);
+        if (attributes != null) return attributes.containsKey(name);
+        //Attributes of entities other than the resource and tokens are not known
+        return target == UNKNOWN || target instanceof EntityRef ? UNKNOWN : ERROR;
+
+    }
+
+    private static Object attribute(Object target, String name) {
+
+        Map<?, ?> attributes = attributesOf(target);
+        if (attributes != null) return attributes.containsKey(name) ? attributes.get(name) : ERROR;
+        return target == UNKNOWN || target instanceof EntityRef ? UNKNOWN : ERROR;
+
+    }
+
+    private Compiled is(String type, Compiled subject, Compiled in) {
+
+        return env -> {
+            Object v = subject.eval(env);
+            String actual;
+            if (v instanceof ResourceEntity) {
+                actual = ((ResourceEntity) v).ref.getType();
+            } else if (v instanceof EntityRef) {
+                actual = ((EntityRef) v).getType();
+            } else if (v instanceof PartialEvaluator.TokenEntity) {
+                actual = ((PartialEvaluator.TokenEntity) v).type;
+            } else {
+                return v == UNKNOWN ? UNKNOWN : ERROR;
+            }
+
+            if (!actual.equals(type)) return false;
+            if (in == null) return true;
+            Object target = in.eval(env);
+            return target == ERROR ? ERROR : in(v, target, env);
+        };
+
+    }
+
+    private Compiled call(String method, Compiled receiver, Compiled[] arguments) {
+
+        return env -> {
+            Object r = receiver.eval(env);
+            if (r == ERROR) return ERROR;
+            Object[] args = new Object[arguments.length];
+            boolean unknown = false;
+            for (int i = 0; i < args.length; i++) {
+                args[i] = arguments[i].eval(env);
+                if (args[i] == ERROR) return ERROR;
+                unknown |= args[i] == UNKNOWN;
+            }
+            if (args.length != (method.equals("isEmpty") ? 0 : 1)) return ERROR;
+
+            if (method.equals("hasTag") || method.equals("getTag")) {
+                //Tags of entities other than tokens are not known
+                if (r == UNKNOWN || r instanceof ResourceEntity || r instanceof EntityRef) return UNKNOWN;
+                if (!(r instanceof PartialEvaluator.TokenEntity)) return ERROR;
+                if (unknown) return UNKNOWN;
+                if (!(args[0] instanceof String)) return ERROR;
+
+                Map<String, Object> tags = ((PartialEvaluator.TokenEntity) r).tags;
+                String tag = (String) args[0];
+                if (method.equals("hasTag")) return tags.containsKey(tag);
+                return tags.containsKey(tag) ? tags.get(tag) : ERROR;
+            }
+
+            if (r == UNKNOWN || unknown) return UNKNOWN;
+            if (!(r instanceof Set)) return ERROR;
+            Set<?> set = (Set<?>) r;
+            switch (method) {
+                case "contains":
+                    return contains(set, args[0]);
+                case "containsAll":
+                case "containsAny":
+                    if (!(args[0] instanceof Set)) return ERROR;
+                    boolean any = false, all = true;
+                    for (Object element : (Set<?>) args[0]) {
+                        Object c = contains(set, element);
+                        if (c == UNKNOWN) return UNKNOWN;
+                        any |= (Boolean) c;
+                        all &= (Boolean) c;
+                    }
+                    return method.equals("containsAll") ? all : any;
+                default:
+                    return set.isEmpty();
+            }
+        };
+
+    }
+
+    private static Object contains(Set<?> set, Object element) {
+
+        element = entity(element);
+        if (element instanceof PartialEvaluator.TokenEntity) return UNKNOWN;
+        boolean found = false;
+        for (Object item : set) {
+            if (item instanceof PartialEvaluator.TokenEntity) return UNKNOWN;
+            found |= entity(item).equals(element);
+        }
+        return found;
+
+    }
+
+}
@@ -0,0 +1,127 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+/**
+ * A condition on the attributes of documents, derived from policies (see PolicyAnalyzer.filterFor). It is
+ * expressed in terms that map to the search query DSL: field values and ranges combined with and/or. Filters
+ * are never stricter than the policies they come from, i.e. every document policies permit matches the filter
+ */
+public class ResourceFilter {
+
+    public enum Kind {
+        /** Every document matches */
+        ALL,
+        /** No document matches */
+        NONE,
+        /** All children match */
+        AND,
+        /** Some child matches */
+        OR,
+        /** Field holds value (or, for multi-valued fields, some of its values is value) */
+        EQUALS,
+        /** Field value compares to value (a long) as operator (&lt;, &lt;=, &gt;, &gt;=) says */
+        RANGE
+    }
+
+    public static final ResourceFilter ALL = new ResourceFilter(Kind.ALL, null, null, null, List.of());
+    public static final ResourceFilter NONE = new ResourceFilter(Kind.NONE, null, null, null, List.of());
+
+    private final Kind kind;
+    private final String field;
+    private final String operator;
+    private final Object value;
+    private final List<ResourceFilter> children;
+
+    private ResourceFilter(Kind kind, String field, String operator, Object value, List<ResourceFilter> children) {
+        this.kind = kind;
+        this.field = field;
+        this.operator = operator;
+        this.value = value;
+        this.children = children;
+    }
+
+    static ResourceFilter equalTo(String field, Object value) {
+        return new ResourceFilter(Kind.EQUALS, field, null, value, List.of());
+    }
+
+    static ResourceFilter range(String field, String operator, long value) {
+        return new ResourceFilter(Kind.RANGE, field, operator, value, List.of());
+    }
+
+    static ResourceFilter and(List<ResourceFilter> filters) {
+
+        List<ResourceFilter> children = new ArrayList<>();
+        for (ResourceFilter f : filters) {
+            if (f.kind == Kind.NONE) return NONE;
+            if (f.kind != Kind.ALL) {
+                children.add(f);
+            }
+        }
+        return children.isEmpty() ? ALL
+                : children.size() == 1 ? children.get(0) : new ResourceFilter(Kind.AND, null, null, null, children);
+
+    }
+
+    static ResourceFilter or(List<ResourceFilter> filters) {
+
+        List<ResourceFilter> children = new ArrayList<>();
+        for (ResourceFilter f : filters) {
+            if (f.kind == Kind.ALL) return ALL;
+            if (f.kind != Kind.NONE) {
+                children.add(f);
+            }
+        }
+        return children.isEmpty() ? NONE
+                : children.size() == 1 ? children.get(0) : new ResourceFilter(Kind.OR, null, null, null, children);
+
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Dot-separated path of the document field, e.g. address.city
+     * @return A string, or null if this is not an EQUALS or RANGE filter
+     */
+    public String getField() {
+        return field;
+    }
+
+    public String getOperator() {
+        return operator;
+    }
+
+    /**
+     * Value to compare with: a string, a long, or a boolean
+     * @return An object, or null if this is not an EQUALS or RANGE filter
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    public List<ResourceFilter> getChildren() {
+        return children;
+    }
+
+    @Override
+    public String toString() {
+
+        switch (kind) {
+            case EQUALS:
+                return field + " == " + value;
+            case RANGE:
+                return field + " " + operator + " " + value;
+            case AND:
+            case OR:
+                StringJoiner joiner = new StringJoiner(kind == Kind.AND ? " && " : " || ", "(", ")");
+                children.forEach(c -> joiner.add(c.toString()));
+                return joiner.toString();
+            default:
+                return kind.toString().toLowerCase();
+        }
+
+    }
+
+}
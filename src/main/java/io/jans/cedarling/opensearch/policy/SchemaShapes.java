@@ -0,0 +1,402 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+import org.json.*;
+
+/**
+ * Attribute types of the entities declared in a Cedar schema, either in human-readable or JSON format. They
+ * are used to tell whether the values of a document are those Cedarling would build for the resource: strings,
+ * longs, booleans, and sets and records of them. Attributes whose type is an entity or an extension type (like
+ * decimal) are converted by Cedarling, so they are kept as opaque
+ */
+class SchemaShapes {
+
+    static class Type {
+
+        enum Kind { STRING, LONG, BOOL, SET, RECORD, NAMED, OPAQUE }
+
+        final Kind kind;
+        final Type element;
+        final Map<String, Type> attributes;
+        final String name;
+
+        private Type(Kind kind, Type element, Map<String, Type> attributes, String name) {
+            this.kind = kind;
+            this.element = element;
+            this.attributes = attributes;
+            this.name = name;
+        }
+
+        static Type of(Kind kind) {
+            return new Type(kind, null, null, null);
+        }
+
+        static Type set(Type element) {
+            return new Type(Kind.SET, element, null, null);
+        }
+
+        static Type record(Map<String, Type> attributes) {
+            return new Type(Kind.RECORD, null, attributes, null);
+        }
+
+        static Type named(String name) {
+            return new Type(Kind.NAMED, null, null, name);
+        }
+
+    }
+
+    private static final Map<String, Type.Kind> PRIMITIVES = Map.of("String", Type.Kind.STRING,
+            "Long", Type.Kind.LONG, "Bool", Type.Kind.BOOL, "Boolean", Type.Kind.BOOL);
+
+    private final Map<String, Type> entityShapes = new HashMap<>();
+    private final Map<String, Type> commonTypes = new HashMap<>();
+
+    private List<CedarParser.Token> tokens;
+    private int pos;
+
+    private SchemaShapes() { }
+
+    /**
+     * Parses a schema
+     * @param schema Schema contents
+     * @return The shapes of the entities declared
+     * @throws IllegalArgumentException If the schema could not be parsed
+     */
+    static SchemaShapes parse(String schema) {
+
+        SchemaShapes shapes = new SchemaShapes();
+        try {
+            if (schema.stripLeading().startsWith("{")) {
+                shapes.readJson(new JSONObject(schema));
+            } else {
+                shapes.tokens = CedarParser.tokenize(schema);
+                shapes.readHuman();
+            }
+        } catch (JSONException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Unsupported schema: " + e.getMessage());
+        }
+        return shapes;
+
+    }
+
+    /**
+     * Gets the attributes of an entity type
+     * @param entityType Fully qualified entity type, e.g. Jans::student
+     * @return A record type, or null if the type is not declared
+     */
+    Type shapeOf(String entityType) {
+        return entityShapes.get(entityType);
+    }
+
+    /**
+     * Names of the entity types declared
+     * @return An unmodifiable set of fully qualified names
+     */
+    Set<String> entityTypes() {
+        return Collections.unmodifiableSet(entityShapes.keySet());
+    }
+
+    /**
+     * Follows references to common types
+     * @param type Type
+     * @return The type referred to, the type itself if it is not a reference, or null if the reference is unknown
+     */
+    Type resolve(Type type) {
+
+        //Common types may refer to each other, but not in cycles
+        for (int i = 0; type != null && type.kind == Type.Kind.NAMED; i++) {
+            type = i < commonTypes.size() ? commonTypes.get(type.name) : null;
+        }
+        return type;
+
+    }
+
+    /**
+     * Whether a value (see PolicyAnalyzer.toValue) is exactly what Cedarling would build for the type given.
+     * Record attributes may be absent, but not undeclared
+     * @param value Value
+     * @param type Type
+     * @return A boolean value
+     */
+    boolean conforms(Object value, Type type) {
+
+        switch (type.kind) {
+            case STRING:
+                return value instanceof String;
+            case LONG:
+                return value instanceof Long;
+            case BOOL:
+                return value instanceof Boolean;
+            case SET:
+                if (!(value instanceof Set)) return false;
+                for (Object item : (Set<?>) value) {
+                    if (!conforms(item, type.element)) return false;
+                }
+                return true;
+            case RECORD:
+                if (!(value instanceof Map)) return false;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    Type attribute = type.attributes.get(entry.getKey());
+                    if (attribute == null || !conforms(entry.getValue(), attribute)) return false;
+                }
+                return true;
+            case NAMED:
+                Type resolved = commonTypes.get(type.name);
+                return resolved != null && conforms(value, resolved);
+            default:
+                return false;
+        }
+
+    }
+
+    private void readJson(JSONObject schema) {
+
+        for (String namespace : schema.keySet()) {
+            JSONObject ns = schema.getJSONObject(namespace);
+            JSONObject types = ns.optJSONObject("commonTypes", new JSONObject());
+            for (String name : types.keySet()) {
+                commonTypes.put(qualify(namespace, name), jsonType(namespace, types.getJSONObject(name)));
+            }
+
+            JSONObject entities = ns.optJSONObject("entityTypes", new JSONObject());
+            for (String name : entities.keySet()) {
+                JSONObject shape = entities.getJSONObject(name).optJSONObject("shape");
+                entityShapes.put(qualify(namespace, name),
+                        shape == null ? Type.record(Map.of()) : jsonType(namespace, shape));
+            }
+        }
+
+    }
+
+    private Type jsonType(String namespace, JSONObject job) {
+
+        String type = job.getString("type");
+        switch (type) {
+            case "String":
+            case "Long":
+            case "Boolean":
+                return Type.of(PRIMITIVES.get(type));
+            case "Set":
+                return Type.set(jsonType(namespace, job.getJSONObject("element")));
+            case "Record":
+                Map<String, Type> attributes = new HashMap<>();
+                JSONObject attrs = job.optJSONObject("attributes", new JSONObject());
+                for (String name : attrs.keySet()) {
+                    attributes.put(name, jsonType(namespace, attrs.getJSONObject(name)));
+                }
+                return Type.record(attributes);
+            case "Entity":
+            case "Extension":
+                return Type.of(Type.Kind.OPAQUE);
+            case "EntityOrCommon":
+                return reference(namespace, job.getString("name"));
+            default:
+                return reference(namespace, type);
+        }
+
+    }
+
+    private void readHuman() {
+
+        while (!peekIs(CedarParser.TokenType.EOF)) {
+            annotations();
+            if (acceptIdent("namespace")) {
+                String namespace = path();
+                expectSymbol("{");
+                while (!accept("}")) {
+                    declaration(namespace);
+                }
+            } else {
+                declaration("");
+            }
+        }
+
+    }
+
+    private void declaration(String namespace) {
+
+        annotations();
+        String keyword = next().text;
+        switch (keyword) {
+            case "entity":
+                List<String> names = new ArrayList<>();
+                do {
+                    names.add(name());
+                } while (accept(","));
+
+                Type shape = Type.record(Map.of());
+                if (acceptIdent("enum")) {
+                    skipTo(";");
+                    names.forEach(n -> entityShapes.put(qualify(namespace, n), Type.record(Map.of())));
+                    return;
+                }
+                if (acceptIdent("in")) {
+                    if (accept("[")) {
+                        skipTo("]");
+                    } else {
+                        path();
+                    }
+                }
+                accept("=");
+                if (peekIsSymbol("{")) {
+                    shape = type(namespace);
+                }
+                if (acceptIdent("tags")) {
+                    type(namespace);
+                }
+                expectSymbol(";");
+                for (String n : names) {
+                    entityShapes.put(qualify(namespace, n), shape);
+                }
+                break;
+            case "type":
+                String name = name();
+                expectSymbol("=");
+                commonTypes.put(qualify(namespace, name), type(namespace));
+                expectSymbol(";");
+                break;
+            case "action":
+                skipTo(";");
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected '" + keyword + "' in schema");
+        }
+
+    }
+
+    private Type type(String namespace) {
+
+        if (accept("{")) {
+            Map<String, Type> attributes = new HashMap<>();
+            while (!accept("}")) {
+                annotations();
+                String name = name();
+                accept("?");
+                expectSymbol(":");
+                attributes.put(name, type(namespace));
+                if (!accept(",")) {
+                    expectSymbol("}");
+                    break;
+                }
+            }
+            return Type.record(attributes);
+        }
+
+        String path = path();
+        if (path.equals("Set") || path.equals("__cedar::Set")) {
+            expectSymbol("<");
+            Type element = type(namespace);
+            expectSymbol(">");
+            return Type.set(element);
+        }
+        return reference(namespace, path);
+
+    }
+
+    private Type reference(String namespace, String name) {
+
+        String simple = name.startsWith("__cedar::") ? name.substring("__cedar::".length()) : name;
+        if (PRIMITIVES.containsKey(simple) && !commonTypes.containsKey(qualify(namespace, simple))) {
+            return Type.of(PRIMITIVES.get(simple));
+        }
+        //Common types are resolved when values are checked, since they may be declared later. Names which are
+        //not common types are entity or extension types
+        String qualified = name.contains("::") ? name : qualify(namespace, name);
+        return Type.named(qualified);
+
+    }
+
+    private static String qualify(String namespace, String name) {
+        return namespace.isEmpty() ? name : namespace + "::" + name;
+    }
+
+    private void annotations() {
+
+        while (accept("@")) {
+            next();
+            if (accept("(")) {
+                skipTo(")");
+            }
+        }
+
+    }
+
+    private void skipTo(String symbol) {
+
+        int depth = 0;
+        while (true) {
+            CedarParser.Token t = next();
+            if (t.type == CedarParser.TokenType.EOF) throw new IllegalArgumentException("'" + symbol + "' expected");
+            if (t.type != CedarParser.TokenType.SYMBOL) continue;
+
+            if (depth == 0 && t.text.equals(symbol)) return;
+            if ("{[(".contains(t.text)) {
+                depth++;
+            } else if ("}])".contains(t.text)) {
+                depth--;
+            }
+        }
+
+    }
+
+    private String path() {
+
+        StringBuilder path = new StringBuilder(expect(CedarParser.TokenType.IDENT).text);
+        while (accept("::")) {
+            path.append("::").append(expect(CedarParser.TokenType.IDENT).text);
+        }
+        return path.toString();
+
+    }
+
+    private String name() {
+        CedarParser.Token t = next();
+        if (t.type != CedarParser.TokenType.IDENT && t.type != CedarParser.TokenType.STRING) {
+            throw new IllegalArgumentException("Name expected at line " + t.line);
+        }
+        return t.text;
+    }
+
+    private CedarParser.Token next() {
+        CedarParser.Token t = tokens.get(pos);
+        if (t.type != CedarParser.TokenType.EOF) {
+            pos++;
+        }
+        return t;
+    }
+
+    private boolean peekIs(CedarParser.TokenType type) {
+        return tokens.get(pos).type == type;
+    }
+
+    private boolean peekIsSymbol(String symbol) {
+        CedarParser.Token t = tokens.get(pos);
+        return t.type == CedarParser.TokenType.SYMBOL && t.text.equals(symbol);
+    }
+
+    private boolean accept(String symbol) {
+        if (!peekIsSymbol(symbol)) return false;
+        pos++;
+        return true;
+    }
+
+    private boolean acceptIdent(String ident) {
+        CedarParser.Token t = tokens.get(pos);
+        if (t.type != CedarParser.TokenType.IDENT || !t.text.equals(ident)) return false;
+        pos++;
+        return true;
+    }
+
+    private CedarParser.Token expect(CedarParser.TokenType type) {
+        if (!peekIs(type)) throw new IllegalArgumentException(type + " expected at line " + tokens.get(pos).line);
+        return next();
+    }
+
+    private void expectSymbol(String symbol) {
+        if (!accept(symbol)) {
+            throw new IllegalArgumentException("'" + symbol + "' expected at line " + tokens.get(pos).line);
+        }
+    }
+
+}
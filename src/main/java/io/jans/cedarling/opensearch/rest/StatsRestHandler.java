@@ -0,0 +1,52 @@
+package io.jans.cedarling.opensearch.rest;
+
+import io.jans.cedarling.opensearch.stats.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.net.URLEncoder;
+
+import org.opensearch.core.common.Strings;
+import org.opensearch.rest.*;
+import org.opensearch.rest.action.RestActions;
+import org.opensearch.transport.client.node.NodeClient;
+
+import static io.jans.cedarling.opensearch.CedarlingPlugin.NAME;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.opensearch.rest.RestRequest.Method.*;
+
+/**
+ * Serves the plugin metrics of every node and their cluster-wide aggregation, in the fashion of _nodes/stats.
+ * A comma-separated list of node IDs (or names, or any other node filter) can be passed to restrict the nodes
+ * queried
+ */
+public class StatsRestHandler extends BaseRestHandler {
+
+    private static final String PATH_PREFIX = "/_plugins/" + URLEncoder.encode(NAME, UTF_8);
+
+    @Override
+    public String getName() {
+        return "cedarling_stats_handler";
+    }
+
+    @Override
+    public List routes() {
+        return List.of(
+            new RestHandler.Route(GET, PATH_PREFIX + "/_stats"),
+            new RestHandler.Route(GET, PATH_PREFIX + "/{nodeId}/_stats")
+        );
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+
+        CedarlingStatsRequest statsRequest = new CedarlingStatsRequest(
+                Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+
+        return channel -> client.execute(CedarlingStatsAction.INSTANCE, statsRequest,
+                new RestActions.NodesResponseRestListener<>(channel));
+
+    }
+
+}
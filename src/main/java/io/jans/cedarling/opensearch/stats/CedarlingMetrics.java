@@ -0,0 +1,135 @@
+package io.jans.cedarling.opensearch.stats;
+
+import io.jans.cedarling.opensearch.CedarlingService;
+import io.jans.cedarling.opensearch.log.DecisionLog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-wide counters and histograms about the plugin activity. They are meant to be updated from search threads
+ * on every decision, so they rely solely on LongAdders: recording never blocks nor contends on a single
+ * memory location. Values are accumulated since the node started
+ */
+public class CedarlingMetrics {
+
+    private static CedarlingMetrics instance = new CedarlingMetrics();
+
+    private final LongAdder decisionsAllowed = new LongAdder();
+    private final LongAdder decisionsDenied = new LongAdder();
+    private final LongAdder decisionsErrored = new LongAdder();
+    private final LatencyHistogram decisionMicros = new LatencyHistogram();
+
+    private final LongAdder requestsFailed = new LongAdder();
+    private final LatencyHistogram requestHits = new LatencyHistogram();
+    private final LatencyHistogram requestMillis = new LatencyHistogram();
+
+    private final LongAdder settingsReloads = new LongAdder();
+    private final LongAdder settingsReloadFailures = new LongAdder();
+
+    private final LongAdder initFailures = new LongAdder();
+    private final LatencyHistogram initMillis = new LatencyHistogram();
+
+    private CedarlingMetrics() { }
+
+    public static CedarlingMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records the outcome of a decision, whether it was evaluated or taken from cache
+     * @param decision The decision, or null if it could not be computed
+     */
+    public void decision(Boolean decision) {
+
+        if (decision == null) {
+            decisionsErrored.increment();
+        } else if (decision) {
+            decisionsAllowed.increment();
+        } else {
+            decisionsDenied.increment();
+        }
+
+    }
+
+    /**
+     * Records the time a decision evaluation by Cedarling took
+     * @param nanos Time in nanoseconds
+     */
+    public void decisionTook(long nanos) {
+        decisionMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Records a search response processed
+     * @param hits Number of hits the response had
+     * @param nanos Wall time the processor took, in nanoseconds
+     */
+    public void request(int hits, long nanos) {
+        requestHits.record(hits);
+        requestMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    public void requestFailed() {
+        requestsFailed.increment();
+    }
+
+    public void settingsReload(boolean succeeded) {
+
+        settingsReloads.increment();
+        if (!succeeded) {
+            settingsReloadFailures.increment();
+        }
+
+    }
+
+    /**
+     * Records a Cedarling initialization
+     * @param nanos Time the initialization took, in nanoseconds
+     * @param succeeded Whether Cedarling started
+     */
+    public void init(long nanos, boolean succeeded) {
+
+        initMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        if (!succeeded) {
+            initFailures.increment();
+        }
+
+    }
+
+    public MetricsSnapshot snapshot() {
+
+        CedarlingService service = CedarlingService.getInstance();
+        MetricsSnapshot s = new MetricsSnapshot();
+
+        s.decisionsAllowed = decisionsAllowed.sum();
+        s.decisionsDenied = decisionsDenied.sum();
+        s.decisionsErrored = decisionsErrored.sum();
+        s.decisionMicros = decisionMicros.snapshot();
+
+        s.requestsFailed = requestsFailed.sum();
+        s.requestHits = requestHits.snapshot();
+        s.requestMillis = requestMillis.snapshot();
+
+        s.settingsReloads = settingsReloads.sum();
+        s.settingsReloadFailures = settingsReloadFailures.sum();
+        s.initFailures = initFailures.sum();
+        s.initMillis = initMillis.snapshot();
+
+        s.tokenCacheHits = service.getTokenCacheHits();
+        s.tokenCacheMisses = service.getTokenCacheMisses();
+        s.tokenCacheEntries = service.getTokenCacheSize();
+        s.decisionCacheHits = service.getDecisionCacheHits();
+        s.decisionCacheMisses = service.getDecisionCacheMisses();
+        s.decisionCacheEvictions = service.getDecisionCacheEvictions();
+        s.decisionCacheEntries = service.getDecisionCacheSize();
+
+        DecisionLog decisionLog = DecisionLog.getInstance();
+        s.decisionLogSampled = decisionLog.getSampled();
+        s.decisionLogDropped = decisionLog.getDropped();
+        s.decisionLogWritten = decisionLog.getWritten();
+        return s;
+
+    }
+
+}
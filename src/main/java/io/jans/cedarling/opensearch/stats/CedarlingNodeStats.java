@@ -0,0 +1,46 @@
+package io.jans.cedarling.opensearch.stats;
+
+import java.io.IOException;
+
+import org.opensearch.action.support.nodes.BaseNodeResponse;
+import org.opensearch.cluster.node.DiscoveryNode;
+import org.opensearch.core.common.io.stream.*;
+import org.opensearch.core.xcontent.*;
+
+/**
+ * The plugin metrics of a single node
+ */
+public class CedarlingNodeStats extends BaseNodeResponse implements ToXContentFragment {
+
+    private MetricsSnapshot metrics;
+
+    public CedarlingNodeStats(DiscoveryNode node, MetricsSnapshot metrics) {
+        super(node);
+        this.metrics = metrics;
+    }
+
+    public CedarlingNodeStats(StreamInput in) throws IOException {
+        super(in);
+        metrics = new MetricsSnapshot(in);
+    }
+
+    public MetricsSnapshot getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        metrics.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+
+        builder.field("name", getNode().getName());
+        builder.field("host", getNode().getHostName());
+        return metrics.toXContent(builder, params);
+
+    }
+
+}
@@ -0,0 +1,14 @@
+package io.jans.cedarling.opensearch.stats;
+
+import org.opensearch.action.ActionType;
+
+public class CedarlingStatsAction extends ActionType<CedarlingStatsResponse> {
+
+    public static final String NAME = "cluster:monitor/cedarling/stats";
+    public static final CedarlingStatsAction INSTANCE = new CedarlingStatsAction();
+
+    private CedarlingStatsAction() {
+        super(NAME, CedarlingStatsResponse::new);
+    }
+
+}
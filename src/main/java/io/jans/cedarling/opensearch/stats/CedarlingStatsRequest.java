@@ -0,0 +1,22 @@
+package io.jans.cedarling.opensearch.stats;
+
+import java.io.IOException;
+
+import org.opensearch.action.support.nodes.BaseNodesRequest;
+import org.opensearch.core.common.io.stream.StreamInput;
+
+public class CedarlingStatsRequest extends BaseNodesRequest<CedarlingStatsRequest> {
+
+    /**
+     * Builds a request for the stats of the nodes given
+     * @param nodesIds IDs of nodes. If empty, all nodes are targeted
+     */
+    public CedarlingStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    public CedarlingStatsRequest(StreamInput in) throws IOException {
+        super(in);
+    }
+
+}
@@ -0,0 +1,59 @@
+package io.jans.cedarling.opensearch.stats;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.opensearch.action.FailedNodeException;
+import org.opensearch.action.support.nodes.BaseNodesResponse;
+import org.opensearch.cluster.ClusterName;
+import org.opensearch.core.common.io.stream.*;
+import org.opensearch.core.xcontent.*;
+
+/**
+ * The plugin metrics of every node that responded, plus the cluster-wide aggregation of them
+ */
+public class CedarlingStatsResponse extends BaseNodesResponse<CedarlingNodeStats> implements ToXContentFragment {
+
+    public CedarlingStatsResponse(StreamInput in) throws IOException {
+        super(in);
+    }
+
+    public CedarlingStatsResponse(ClusterName clusterName, List<CedarlingNodeStats> nodes,
+            List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<CedarlingNodeStats> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(CedarlingNodeStats::new);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<CedarlingNodeStats> nodes) throws IOException {
+        out.writeList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+
+        MetricsSnapshot aggregated = getNodes().stream().map(CedarlingNodeStats::getMetrics)
+                .reduce(MetricsSnapshot::merge).orElse(null);
+
+        if (aggregated != null) {
+            builder.startObject("aggregated");
+            aggregated.toXContent(builder, params);
+            builder.endObject();
+        }
+
+        builder.startObject("nodes");
+        for (CedarlingNodeStats stats : getNodes()) {
+            builder.startObject(stats.getNode().getId());
+            stats.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+
+    }
+
+}
@@ -0,0 +1,177 @@
+package io.jans.cedarling.opensearch.stats;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.*;
+
+import org.opensearch.core.common.io.stream.*;
+import org.opensearch.core.xcontent.XContentBuilder;
+
+/**
+ * A lock-free histogram of non-negative values with log-linear buckets: every power of two is split in 8
+ * sub-buckets, so percentiles are reported with a relative error below 12.5%. Recording a value costs a few
+ * bit operations plus a LongAdder increment, and histograms of different nodes can be merged
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    //values are clamped to 2^40 - 1 (about 12 days when expressed in microseconds)
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        counts[bucketOf(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+
+    }
+
+    public Snapshot snapshot() {
+
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+        }
+        return new Snapshot(copy, sum.sum(), max.get());
+
+    }
+
+    private static int bucketOf(long value) {
+
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+
+    }
+
+    private static long upperBoundOf(int bucket) {
+
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+
+    }
+
+    /**
+     * An immutable copy of the contents of a histogram at a given time
+     */
+    public static class Snapshot implements Writeable {
+
+        private final long[] counts;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public Snapshot(StreamInput in) throws IOException {
+
+            counts = new long[BUCKETS];
+            //only non-empty buckets are transferred
+            int n = in.readVInt();
+            for (int i = 0; i < n; i++) {
+                counts[in.readVInt()] = in.readVLong();
+            }
+            sum = in.readVLong();
+            max = in.readVLong();
+
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+
+            int n = 0;
+            for (long c : counts) {
+                if (c > 0) n++;
+            }
+            out.writeVInt(n);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    out.writeVInt(i);
+                    out.writeVLong(counts[i]);
+                }
+            }
+            out.writeVLong(sum);
+            out.writeVLong(max);
+
+        }
+
+        public Snapshot merge(Snapshot other) {
+
+            long[] merged = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, sum + other.sum, Math.max(max, other.max));
+
+        }
+
+        public long getCount() {
+
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            return count;
+
+        }
+
+        /**
+         * Estimates a percentile of the values recorded
+         * @param p Percentile, a number between 0 and 100
+         * @return The upper bound of the bucket where the percentile lies (never above the maximum value
+         * recorded), or 0 if the histogram is empty
+         */
+        public long percentile(double p) {
+
+            long count = getCount();
+            if (count == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(max, upperBoundOf(i));
+            }
+            return max;
+
+        }
+
+        public void toXContent(XContentBuilder builder, String name) throws IOException {
+
+            long count = getCount();
+            builder.startObject(name);
+            builder.field("count", count);
+            builder.field("avg", count == 0 ? 0 : sum / count);
+            builder.field("max", max);
+            builder.field("p50", percentile(50));
+            builder.field("p90", percentile(90));
+            builder.field("p99", percentile(99));
+            builder.field("p999", percentile(99.9));
+            builder.endObject();
+
+        }
+
+    }
+
+}
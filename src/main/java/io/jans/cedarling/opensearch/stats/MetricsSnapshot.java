@@ -0,0 +1,185 @@
+package io.jans.cedarling.opensearch.stats;
+
+import java.io.IOException;
+
+import org.opensearch.core.common.io.stream.*;
+import org.opensearch.core.xcontent.*;
+
+/**
+ * The values of the plugin metrics of a node at a given time. Snapshots of several nodes can be merged to obtain
+ * cluster-wide figures
+ */
+public class MetricsSnapshot implements Writeable, ToXContentFragment {
+
+    long decisionsAllowed;
+    long decisionsDenied;
+    long decisionsErrored;
+    LatencyHistogram.Snapshot decisionMicros;
+
+    long requestsFailed;
+    LatencyHistogram.Snapshot requestHits;
+    LatencyHistogram.Snapshot requestMillis;
+
+    long settingsReloads;
+    long settingsReloadFailures;
+    long initFailures;
+    LatencyHistogram.Snapshot initMillis;
+
+    long tokenCacheHits;
+    long tokenCacheMisses;
+    long tokenCacheEntries;
+    long decisionCacheHits;
+    long decisionCacheMisses;
+    long decisionCacheEvictions;
+    long decisionCacheEntries;
+
+    long decisionLogSampled;
+    long decisionLogDropped;
+    long decisionLogWritten;
+
+    MetricsSnapshot() { }
+
+    public MetricsSnapshot(StreamInput in) throws IOException {
+
+        decisionsAllowed = in.readVLong();
+        decisionsDenied = in.readVLong();
+        decisionsErrored = in.readVLong();
+        decisionMicros = new LatencyHistogram.Snapshot(in);
+
+        requestsFailed = in.readVLong();
+        requestHits = new LatencyHistogram.Snapshot(in);
+        requestMillis = new LatencyHistogram.Snapshot(in);
+
+        settingsReloads = in.readVLong();
+        settingsReloadFailures = in.readVLong();
+        initFailures = in.readVLong();
+        initMillis = new LatencyHistogram.Snapshot(in);
+
+        tokenCacheHits = in.readVLong();
+        tokenCacheMisses = in.readVLong();
+        tokenCacheEntries = in.readVLong();
+        decisionCacheHits = in.readVLong();
+        decisionCacheMisses = in.readVLong();
+        decisionCacheEvictions = in.readVLong();
+        decisionCacheEntries = in.readVLong();
+
+        decisionLogSampled = in.readVLong();
+        decisionLogDropped = in.readVLong();
+        decisionLogWritten = in.readVLong();
+
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+
+        out.writeVLong(decisionsAllowed);
+        out.writeVLong(decisionsDenied);
+        out.writeVLong(decisionsErrored);
+        decisionMicros.writeTo(out);
+
+        out.writeVLong(requestsFailed);
+        requestHits.writeTo(out);
+        requestMillis.writeTo(out);
+
+        out.writeVLong(settingsReloads);
+        out.writeVLong(settingsReloadFailures);
+        out.writeVLong(initFailures);
+        initMillis.writeTo(out);
+
+        out.writeVLong(tokenCacheHits);
+        out.writeVLong(tokenCacheMisses);
+        out.writeVLong(tokenCacheEntries);
+        out.writeVLong(decisionCacheHits);
+        out.writeVLong(decisionCacheMisses);
+        out.writeVLong(decisionCacheEvictions);
+        out.writeVLong(decisionCacheEntries);
+
+        out.writeVLong(decisionLogSampled);
+        out.writeVLong(decisionLogDropped);
+        out.writeVLong(decisionLogWritten);
+
+    }
+
+    public MetricsSnapshot merge(MetricsSnapshot other) {
+
+        MetricsSnapshot s = new MetricsSnapshot();
+        s.decisionsAllowed = decisionsAllowed + other.decisionsAllowed;
+        s.decisionsDenied = decisionsDenied + other.decisionsDenied;
+        s.decisionsErrored = decisionsErrored + other.decisionsErrored;
+        s.decisionMicros = decisionMicros.merge(other.decisionMicros);
+
+        s.requestsFailed = requestsFailed + other.requestsFailed;
+        s.requestHits = requestHits.merge(other.requestHits);
+        s.requestMillis = requestMillis.merge(other.requestMillis);
+
+        s.settingsReloads = settingsReloads + other.settingsReloads;
+        s.settingsReloadFailures = settingsReloadFailures + other.settingsReloadFailures;
+        s.initFailures = initFailures + other.initFailures;
+        s.initMillis = initMillis.merge(other.initMillis);
+
+        s.tokenCacheHits = tokenCacheHits + other.tokenCacheHits;
+        s.tokenCacheMisses = tokenCacheMisses + other.tokenCacheMisses;
+        s.tokenCacheEntries = tokenCacheEntries + other.tokenCacheEntries;
+        s.decisionCacheHits = decisionCacheHits + other.decisionCacheHits;
+        s.decisionCacheMisses = decisionCacheMisses + other.decisionCacheMisses;
+        s.decisionCacheEvictions = decisionCacheEvictions + other.decisionCacheEvictions;
+        s.decisionCacheEntries = decisionCacheEntries + other.decisionCacheEntries;
+
+        s.decisionLogSampled = decisionLogSampled + other.decisionLogSampled;
+        s.decisionLogDropped = decisionLogDropped + other.decisionLogDropped;
+        s.decisionLogWritten = decisionLogWritten + other.decisionLogWritten;
+        return s;
+
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+
+        builder.startObject("decisions");
+        builder.field("allowed", decisionsAllowed);
+        builder.field("denied", decisionsDenied);
+        builder.field("errors", decisionsErrored);
+        decisionMicros.toXContent(builder, "evaluation_time_micros");
+        builder.endObject();
+
+        builder.startObject("requests");
+        builder.field("total", requestMillis.getCount());
+        builder.field("failed", requestsFailed);
+        requestHits.toXContent(builder, "hits");
+        requestMillis.toXContent(builder, "processor_time_millis");
+        builder.endObject();
+
+        builder.startObject("settings");
+        builder.field("reloads", settingsReloads);
+        builder.field("reload_failures", settingsReloadFailures);
+        builder.endObject();
+
+        builder.startObject("init");
+        builder.field("total", initMillis.getCount());
+        builder.field("failed", initFailures);
+        initMillis.toXContent(builder, "time_millis");
+        builder.endObject();
+
+        builder.startObject("token_cache");
+        builder.field("hits", tokenCacheHits);
+        builder.field("misses", tokenCacheMisses);
+        builder.field("entries", tokenCacheEntries);
+        builder.endObject();
+
+        builder.startObject("decision_cache");
+        builder.field("hits", decisionCacheHits);
+        builder.field("misses", decisionCacheMisses);
+        builder.field("evictions", decisionCacheEvictions);
+        builder.field("entries", decisionCacheEntries);
+        builder.endObject();
+
+        builder.startObject("decision_log");
+        builder.field("sampled", decisionLogSampled);
+        builder.field("dropped", decisionLogDropped);
+        builder.field("written", decisionLogWritten);
+        builder.endObject();
+        return builder;
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package io.jans.cedarling.opensearch.stats;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.opensearch.action.FailedNodeException;
+import org.opensearch.action.support.ActionFilters;
+import org.opensearch.action.support.nodes.TransportNodesAction;
+import org.opensearch.cluster.service.ClusterService;
+import org.opensearch.common.inject.Inject;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.threadpool.ThreadPool;
+import org.opensearch.transport.*;
+
+public class TransportCedarlingStatsAction extends TransportNodesAction<
+    CedarlingStatsRequest,
+    CedarlingStatsResponse,
+    TransportCedarlingStatsAction.NodeRequest,
+    CedarlingNodeStats> {
+
+    @Inject
+    public TransportCedarlingStatsAction(ThreadPool threadPool, ClusterService clusterService,
+            TransportService transportService, ActionFilters actionFilters) {
+
+        super(CedarlingStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                CedarlingStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT, CedarlingNodeStats.class);
+    }
+
+    @Override
+    protected CedarlingStatsResponse newResponse(CedarlingStatsRequest request, List<CedarlingNodeStats> responses,
+            List<FailedNodeException> failures) {
+        return new CedarlingStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(CedarlingStatsRequest request) {
+        return new NodeRequest();
+    }
+
+    @Override
+    protected CedarlingNodeStats newNodeResponse(StreamInput in) throws IOException {
+        return new CedarlingNodeStats(in);
+    }
+
+    @Override
+    protected CedarlingNodeStats nodeOperation(NodeRequest request) {
+        return new CedarlingNodeStats(clusterService.localNode(), CedarlingMetrics.getInstance().snapshot());
+    }
+
+    public static class NodeRequest extends TransportRequest {
+
+        NodeRequest() { }
+
+        public NodeRequest(StreamInput in) throws IOException {
+            super(in);
+        }
+
+    }
+
+}
@@ -35,6 +35,13 @@ public class AlterSuiteListener implements IAlterSuiteListener {
             //overwrite file name with actual contents
             parameters.put(p, Files.readString(queryFilePath, UTF_8));            
             
+            //optional plugin settings file, same treatment
+            p = "settingsFile";
+            if (parameters.containsKey(p)) {
+                Path settingsFilePath = Path.of(propertiesFilePath.getParent().toString(), parameters.get(p));
+                parameters.put(p, Files.readString(settingsFilePath, UTF_8));
+            }
+            
             suite.setParameters(parameters);
         } catch (IOException e) {
             logger.error(e.getMessage());
@@ -1,12 +1,13 @@
 package io.jans.cedarling.opensearch;
 
 import java.util.*;
-import java.security.*;
+import java.util.concurrent.*;
 
 import org.apache.logging.log4j.*;
 import org.json.*;
 import org.testng.annotations.*;
 import org.testng.ITestContext;
+import org.testng.SkipException;
 
 import static org.testng.Assert.*;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -17,13 +18,16 @@ public class BenchmarkTest {
      
     private Logger logger = LogManager.getLogger(getClass());
     private NetworkUtil nu = null;
-    private Random ranma = new SecureRandom();
     
     private int entries;
     private String indexName;
     private String bulkEntryTemplate;
     private String queryTemplate;
     private boolean useCedarling;
+    private String settings;
+    private int enginePoolSize;
+    private int concurrency;
+    private int queriesPerClient;
     
     @BeforeClass
     public void initTestSuite(ITestContext context) throws Exception {
@@ -41,6 +45,10 @@ public class BenchmarkTest {
         bulkEntryTemplate = params.get("bulkEntryTemplate");
         queryTemplate = params.get("queryFile");
         useCedarling = Boolean.valueOf(params.get("useCedarling"));
+        settings = params.get("settingsFile");
+        enginePoolSize = Integer.parseInt(params.getOrDefault("enginePoolSize", "0"));
+        concurrency = Integer.parseInt(params.getOrDefault("concurrency", "16"));
+        queriesPerClient = Integer.parseInt(params.getOrDefault("queriesPerClient", "20"));
         
     }
     
@@ -61,20 +69,8 @@ public class BenchmarkTest {
     public void fillIndex() throws Exception {
         
         logger.info("Creating documents...");
-        String payload = "";
-        
-        for (int i = 0; i < entries; i++) {
-            payload += String.format(bulkEntryTemplate, getAString(), 
-                        getADecimal(2024, 2028), ranma.nextFloat() * MAX_GPA);
-        }
-        
-        logger.info("Payload of {} {} documents generated ({} bytes)", entries, indexName, payload.getBytes().length);
-        JSONObject obj = nu.sendPost(indexName + "/_bulk?refresh=true&filter_path=-items", 200, payload);
-        //refresh param allows the inserted documents to be immediately available for search after the POST is submitted
-        //filter_path elides the metadata associated to every insertion attempt, reducing the response size considerably
-
-        logger.debug("Checking result of bulk operation");
-        assertFalse(obj.getBoolean("errors"));
+        //Documents are generated and sent in chunks, so the payload never holds the whole index
+        new BulkLoader(nu, indexName, bulkEntryTemplate, MAX_GPA).load(entries);
         
     }
     
@@ -90,6 +86,63 @@ public class BenchmarkTest {
         
     }
     
+    //Compares the throughput of concurrent searches when nodes run a single Cedarling instance vs. a pool of them
+    @Test(dependsOnMethods="runQueries")
+    public void enginePoolQueries() throws Exception {
+        
+        if (!useCedarling || settings == null) {
+            throw new SkipException("Engine pool benchmark requires useCedarling and settingsFile");
+        }
+
+        double single = concurrentQueries(1);
+        double pooled = concurrentQueries(enginePoolSize);
+        
+        //restore the settings as supplied
+        nu.applyPluginSettings(settings, 120000);
+        logger.info("");
+        logger.info("Throughput with 1 instance (queries/s): {}", String.format("%.2f", single));
+        logger.info("Throughput with a pool of {} instances (queries/s): {}", 
+                enginePoolSize <= 0 ? "#processors" : enginePoolSize, String.format("%.2f", pooled));
+        logger.info("Speedup: {}", String.format("%.2fx", pooled / single));
+        
+    }
+    
+    private double concurrentQueries(int poolSize) throws Exception {
+        
+        JSONObject job = new JSONObject(settings);
+        job.put("enginePoolSize", poolSize);
+        nu.applyPluginSettings(job.toString(), 120000);
+        
+        logger.info("Sending {} queries from each of {} clients (enginePoolSize = {})...",
+                queriesPerClient, concurrency, poolSize);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        List<Callable<Integer>> clients = new ArrayList<>();
+
+        for (int c = 0; c < concurrency; c++) {
+            clients.add(() -> {
+                int results = 0;
+                for (int i = 0; i < queriesPerClient; i++) {
+                    String query = String.format(queryTemplate, i % MAX_GPA, i % MAX_GPA + 1);
+                    JSONObject obj = nu.sendPost(indexName + "/_search?search_pipeline=cedarling_search&size=" 
+                            + entries + "&filter_path=hits.total", 200, query);
+                    results += obj.getJSONObject("hits").getJSONObject("total").getInt("value");
+                }
+                return results;
+            });
+        }
+        
+        try {
+            long startedAt = System.nanoTime();
+            for (Future<Integer> f : executor.invokeAll(clients)) {
+                f.get();    //propagate failures
+            }
+            return concurrency * queriesPerClient * 1e9 / (System.nanoTime() - startedAt);
+        } finally {
+            executor.shutdown();
+        }
+        
+    }
+    
     //The very first query after the bulk is run tends to be very slow. Hence, a dummy query is issued and discarded
     public int warmUpQuery() throws Exception {
         
@@ -123,9 +176,9 @@ public class BenchmarkTest {
 
     public void cedarlingQueries(int perfectScorers) throws Exception {
 
-        long decisionTime = 0;
+        long decisionTime = 0, allocatedPerHit = 0;
         int queryTookMs = 0;
-        int totalResults = 0, emptyResultSets = 0;
+        int totalResults = 0, emptyResultSets = 0, profiled = 0, timed = 0;
         //Issue several different queries and compute average "took" and decision time
         for (int i = 0; i < MAX_GPA; i++) {
             String query = String.format(queryTemplate, i, i + 1);
@@ -134,15 +187,26 @@ public class BenchmarkTest {
             JSONObject obj = nu.sendPost(indexName + "/_search?search_pipeline=cedarling_search&size=" + entries, 200, query);
             queryTookMs += obj.getInt("took");
             
-            long adt = obj.getJSONObject("ext").getJSONObject("cedarling").getInt("average_decision_time");
+            JSONObject cedarlingExt = obj.getJSONObject("ext").getJSONObject("cedarling");
+            long adt = cedarlingExt.getInt("average_decision_time");
             int res = obj.getJSONObject("hits").getJSONObject("total").getInt("value");
             
-            if (adt == -1) {
+            if (cedarlingExt.getLong("evaluated_hits") == 0) {
                 //No decisions performed, ie. empty result set. This may occur when the amount of generated documents is small
                 emptyResultSets++;
                 assertEquals(res, 0);
             } else {
-                decisionTime += adt;
+                //-1 when no hit reached Cedarling, e.g. all were served by the decision cache
+                if (adt >= 0) {
+                    decisionTime += adt;
+                    timed++;
+                }
+                //Only reported when query.json has "profile": true
+                JSONObject profile = cedarlingExt.optJSONObject("profile");
+                if (profile != null) {
+                    allocatedPerHit += profile.optLong("allocated_bytes_per_hit");
+                    profiled++;
+                }
                 totalResults += res;
             } 
         }
@@ -151,22 +215,12 @@ public class BenchmarkTest {
         logger.info("");
         logger.info("Average plugin query time (ms): {}", String.format("%.3f", 1.0f*queryTookMs / MAX_GPA));
         logger.info("Average Cedarling Java decision time per document (ms): {}",
-                String.format("%.3f", decisionTime / ((MAX_GPA - emptyResultSets) * 1000.0f)));
-        
-    }
-    
-    private String getAString() {
-
-        //radix 36 entails characters: 0-9 plus a-z
-        String path = Integer.toString(ranma.nextInt(), Math.min(36, Character.MAX_RADIX));
-        //path will have at most 6 chars in practice
-        return path.substring(path.charAt(0) == '-' ? 1 : 0);
+                String.format("%.3f", timed == 0 ? 0 : decisionTime / (timed * 1000.0f)));
+        if (profiled > 0) {
+            logger.info("Average memory allocated per document during authorization (bytes): {}",
+                    allocatedPerHit / profiled);
+        }
         
     }
     
-    private int getADecimal(int min, int max) {
-        //Pick a uniformly distributed random number from the range [min, max)
-        return ranma.nextInt(max - min + 1) + min;
-    }    
-    
 }
@@ -0,0 +1,81 @@
+package io.jans.cedarling.opensearch;
+
+import java.util.*;
+import java.security.*;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+
+import static org.testng.Assert.*;
+
+/**
+ * Fills an index with random student documents. Documents are generated and sent in chunks, so memory usage
+ * does not depend on the number of documents
+ */
+public class BulkLoader {
+    
+    private static final int CHUNK_SIZE = 5000;
+    
+    private Logger logger = LogManager.getLogger(getClass());
+    private Random ranma = new SecureRandom();
+    
+    private NetworkUtil nu;
+    private String indexName;
+    private String bulkEntryTemplate;
+    private int maxGpa;
+    
+    /**
+     * @param nu Client to employ
+     * @param indexName Index to fill
+     * @param bulkEntryTemplate Template of a bulk entry. It receives a name, a graduation year, and a GPA
+     * @param maxGpa Upper bound of GPAs
+     */
+    public BulkLoader(NetworkUtil nu, String indexName, String bulkEntryTemplate, int maxGpa) {
+        this.nu = nu;
+        this.indexName = indexName;
+        this.bulkEntryTemplate = bulkEntryTemplate;
+        this.maxGpa = maxGpa;
+    }
+    
+    public void load(int entries) throws Exception {
+        
+        long bytes = 0;
+        StringBuilder payload = new StringBuilder();
+        
+        for (int sent = 0; sent < entries; sent += CHUNK_SIZE) {
+            payload.setLength(0);
+            int chunk = Math.min(CHUNK_SIZE, entries - sent);
+            
+            for (int i = 0; i < chunk; i++) {
+                payload.append(String.format(bulkEntryTemplate, getAString(), 
+                        getADecimal(2024, 2028), ranma.nextFloat() * maxGpa));
+            }
+            bytes += payload.length();
+            
+            //refresh makes the inserted documents immediately available for search once the last chunk is sent
+            //filter_path elides the metadata associated to every insertion attempt, reducing the response size considerably
+            String refresh = sent + chunk >= entries ? "refresh=true&" : "";
+            JSONObject obj = nu.sendPost(indexName + "/_bulk?" + refresh + "filter_path=-items", 200, payload.toString());
+            
+            logger.debug("Checking result of bulk operation");
+            assertFalse(obj.getBoolean("errors"));
+        }
+        logger.info("{} {} documents loaded ({} bytes)", entries, indexName, bytes);
+        
+    }
+    
+    private String getAString() {
+
+        //radix 36 entails characters: 0-9 plus a-z
+        String path = Integer.toString(ranma.nextInt(), Math.min(36, Character.MAX_RADIX));
+        //path will have at most 6 chars in practice
+        return path.substring(path.charAt(0) == '-' ? 1 : 0);
+        
+    }
+    
+    private int getADecimal(int min, int max) {
+        //Pick a uniformly distributed random number from the range [min, max)
+        return ranma.nextInt(max - min + 1) + min;
+    }
+    
+}
@@ -0,0 +1,281 @@
+package io.jans.cedarling.opensearch;
+
+import com.nimbusds.jose.*;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.*;
+
+import io.jans.cedarling.opensearch.policy.CompiledPolicies;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.*;
+
+import org.apache.logging.log4j.*;
+import org.json.*;
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Differential test of the compiled policies: random principals and documents are decided both by Cedarling and
+ * by the compiled policies, which must agree whenever the latter make a decision. Tokens Cedarling rejects must
+ * never get a compiled decision. It runs offline with the policy store under resources/differential (see the
+ * differentialTest gradle task). Pass -Pdifferential.seed=<n> to reproduce a run
+ */
+public class CompiledPoliciesTest {
+
+    private static final String TOKEN_MAPPING = "Jans::Userinfo_token";
+    private static final String ENTITY_TYPE = "Jans::student";
+    private static final String SEARCH = "Jans::Action::\"Search\"";
+    private static final String AUDIT = "Jans::Action::\"Audit\"";
+    private static final String ISSUER_ID = "test";
+    private static final String ISSUER = "https://test.invalid";
+    private static final String[] POLICY_STORE_ENTRIES = { "metadata.json", "schema.cedarschema",
+            "policies/alumni.cedar", "policies/sealed.cedar", "policies/local_students.cedar",
+            "policies/graduating.cedar", "policies/auditors.cedar", "trusted-issuers/test.json" };
+
+    private static final String[] ROLES = { "Student", "AdmissionsCounselor", "Registrar", "Dean" };
+    private static final String[] NAMES = { "Ann", "Alice", "Bob", "Carl", "Aaron", "Dana" };
+    private static final String[] CITIES = { "Austin", "Boston", "Denver" };
+    private static final String[] LABELS = { "sealed", "honors", "exchange" };
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    private Random random;
+    private RSAKey key;
+    private CedarlingEngine engine;
+    private CompiledPolicies compiledPolicies;
+
+    private int principals;
+    private int documents;
+
+    @BeforeClass
+    public void init() throws Exception {
+
+        long seed = Long.getLong("differential.seed", System.nanoTime());
+        logger.info("Seed is {}", seed);
+        random = new Random(seed);
+        principals = Integer.getInteger("differential.principals", 20);
+        documents = Integer.getInteger("differential.documents", 200);
+
+        Path dir = Files.createTempDirectory("cedarling-differential");
+        Path store = dir.resolve("policy-store.cjar");
+        packPolicyStore(store);
+
+        key = new RSAKeyGenerator(2048).keyID("differential-" + System.currentTimeMillis()).generate();
+        Path jwks = dir.resolve("jwks.json");
+        JSONObject keys = new JSONObject().put(ISSUER_ID, new JSONArray().put(
+                new JSONObject(key.toPublicJWK().toJSONObject())));
+        Files.writeString(jwks, keys.toString(), UTF_8);
+
+        JSONObject bootstrap = new JSONObject()
+                .put("CEDARLING_APPLICATION_NAME", "Cedarling OpenSearch differential test")
+                .put(PolicyStoreCache.POLICY_STORE_LOCAL_FN_KEY, store.toString())
+                .put(PolicyStoreCache.JWT_SIG_VALIDATION_KEY, "enabled")
+                .put(PolicyStoreCache.LOCAL_JWKS_KEY, jwks.toString())
+                .put("CEDARLING_JWT_STATUS_VALIDATION", "disabled")
+                .put("CEDARLING_JWT_SIGNATURE_ALGORITHMS_SUPPORTED", List.of("RS256"))
+                .put("CEDARLING_LOG_TYPE", "memory")
+                .put("CEDARLING_LOG_LEVEL", "WARN")
+                .put("CEDARLING_LOG_TTL", 60);
+
+        //A single instance: no thread pool is involved
+        engine = new CedarlingEngine(bootstrap, bootstrap, false, SEARCH, ENTITY_TYPE, 1);
+        assertTrue(engine.isStarted(), "Cedarling could not be started. Check the log for details");
+
+        compiledPolicies = engine.getCompiledPolicies();
+        assertNotNull(compiledPolicies, "Policies were not compiled");
+
+    }
+
+    @AfterClass
+    public void cleanup() {
+        if (engine != null) {
+            engine.decRef();
+        }
+    }
+
+    @Test
+    public void agreesWithCedarling() throws Exception {
+
+        int decided = 0, total = 0;
+        for (int p = 0; p < principals; p++) {
+            List<String> roles = randomSubset(ROLES);
+            String token = sign(roles);
+            Map<String, String> tokens = Map.of(TOKEN_MAPPING, token);
+            TokenBundle bundle = TokenBundle.from(tokens, TokenBundle.fingerprint(tokens));
+            JSONObject context = new JSONObject();
+
+            CompiledPolicies.Evaluator evaluator = compiledPolicies.forRequest(SEARCH, ENTITY_TYPE,
+                    bundle.getClaims(), context);
+            assertNotNull(evaluator, "Search requests should be compilable");
+
+            for (int d = 0; d < documents; d++) {
+                JSONObject document = randomDocument();
+                String id = String.valueOf(d);
+                JSONObject resource = new JSONObject(document.toString()).put(CedarlingService.ENTITY_MAPPING_KEY,
+                        Map.of("entity_type", ENTITY_TYPE, "id", id));
+
+                boolean expected = engine.authorize(bundle.getTokenInputs(), SEARCH, resource, context, 0);
+                //The binding must only read encoded resources through their serialized form (see EncodedResource)
+                EncodedResource encoded = new EncodedResource(resource.toString(), ENTITY_TYPE, id, null);
+                assertEquals(engine.authorize(bundle.getTokenInputs(), SEARCH, encoded, context, 0), expected,
+                        "Encoded resource " + encoded);
+                Boolean actual = evaluator.decide(id, document);
+                total++;
+                if (actual != null) {
+                    decided++;
+                    assertEquals(actual.booleanValue(), expected, "Roles " + roles + ", document " + document);
+                }
+            }
+        }
+        logger.info("{} of {} decisions made by the compiled policies", decided, total);
+        //Only documents with undeclared or mistyped attributes are expected to be left to Cedarling
+        assertTrue(decided > total / 2, "Too few decisions made by the compiled policies");
+
+    }
+
+    @Test
+    public void ignoresForgedTokens() throws Exception {
+
+        //Same issuer and key id, but signed with a key Cedarling does not trust
+        RSAKey forger = new RSAKeyGenerator(2048).keyID(key.getKeyID()).generate();
+        Map<String, String> tokens = Map.of(TOKEN_MAPPING, sign(List.of("Student"), forger));
+        TokenBundle bundle = TokenBundle.from(tokens, TokenBundle.fingerprint(tokens));
+
+        //Denied by the compiled policies first, so Cedarling's deny agrees with them, then permitted
+        List<JSONObject> resources = new ArrayList<>();
+        for (int d = 0; d < documents; d++) {
+            JSONObject document = new JSONObject().put("name", "Bob")
+                    .put("grad_year", d < documents / 2 ? 2030 : 2020);
+            resources.add(document.put(CedarlingService.ENTITY_MAPPING_KEY,
+                    Map.of("entity_type", ENTITY_TYPE, "id", String.valueOf(d))));
+        }
+        CompiledPolicies.Evaluator evaluator = compiledPolicies.forRequest(SEARCH, ENTITY_TYPE,
+                bundle.getClaims(), new JSONObject());
+        assertEquals(evaluator.decide("0", new JSONObject().put("name", "Bob").put("grad_year", 2020)),
+                Boolean.TRUE);
+
+        JSONObject settings = new JSONObject().put("compiledPolicies", true).put("bootstrapProperties", new JSONObject())
+                .put("searchActionName", SEARCH).put("schemaPrefix", "Jans");
+        CedarlingService service = CedarlingService.getInstance();
+        service.configureCaches(PluginSettings.from(settings, System.currentTimeMillis()));
+
+        RequestStats stats = new RequestStats();
+        Boolean[] decisions = service.authorizeBatch(engine, bundle, SEARCH, resources, new JSONObject(), stats);
+        for (int d = 0; d < decisions.length; d++) {
+            assertNotEquals(decisions[d], Boolean.TRUE, "Document " + d + " was permitted with a forged token");
+        }
+        assertEquals(stats.getCompiledDecisions(), 0);
+
+    }
+
+    @Test
+    public void leavesUnsupportedPoliciesToCedarling() throws Exception {
+
+        Map<String, String> tokens = Map.of(TOKEN_MAPPING, sign(List.of("Dean")));
+        TokenBundle bundle = TokenBundle.from(tokens, TokenBundle.fingerprint(tokens));
+
+        //The only Audit policy refers to the principal and uses decimals
+        assertNull(compiledPolicies.forRequest(AUDIT, ENTITY_TYPE, bundle.getClaims(), new JSONObject()));
+        assertNull(compiledPolicies.forRequest(SEARCH, "Jans::teacher", bundle.getClaims(), new JSONObject()));
+
+    }
+
+    private JSONObject randomDocument() {
+
+        JSONObject document = new JSONObject()
+                .put("name", NAMES[random.nextInt(NAMES.length)])
+                .put("grad_year", 2018 + random.nextInt(15));
+
+        if (random.nextInt(3) == 0) {
+            document.put("gpa", String.valueOf(2 + random.nextInt(20) / 10.0));
+        }
+        if (random.nextInt(3) == 0) {
+            document.put("credits", 100 + random.nextInt(150));
+        }
+        if (random.nextInt(2) == 0) {
+            document.put("address", new JSONObject()
+                    .put("city", CITIES[random.nextInt(CITIES.length)])
+                    .put("zip", 10000 + random.nextInt(90000)));
+        }
+        if (random.nextInt(2) == 0) {
+            document.put("labels", new JSONArray(randomSubset(LABELS)));
+        }
+
+        //Documents Cedarling has to handle: attributes missing from the schema or with unexpected types
+        switch (random.nextInt(10)) {
+            case 0:
+                document.put("nickname", "n" + random.nextInt(100));
+                break;
+            case 1:
+                document.put("grad_year", String.valueOf(document.getInt("grad_year")));
+                break;
+            default:
+                break;
+        }
+        return document;
+
+    }
+
+    private List<String> randomSubset(String[] values) {
+
+        List<String> subset = new ArrayList<>();
+        for (String value : values) {
+            if (random.nextBoolean()) {
+                subset.add(value);
+            }
+        }
+        return subset;
+
+    }
+
+    private void packPolicyStore(Path target) throws IOException {
+
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(target))) {
+            for (String entry : POLICY_STORE_ENTRIES) {
+                try (InputStream is = getClass().getResourceAsStream("/differential/" + entry)) {
+                    if (is == null) {
+                        throw new FileNotFoundException("differential/" + entry);
+                    }
+                    zos.putNextEntry(new ZipEntry(entry));
+                    is.transferTo(zos);
+                    zos.closeEntry();
+                }
+            }
+        }
+
+    }
+
+    private String sign(List<String> roles) throws JOSEException {
+        return sign(roles, key);
+    }
+
+    private String sign(List<String> roles, RSAKey signingKey) throws JOSEException {
+
+        long now = System.currentTimeMillis();
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                .issuer(ISSUER)
+                .subject("user-" + random.nextInt(1000))
+                .jwtID(UUID.randomUUID().toString())
+                .audience("test-client")
+                .claim("client_id", "test-client")
+                .claim("role", roles)
+                .issueTime(new Date(now))
+                .notBeforeTime(new Date(now))
+                .expirationTime(new Date(now + TimeUnit.HOURS.toMillis(1)))
+                .build();
+
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(signingKey.getKeyID())
+                .type(JOSEObjectType.JWT).build(), claims);
+        jwt.sign(new RSASSASigner(signingKey));
+        return jwt.serialize();
+
+    }
+
+}
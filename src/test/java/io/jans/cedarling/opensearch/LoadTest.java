@@ -0,0 +1,211 @@
+package io.jans.cedarling.opensearch;
+
+import java.io.*;
+import java.net.http.HttpRequest;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.logging.log4j.*;
+import org.json.*;
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Load harness meant to be run against a test cluster with the loadTest gradle task (see benchmark.md). It sends
+ * searches at fixed rates, with and without the plugin pipeline, and exports throughput, latency percentiles, and
+ * CPU/GC samples to CSV and JSON files so that results of different commits can be compared. Parameters are
+ * passed as load.* system properties
+ */
+public class LoadTest {
+
+    private static final int MAX_GPA = 5;
+    private static final String NO_PIPELINE = "none";
+    private static final String PIPELINE = "cedarling_search";
+    private static final List<String> COLUMNS = List.of("pipeline", "rate", "requests", "failed", "throughput",
+            "mean_ms", "p50_ms", "p95_ms", "p99_ms", "max_ms", "cpu_avg", "cpu_max", "heap_max", "young_gc_count",
+            "young_gc_ms", "old_gc_count", "old_gc_ms");
+
+    private Logger logger = LogManager.getLogger(getClass());
+    private NetworkUtil nu;
+    private String baseUrl;
+
+    private String indexName;
+    private int entries;
+    private int clients;
+    private int[] rates;
+    private int duration;
+    private int warmup;
+    private int size;
+    private String queryTemplate;
+    private String bulkEntryTemplate;
+    private String settingsFile;
+    private String pipelineFile;
+    private Path outputDir;
+
+    private boolean usePlugin;
+    private List<JSONObject> results = new ArrayList<>();
+    private List<String> sampleRows = new ArrayList<>();
+
+    @BeforeClass
+    public void init() throws Exception {
+
+        //Set by the gradle task: a comma-separated list of host:port
+        String cluster = System.getProperty("tests.rest.cluster", "localhost:9200").split(",")[0];
+        baseUrl = "http://" + cluster;
+        nu = new NetworkUtil(baseUrl, null);
+
+        indexName = System.getProperty("load.index", "student");
+        entries = Integer.getInteger("load.entries", 10000);
+        clients = Integer.getInteger("load.clients", 32);
+        rates = Arrays.stream(System.getProperty("load.rates", "50,100,200").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+        duration = Integer.getInteger("load.duration", 30);
+        warmup = Integer.getInteger("load.warmup", 5);
+        size = Integer.getInteger("load.size", 100);
+        queryTemplate = Files.readString(Path.of(System.getProperty("load.queryFile", "src/test/resources/query.json")), UTF_8);
+        bulkEntryTemplate = System.getProperty("load.bulkEntryTemplate",
+                "{ \"create\": {} }\n{ \"name\": \"%s\", \"grad_year\": %d, \"gpa\": %.2f }\n");
+        settingsFile = System.getProperty("load.settingsFile");
+        pipelineFile = System.getProperty("load.pipelineFile", "pipeline.json");
+
+        String label = System.getProperty("load.label", String.valueOf(System.currentTimeMillis()));
+        outputDir = Path.of(System.getProperty("load.output", "build/load-results"), label);
+
+    }
+
+    @Test
+    public void fillIndex() throws Exception {
+
+        logger.info("Deleting index {}...", indexName);
+        nu.sendDelete(indexName, 200, 404);
+        new BulkLoader(nu, indexName, bulkEntryTemplate, MAX_GPA).load(entries);
+
+    }
+
+    @Test(dependsOnMethods = "fillIndex")
+    public void setupPlugin() throws Exception {
+
+        if (settingsFile == null) {
+            logger.warn("load.settingsFile not supplied. Only searches without the plugin will be run");
+            return;
+        }
+
+        logger.info("Applying plugin settings and creating pipeline {}...", PIPELINE);
+        nu.applyPluginSettings(Files.readString(Path.of(settingsFile), UTF_8), 120000);
+        JSONObject obj = nu.sendPut("_search/pipeline/" + PIPELINE, 200, Files.readString(Path.of(pipelineFile), UTF_8));
+        assertTrue(obj.getBoolean("acknowledged"));
+        usePlugin = true;
+
+    }
+
+    @Test(dependsOnMethods = "setupPlugin")
+    public void runLoad() throws Exception {
+
+        OpenLoopRunner runner = new OpenLoopRunner(clients);
+        List<String> pipelines = usePlugin ? List.of(NO_PIPELINE, PIPELINE) : List.of(NO_PIPELINE);
+
+        for (String pipeline : pipelines) {
+            String url = baseUrl + "/" + indexName + "/_search?filter_path=took,hits.total&size=" + size
+                    + (pipeline.equals(NO_PIPELINE) ? "" : "&search_pipeline=" + pipeline);
+
+            for (int rate : rates) {
+                logger.info("Pipeline {}, {} requests/s: warming up for {}s...", pipeline, rate, warmup);
+                runner.run(rate, warmup, i -> request(url, i));
+
+                logger.info("Running for {}s with {} clients...", duration, clients);
+                try (NodeStatsSampler sampler = new NodeStatsSampler(baseUrl)) {
+                    sampler.start();
+                    OpenLoopRunner.Result result = runner.run(rate, duration, i -> request(url, i));
+                    record(pipeline, result, sampler.stop());
+                }
+            }
+        }
+
+        export();
+        report();
+
+    }
+
+    private HttpRequest request(String url, int i) {
+        //Queries cycle over the GPA intervals [0, 1), [1, 2), etc.
+        int gpa = i % MAX_GPA;
+        return OpenLoopRunner.post(url, String.format(queryTemplate, gpa, gpa + 1)).build();
+    }
+
+    private void record(String pipeline, OpenLoopRunner.Result r, List<NodeStatsSampler.Sample> samples) {
+
+        DoubleSummaryStatistics cpu = samples.stream().mapToDouble(s -> s.cpuPercent).summaryStatistics();
+        NodeStatsSampler.Sample last = samples.isEmpty() ? new NodeStatsSampler.Sample() : samples.get(samples.size() - 1);
+
+        JSONObject job = new JSONObject();
+        job.put("pipeline", pipeline);
+        job.put("rate", r.rate);
+        job.put("requests", r.requests);
+        job.put("failed", r.failed);
+        job.put("throughput", round(r.throughput));
+        job.put("mean_ms", round(r.mean));
+        job.put("p50_ms", round(r.p50));
+        job.put("p95_ms", round(r.p95));
+        job.put("p99_ms", round(r.p99));
+        job.put("max_ms", round(r.max));
+        job.put("cpu_avg", round(cpu.getCount() == 0 ? 0 : cpu.getAverage()));
+        job.put("cpu_max", round(cpu.getCount() == 0 ? 0 : cpu.getMax()));
+        job.put("heap_max", round(samples.stream().mapToDouble(s -> s.heapUsedPercent).max().orElse(0)));
+        job.put("young_gc_count", last.youngGcCount);
+        job.put("young_gc_ms", last.youngGcMillis);
+        job.put("old_gc_count", last.oldGcCount);
+        job.put("old_gc_ms", last.oldGcMillis);
+        results.add(job);
+
+        for (NodeStatsSampler.Sample s : samples) {
+            sampleRows.add(String.join(",", pipeline, String.valueOf(r.rate), String.valueOf(s.elapsedMillis),
+                    String.valueOf(round(s.cpuPercent)), String.valueOf(round(s.heapUsedPercent)),
+                    String.valueOf(s.youngGcCount), String.valueOf(s.youngGcMillis),
+                    String.valueOf(s.oldGcCount), String.valueOf(s.oldGcMillis)));
+        }
+
+    }
+
+    private void export() throws IOException {
+
+        Files.createDirectories(outputDir);
+        Files.writeString(outputDir.resolve("summary.json"), new JSONArray(results).toString(2), UTF_8);
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.join(",", COLUMNS));
+        for (JSONObject job : results) {
+            lines.add(String.join(",", COLUMNS.stream().map(k -> job.get(k).toString()).toList()));
+        }
+        Files.write(outputDir.resolve("summary.csv"), lines, UTF_8);
+
+        lines = new ArrayList<>();
+        lines.add("pipeline,rate,elapsed_ms,cpu_percent,heap_used_percent,young_gc_count,young_gc_ms,old_gc_count,old_gc_ms");
+        lines.addAll(sampleRows);
+        Files.write(outputDir.resolve("samples.csv"), lines, UTF_8);
+        logger.info("Results exported to {}", outputDir.toAbsolutePath());
+
+    }
+
+    private void report() {
+
+        logger.info("");
+        logger.info(String.format("%-18s %6s %9s %8s %8s %8s %8s %7s %8s", "pipeline", "rate", "thrpt/s",
+                "p50 ms", "p95 ms", "p99 ms", "max ms", "cpu %", "gc ms"));
+        for (JSONObject job : results) {
+            logger.info(String.format("%-18s %6d %9.2f %8.2f %8.2f %8.2f %8.2f %7.1f %8d", job.getString("pipeline"),
+                    job.getInt("rate"), job.getDouble("throughput"), job.getDouble("p50_ms"), job.getDouble("p95_ms"),
+                    job.getDouble("p99_ms"), job.getDouble("max_ms"), job.getDouble("cpu_avg"),
+                    job.getLong("young_gc_ms") + job.getLong("old_gc_ms")));
+        }
+
+        results.forEach(job -> assertEquals(job.getInt("failed"), 0, "Failed requests at " + job.getInt("rate") + "/s"));
+
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+}
@@ -30,6 +30,14 @@ public class NetworkUtil {
         this.readTimeout = readTimeout;
     }
     
+    public JSONObject sendGet(String uri, int expectedStatus) throws Exception {
+        return send(uri, new int[] { expectedStatus }, HTTPRequest.Method.GET, null);
+    }
+    
+    public JSONObject sendPut(String uri, int expectedStatus, String jsonPayload) throws Exception {
+        return send(uri, new int[] { expectedStatus }, HTTPRequest.Method.PUT, jsonPayload);
+    }
+    
     public JSONObject sendDelete(String uri, int... expectedStatus) throws Exception {
         return send(uri, expectedStatus, HTTPRequest.Method.DELETE, null);
     }
@@ -38,13 +46,41 @@ public class NetworkUtil {
         return send(uri, new int[] { expectedStatus }, HTTPRequest.Method.POST, jsonPayload);
     }
     
+    /**
+     * Updates the plugin settings and waits for every node to apply them. Settings are applied in the background,
+     * so this polls the stats endpoint until every node reports one more reload
+     */
+    public void applyPluginSettings(String json, long timeoutMillis) throws Exception {
+        
+        JSONObject stats = sendGet("_plugins/cedarling/_stats", 200);
+        int nodes = stats.getJSONObject("_nodes").getInt("total");
+        long reloads = stats.getJSONObject("aggregated").getJSONObject("settings").getLong("reloads");
+
+        JSONObject obj = sendPut("_plugins/cedarling/settings", 200, json);
+        if (!obj.getBoolean("acknowledged")) {
+            throw new IllegalStateException("Settings update not acknowledged");
+        }
+        
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (reloads + nodes > sendGet("_plugins/cedarling/_stats", 200).getJSONObject("aggregated")
+                .getJSONObject("settings").getLong("reloads")) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Settings were not applied in time");
+            }
+            Thread.sleep(500);
+        }
+        
+    }
+    
     private JSONObject send(String uri, int[] expectedStatus, HTTPRequest.Method method, String jsonPayload)
         throws Exception {
         
         HTTPRequest request = new HTTPRequest(method, new URL(host + "/" + uri));
         request.setConnectTimeout(connectionTimeout);
         request.setReadTimeout(readTimeout);
-        request.setHeader("Authorization", authzHeader);
+        if (authzHeader != null) {
+            request.setHeader("Authorization", authzHeader);
+        }
         
         if (jsonPayload != null) {
             request.setBody(jsonPayload);
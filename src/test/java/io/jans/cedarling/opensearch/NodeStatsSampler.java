@@ -0,0 +1,108 @@
+package io.jans.cedarling.opensearch;
+
+import java.net.URI;
+import java.net.http.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.logging.log4j.*;
+import org.json.JSONObject;
+
+/**
+ * Polls the node stats of the cluster every second in order to capture the shape of CPU and GC activity while a
+ * load phase runs. Figures of all nodes are combined: CPU and heap usage are averaged, GC counters summed
+ */
+public class NodeStatsSampler implements AutoCloseable {
+
+    private static final String STATS_PATH = "/_nodes/stats/process,jvm?filter_path=nodes.*.process.cpu,"
+            + "nodes.*.jvm.mem.heap_used_percent,nodes.*.jvm.gc";
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    private HttpClient client = HttpClient.newHttpClient();
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private List<Sample> samples = new CopyOnWriteArrayList<>();
+    private String url;
+    private long startedAt;
+
+    public NodeStatsSampler(String baseUrl) {
+        url = baseUrl + STATS_PATH;
+    }
+
+    public void start() {
+        startedAt = System.currentTimeMillis();
+        scheduler.scheduleAtFixedRate(this::sample, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops sampling
+     * @return The samples taken. GC figures are relative to the first sample
+     */
+    public List<Sample> stop() throws InterruptedException {
+
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+
+        List<Sample> result = new ArrayList<>(samples);
+        if (!result.isEmpty()) {
+            Sample first = result.get(0);
+            for (Sample s : result) {
+                s.youngGcCount -= first.youngGcCount;
+                s.youngGcMillis -= first.youngGcMillis;
+                s.oldGcCount -= first.oldGcCount;
+                s.oldGcMillis -= first.oldGcMillis;
+            }
+        }
+        return result;
+
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void sample() {
+
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(5)).GET().build();
+            JSONObject nodes = new JSONObject(client.send(request, HttpResponse.BodyHandlers.ofString()).body())
+                    .getJSONObject("nodes");
+
+            Sample s = new Sample();
+            s.elapsedMillis = System.currentTimeMillis() - startedAt;
+            for (String id : nodes.keySet()) {
+                JSONObject node = nodes.getJSONObject(id);
+                JSONObject jvm = node.getJSONObject("jvm");
+                JSONObject collectors = jvm.getJSONObject("gc").getJSONObject("collectors");
+
+                s.cpuPercent += node.getJSONObject("process").getJSONObject("cpu").getInt("percent");
+                s.heapUsedPercent += jvm.getJSONObject("mem").getInt("heap_used_percent");
+                s.youngGcCount += collectors.getJSONObject("young").getLong("collection_count");
+                s.youngGcMillis += collectors.getJSONObject("young").getLong("collection_time_in_millis");
+                s.oldGcCount += collectors.getJSONObject("old").getLong("collection_count");
+                s.oldGcMillis += collectors.getJSONObject("old").getLong("collection_time_in_millis");
+            }
+            s.cpuPercent /= nodes.length();
+            s.heapUsedPercent /= nodes.length();
+            samples.add(s);
+        } catch (Exception e) {
+            logger.warn("Node stats could not be sampled: {}", e.getMessage());
+        }
+
+    }
+
+    public static class Sample {
+
+        long elapsedMillis;
+        double cpuPercent;
+        double heapUsedPercent;
+        long youngGcCount;
+        long youngGcMillis;
+        long oldGcCount;
+        long oldGcMillis;
+
+    }
+
+}
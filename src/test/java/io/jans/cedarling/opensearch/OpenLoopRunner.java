@@ -0,0 +1,122 @@
+package io.jans.cedarling.opensearch;
+
+import java.net.URI;
+import java.net.http.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Sends requests at a fixed rate regardless of how fast responses come back (open loop), using a fixed number
+ * of concurrent clients. Latencies are measured from the time a request was scheduled to be sent, not from the
+ * time a client picked it up, so queueing caused by a slow server is accounted for
+ */
+public class OpenLoopRunner {
+
+    private Logger logger = LogManager.getLogger(getClass());
+
+    private HttpClient client;
+    private int clients;
+
+    public OpenLoopRunner(int clients) {
+        this.clients = clients;
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5)).build();
+    }
+
+    /**
+     * Runs a phase
+     * @param rate Requests per second
+     * @param seconds Duration of the phase
+     * @param requests Produces the i-th request to send
+     * @return The outcome of the phase
+     * @throws InterruptedException If interrupted while waiting for the last responses
+     */
+    public Result run(int rate, int seconds, IntFunction<HttpRequest> requests) throws InterruptedException {
+
+        int total = rate * seconds;
+        long[] latencies = new long[total];
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(clients);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long startedAt = System.nanoTime();
+
+        for (int i = 0; i < total; i++) {
+            long scheduledAt = startedAt + i * intervalNanos;
+            long wait = scheduledAt - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            int n = i;
+            workers.execute(() -> {
+                try {
+                    HttpResponse<Void> response = client.send(requests.apply(n), HttpResponse.BodyHandlers.discarding());
+                    if (response.statusCode() != 200) {
+                        failed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    logger.debug("Request failed: {}", e.getMessage());
+                }
+                latencies[n] = System.nanoTime() - scheduledAt;
+            });
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(Math.max(60, seconds), TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - startedAt;
+        return new Result(rate, latencies, failed.get(), elapsed);
+
+    }
+
+    public static HttpRequest.Builder post(String url, String body) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(60))
+                .header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body));
+    }
+
+    /**
+     * Outcome of a phase. Latencies are in milliseconds
+     */
+    public static class Result {
+
+        final int rate;
+        final int requests;
+        final int failed;
+        final double throughput;
+        final double p50;
+        final double p95;
+        final double p99;
+        final double max;
+        final double mean;
+
+        Result(int rate, long[] latencyNanos, int failed, long elapsedNanos) {
+
+            long[] sorted = latencyNanos.clone();
+            Arrays.sort(sorted);
+            this.rate = rate;
+            this.requests = sorted.length;
+            this.failed = failed;
+            throughput = (sorted.length - failed) * 1e9 / elapsedNanos;
+            p50 = percentile(sorted, 0.50);
+            p95 = percentile(sorted, 0.95);
+            p99 = percentile(sorted, 0.99);
+            max = sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6;
+            mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+    }
+
+}
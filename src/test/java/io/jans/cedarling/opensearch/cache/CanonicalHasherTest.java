@@ -0,0 +1,68 @@
+package io.jans.cedarling.opensearch.cache;
+
+import java.util.*;
+
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit tests of the digests used in decision cache keys: equal structures must hash alike regardless of key
+ * order, and different structures must not. It runs offline (see the unitTest gradle task)
+ */
+public class CanonicalHasherTest {
+
+    private CanonicalHasher hasher;
+
+    @BeforeMethod
+    public void init() {
+        hasher = new CanonicalHasher();
+    }
+
+    @Test
+    public void ignoresKeyOrder() {
+
+        Map<String, Object> a = new LinkedHashMap<>(), b = new LinkedHashMap<>();
+        a.put("x", 1);
+        a.put("y", List.of("p", "q"));
+        b.put("y", List.of("p", "q"));
+        b.put("x", 1);
+
+        assertEquals(digest(a), digest(b));
+
+    }
+
+    @Test
+    public void excludesTopLevelKeys() {
+
+        assertEquals(hasher.digest(Map.of("a", 1, "m", "x"), Set.of("m")), digest(Map.of("a", 1)));
+        //Only at the top level
+        assertNotEquals(hasher.digest(Map.of("n", Map.of("m", "x")), Set.of("m")), digest(Map.of("n", Map.of())));
+
+    }
+
+    @Test
+    public void tellsTypesApart() {
+
+        assertNotEquals(digest(Map.of("a", 1)), digest(Map.of("a", "1")));
+        assertNotEquals(digest(Map.of("a", true)), digest(Map.of("a", "true")));
+        assertNotEquals(digest(Map.of("a", List.of())), digest(Map.of("a", Map.of())));
+
+    }
+
+    @Test
+    public void resistsForgedBoundaries() {
+
+        //A string value must not be able to impersonate the keys and values following it
+        assertNotEquals(digest(Map.of("a", "v", "b", "w")), digest(Map.of("a", "v\u0000b:Sw")));
+        assertNotEquals(digest(Map.of("a", "v", "b", "w")), digest(Map.of("a", "v\u0000\u0000\u0000\u0001bS")));
+        assertNotEquals(digest(Map.of("ab", "c")), digest(Map.of("a", "bc")));
+        assertNotEquals(digest(Map.of("a", List.of("x", "y"))), digest(Map.of("a", List.of("x\u0000Sy"))));
+
+    }
+
+    private String digest(Map<String, ?> map) {
+        return hasher.digest(map, Collections.emptySet());
+    }
+
+}
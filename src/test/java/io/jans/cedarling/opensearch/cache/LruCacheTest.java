@@ -0,0 +1,88 @@
+package io.jans.cedarling.opensearch.cache;
+
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit tests of the LRU cache: expiration, eviction by count and weight, and counters. It runs offline (see the
+ * unitTest gradle task)
+ */
+public class LruCacheTest {
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+
+        //Fewer than 16 entries make a single segment
+        LruCache<String, Integer> cache = new LruCache<>(3);
+        cache.put("a", 1, NEVER);
+        cache.put("b", 2, NEVER);
+        cache.put("c", 3, NEVER);
+        assertEquals(cache.get("a"), Integer.valueOf(1));
+        cache.put("d", 4, NEVER);
+
+        assertNull(cache.get("b"));
+        assertEquals(cache.get("a"), Integer.valueOf(1));
+        assertEquals(cache.get("d"), Integer.valueOf(4));
+        assertEquals(cache.size(), 3);
+        assertEquals(cache.getEvictions(), 1L);
+
+    }
+
+    @Test
+    public void dropsExpiredEntries() {
+
+        LruCache<String, Integer> cache = new LruCache<>(10);
+        cache.put("a", 1, System.currentTimeMillis() - 1);
+        cache.put("b", 2, NEVER);
+
+        assertNull(cache.get("a"));
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.getHits(), 0L);
+        assertEquals(cache.getMisses(), 1L);
+        assertEquals(cache.get("b"), Integer.valueOf(2));
+        assertEquals(cache.getHitRatio(), 0.5d);
+
+    }
+
+    @Test
+    public void boundsWeight() {
+
+        LruCache<String, String> cache = new LruCache<>(10, 10, (k, v) -> v.length());
+        cache.put("a", "xxxx", NEVER);
+        cache.put("b", "xxxx", NEVER);
+        cache.put("c", "xxxx", NEVER);
+        assertNull(cache.get("a"));
+        assertEquals(cache.size(), 2);
+
+        //Entries heavier than the limit are not cached
+        cache.put("d", "xxxxxxxxxxx", NEVER);
+        assertNull(cache.get("d"));
+        assertEquals(cache.size(), 2);
+
+        //Replacing an entry accounts for the weight of the previous value
+        cache.put("b", "x", NEVER);
+        cache.put("e", "xxxxx", NEVER);
+        assertEquals(cache.size(), 3);
+
+    }
+
+    @Test
+    public void clears() {
+
+        LruCache<Integer, Integer> cache = new LruCache<>(1000);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i, NEVER);
+        }
+        assertEquals(cache.size(), 100);
+        assertEquals(cache.getHitRatio(), -1.0d);
+
+        cache.clear();
+        assertEquals(cache.size(), 0);
+        assertNull(cache.get(1));
+
+    }
+
+}
@@ -0,0 +1,182 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit tests of the Cedar parser: structure of the syntax trees built for scopes, clauses, and operators, and
+ * rejection of invalid input. It runs offline (see the unitTest gradle task)
+ */
+public class CedarParserTest {
+
+    @Test
+    public void foldsScopeAndClausesIntoCondition() {
+
+        Policy policy = parse("@id(\"honors\") @note permit(principal, action == Jans::Action::\"Search\", "
+                + "resource is Jans::student) when { resource.gpa > 3 } unless { resource has sealed };");
+
+        assertEquals(policy.getId(), "honors");
+        assertEquals(policy.getEffect(), Policy.Effect.PERMIT);
+        assertFalse(policy.isTemplate());
+
+        //An unconstrained principal adds nothing
+        Expr condition = policy.getCondition();
+        assertEquals(condition.getKind(), Expr.Kind.AND);
+        List<Expr> conjuncts = condition.getChildren();
+        assertEquals(conjuncts.size(), 4);
+
+        assertBinary(conjuncts.get(0), "==");
+        assertEquals(conjuncts.get(0).getChildren().get(1).getValue(), new EntityRef("Jans::Action", "Search"));
+        assertEquals(conjuncts.get(1).getKind(), Expr.Kind.IS);
+        assertEquals(conjuncts.get(1).getName(), "Jans::student");
+        assertBinary(conjuncts.get(2), ">");
+        assertEquals(conjuncts.get(3).getKind(), Expr.Kind.NOT);
+        assertEquals(conjuncts.get(3).getChildren().get(0).getKind(), Expr.Kind.HAS);
+
+    }
+
+    @Test
+    public void assignsDefaultIds() {
+
+        List<Policy> policies = CedarParser.parsePolicies(
+                "// comment\npermit(principal, action, resource);\nforbid(principal, action, resource);");
+
+        assertEquals(policies.size(), 2);
+        assertEquals(policies.get(0).getId(), "policy0");
+        assertEquals(policies.get(1).getId(), "policy1");
+        assertEquals(policies.get(1).getEffect(), Policy.Effect.FORBID);
+        assertEquals(policies.get(0).getCondition().getValue(), true);
+
+    }
+
+    @Test
+    public void detectsTemplates() {
+        assertTrue(parse("permit(principal == ?principal, action, resource in ?resource);").isTemplate());
+    }
+
+    @Test
+    public void parsesActionLists() {
+
+        Expr in = parse("permit(principal, action in [Jans::Action::\"Search\", Jans::Action::\"Read\"], resource);")
+                .getCondition();
+
+        assertBinary(in, "in");
+        Expr set = in.getChildren().get(1);
+        assertEquals(set.getKind(), Expr.Kind.SET);
+        assertEquals(set.getChildren().size(), 2);
+        assertEquals(set.getChildren().get(1).getValue(), new EntityRef("Jans::Action", "Read"));
+
+    }
+
+    @Test
+    public void honorsPrecedence() {
+
+        Expr or = when("resource.a + 2 * 3 < 10 || !resource.b && true");
+
+        assertEquals(or.getKind(), Expr.Kind.OR);
+        Expr lessThan = or.getChildren().get(0);
+        assertBinary(lessThan, "<");
+        Expr plus = lessThan.getChildren().get(0);
+        assertBinary(plus, "+");
+        assertBinary(plus.getChildren().get(1), "*");
+
+        Expr and = or.getChildren().get(1);
+        assertEquals(and.getKind(), Expr.Kind.AND);
+        assertEquals(and.getChildren().get(0).getKind(), Expr.Kind.NOT);
+
+    }
+
+    @Test
+    public void expandsHasPaths() {
+
+        //e has a.b stands for e has a && e.a has b
+        Expr and = when("resource has address.city");
+
+        assertEquals(and.getKind(), Expr.Kind.AND);
+        Expr first = and.getChildren().get(0), second = and.getChildren().get(1);
+        assertEquals(first.getKind(), Expr.Kind.HAS);
+        assertEquals(first.getName(), "address");
+        assertEquals(second.getKind(), Expr.Kind.HAS);
+        assertEquals(second.getName(), "city");
+        assertEquals(second.getChildren().get(0).getKind(), Expr.Kind.ATTR);
+        assertEquals(second.getChildren().get(0).getName(), "address");
+
+    }
+
+    @Test
+    public void parsesLiterals() {
+
+        Expr like = when("resource.name like \"A\\*b*\"");
+        assertEquals(like.getKind(), Expr.Kind.LIKE);
+        assertEquals(like.getValue(), "A" + CedarParser.LITERAL_STAR + "b*");
+
+        assertEquals(when("resource.n == -9223372036854775808").getChildren().get(1).getValue(), Long.MIN_VALUE);
+        assertEquals(when("resource[\"full name\"] == \"\\u{41}\\n\"").getChildren().get(1).getValue(), "A\n");
+
+        Expr record = when("context.r == {a: 1, \"b c\": [true, \"x\"],}").getChildren().get(1);
+        assertEquals(record.getKind(), Expr.Kind.RECORD);
+        assertEquals(record.getNames(), List.of("a", "b c"));
+        assertEquals(record.getChildren().get(1).getKind(), Expr.Kind.SET);
+
+    }
+
+    @Test
+    public void parsesCalls() {
+
+        Expr call = when("context.roles.containsAny([\"a\", \"b\"])");
+        assertEquals(call.getKind(), Expr.Kind.CALL);
+        assertEquals(call.getName(), "containsAny");
+        assertEquals(call.getChildren().size(), 2);
+
+        Expr ext = when("decimal(resource.gpa).greaterThan(decimal(\"3.5\"))").getChildren().get(0);
+        assertEquals(ext.getKind(), Expr.Kind.EXT);
+        assertEquals(ext.getName(), "decimal");
+
+    }
+
+    @Test
+    public void parsesEntities() {
+
+        assertEquals(CedarParser.parseEntity("Jans::Action::\"Search\""), new EntityRef("Jans::Action", "Search"));
+        assertThrows(IllegalArgumentException.class, () -> CedarParser.parseEntity("Jans::Action"));
+        assertThrows(IllegalArgumentException.class, () -> CedarParser.parseEntity("Jans::Action::\"Search\" x"));
+
+    }
+
+    @Test
+    public void rejectsInvalidPolicies() {
+
+        for (String text : List.of(
+                "permit(principal, action);",
+                "allow(principal, action, resource);",
+                "permit(principal, action, resource) when { true }",
+                "permit(principal, action, resource) if { true };",
+                "permit(principal, action, resource) when { resource.name == \"x };",
+                "permit(principal, action, resource) when { resource.n == 99999999999999999999 };",
+                "permit(principal, action, resource) when { resource.a # 1 };")) {
+            assertThrows(IllegalArgumentException.class, () -> CedarParser.parsePolicies(text));
+        }
+
+    }
+
+    private static Policy parse(String text) {
+
+        List<Policy> policies = CedarParser.parsePolicies(text);
+        assertEquals(policies.size(), 1);
+        return policies.get(0);
+
+    }
+
+    private static Expr when(String condition) {
+        return parse("permit(principal, action, resource) when { " + condition + " };").getCondition();
+    }
+
+    private static void assertBinary(Expr e, String operator) {
+        assertEquals(e.getKind(), Expr.Kind.BINARY);
+        assertEquals(e.getName(), operator);
+    }
+
+}
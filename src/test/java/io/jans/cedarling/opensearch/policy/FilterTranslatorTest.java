@@ -0,0 +1,138 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+import org.json.JSONObject;
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * Unit tests of the query filters derived from policies (PolicyAnalyzer.filterFor). Filters must never leave
+ * out a document policies may permit. It runs offline (see the unitTest gradle task)
+ */
+public class FilterTranslatorTest {
+
+    private static final String SEARCH = "Jans::Action::\"Search\"";
+    private static final String STUDENT = "Jans::student";
+
+    private static final String SCHEMA = String.join("\n",
+            "namespace Jans {",
+            "  type Address = { city: String, zip: Long };",
+            "  entity User = { sub?: String };",
+            "  entity student = { name: String, grad_year: Long, active?: Bool, address?: Address,",
+            "      labels?: Set<String> };",
+            "  entity teacher = { name: String };",
+            "  action \"Search\" appliesTo { principal: [User], resource: [student, teacher] };",
+            "}");
+
+    @Test
+    public void translatesComparisons() {
+
+        assertEquals(filter("resource.grad_year < 2026"), "grad_year < 2026");
+        assertEquals(filter("2026 > resource.grad_year"), "grad_year < 2026");
+        assertEquals(filter("resource.grad_year >= context.since"), "grad_year >= 2020");
+        assertEquals(filter("resource.address.city == \"Austin\" && resource.active == true"),
+                "(address.city == Austin && active == true)");
+        assertEquals(filter("resource.labels.contains(\"honors\")"), "labels == honors");
+        assertEquals(filter("resource.labels.containsAny([\"a\", \"b\"])"), "(labels == a || labels == b)");
+        assertEquals(filter("resource.labels.containsAll([\"a\", \"b\"])"), "(labels == a && labels == b)");
+        assertEquals(filter("if resource.active == true then resource.grad_year < 2026 else false"),
+                "(active == true && grad_year < 2026)");
+
+    }
+
+    @Test
+    public void leavesOutNothingPoliciesMayPermit() {
+
+        //Negations, patterns, presence, undeclared or mistyped attributes, and unknown values are not translated
+        for (String condition : List.of(
+                "!(resource.grad_year > 2026)",
+                "resource.grad_year != 2026",
+                "resource.name like \"A*\"",
+                "resource has address",
+                "resource.nickname == \"x\"",
+                "resource.grad_year == \"2026\"",
+                "resource.address.zip == resource.grad_year",
+                "resource[\"a.b\"] == 1",
+                "resource.grad_year < 2026 || resource.name like \"A*\"",
+                "resource.grad_year < 2026 || true")) {
+            assertEquals(filter(condition), "all", condition);
+        }
+        //Unless both alternatives are translatable
+        assertEquals(filter("resource.grad_year < 2026 || resource.name == \"Ann\""),
+                "(grad_year < 2026 || name == Ann)");
+
+    }
+
+    @Test
+    public void dependsOnTokens() {
+
+        String condition = "resource.grad_year < 2026 || context.tokens.jans_userinfo_token.getTag(\"role\")"
+                + ".contains(\"Admin\")";
+        assertEquals(filter(condition, "Admin"), "all");
+        assertEquals(filter(condition, "Student"), "grad_year < 2026");
+
+    }
+
+    @Test
+    public void combinesPolicies() {
+
+        PolicyAnalyzer analyzer = analyzer(String.join("\n",
+                "permit(principal, action == " + SEARCH + ", resource is Jans::student)",
+                "  when { resource.grad_year < 2026 };",
+                "permit(principal, action == " + SEARCH + ", resource is Jans::student)",
+                "  when { resource.active == true };",
+                "permit(principal, action == Jans::Action::\"Read\", resource);",
+                "forbid(principal, action, resource);"), true);
+
+        //Forbids are not taken into account
+        assertEquals(analyzer.filterFor(SEARCH, STUDENT, Map.of(), new JSONObject()).toString(),
+                "(grad_year < 2026 || active == true)");
+        assertSame(analyzer.filterFor(SEARCH, "Jans::teacher", Map.of(), new JSONObject()), ResourceFilter.NONE);
+        assertSame(analyzer.filterFor("Jans::Action::\"Read\"", STUDENT, Map.of(), new JSONObject()),
+                ResourceFilter.ALL);
+        assertEquals(analyzer.getEntityTypes(), Set.of("Jans::User", STUDENT, "Jans::teacher"));
+
+    }
+
+    @Test
+    public void needsSchemaForComparisons() {
+
+        PolicyAnalyzer analyzer = analyzer(String.join("\n",
+                "permit(principal, action == " + SEARCH + ", resource) when { resource.grad_year < 2026 };",
+                "permit(principal, action == Jans::Action::\"Read\", resource);"), false);
+
+        assertSame(analyzer.filterFor(SEARCH, STUDENT, Map.of(), new JSONObject()), ResourceFilter.ALL);
+        assertSame(analyzer.filterFor("Jans::Action::\"Audit\"", STUDENT, Map.of(), new JSONObject()),
+                ResourceFilter.NONE);
+        assertTrue(analyzer.getEntityTypes().isEmpty());
+
+    }
+
+    private static String filter(String condition) {
+        return filter(condition, "Student");
+    }
+
+    private static String filter(String condition, String role) {
+
+        PolicyAnalyzer analyzer = analyzer("permit(principal, action == " + SEARCH + ", resource is Jans::student) "
+                + "when { " + condition + " };", true);
+        JSONObject claims = new JSONObject().put("role", List.of(role));
+        return analyzer.filterFor(SEARCH, STUDENT, Map.of("Jans::Userinfo_token", claims),
+                new JSONObject().put("since", 2020)).toString();
+
+    }
+
+    private static PolicyAnalyzer analyzer(String policies, boolean withSchema) {
+
+        PolicyAnalyzer analyzer = new PolicyAnalyzer(CedarParser.parsePolicies(policies), false);
+        if (withSchema) {
+            analyzer.schema = SCHEMA;
+            analyzer.shapes = SchemaShapes.parse(SCHEMA);
+        }
+        return analyzer;
+
+    }
+
+}
@@ -0,0 +1,192 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+import org.json.JSONObject;
+import org.testng.annotations.*;
+
+import static io.jans.cedarling.opensearch.policy.PartialEvaluator.*;
+import static org.testng.Assert.*;
+
+/**
+ * Unit tests of the three-valued evaluation of conditions: the resource and the principal are unknown, while the
+ * action, the context, and the claims of the tokens are known. It runs offline (see the unitTest gradle task)
+ */
+public class PartialEvaluatorTest {
+
+    private static final String ACTION = "Jans::Action::\"Search\"";
+    private static final String RESOURCE_TYPE = "Jans::student";
+
+    private PartialEvaluator evaluator;
+
+    @BeforeMethod
+    public void init() {
+
+        JSONObject claims = new JSONObject()
+                .put("role", List.of("Teacher", "Staff"))
+                .put("dept", "math")
+                .put("level", 3);
+        JSONObject context = new JSONObject()
+                .put("count", 2)
+                .put("name", "a*b")
+                .put("address", new JSONObject().put("city", "Austin"))
+                .put("ratio", 0.5);
+        evaluator = evaluator(false, claims, context);
+
+    }
+
+    @Test
+    public void leavesResourceAndPrincipalUnknown() {
+
+        assertSame(eval("resource.gpa > 3"), UNKNOWN);
+        assertSame(eval("principal.role == \"x\""), UNKNOWN);
+        assertSame(eval("resource has gpa"), UNKNOWN);
+        assertSame(eval("-resource.n"), UNKNOWN);
+
+    }
+
+    @Test
+    public void shortCircuitsOnUnknowns() {
+
+        assertEquals(eval("resource.gpa > 3 || context.count == 2"), true);
+        assertEquals(eval("resource.gpa > 3 && context.count == 1"), false);
+        assertSame(eval("resource.gpa > 3 && context.count == 2"), UNKNOWN);
+        assertSame(eval("resource.gpa > 3 || context.count == 1"), UNKNOWN);
+
+        //An error only matters once the operands before it are known
+        assertSame(eval("resource.gpa > 3 && context.count"), UNKNOWN);
+        assertSame(eval("context.count && resource.gpa > 3"), ERROR);
+        assertEquals(eval("false && context.missing"), false);
+        assertEquals(eval("true || context.missing"), true);
+
+    }
+
+    @Test
+    public void raisesErrors() {
+
+        assertSame(eval("context.count == 2 && context.missing == 1"), ERROR);
+        assertSame(eval("context.name < 3"), ERROR);
+        assertSame(eval("context.count + \"x\" == 3"), ERROR);
+        assertSame(eval("9223372036854775807 + 1 > 0"), ERROR);
+        assertSame(eval("-(-9223372036854775808) > 0"), ERROR);
+        assertSame(eval("!context.count"), ERROR);
+        assertSame(eval("context.count.city == 1"), ERROR);
+        assertEquals(eval("context.count * 3 - 1 == 5"), true);
+
+    }
+
+    @Test
+    public void evaluatesIfThenElse() {
+
+        assertEquals(eval("if context.count > 1 then true else context.missing"), true);
+        assertSame(eval("if context.count then true else false"), ERROR);
+        //An unknown condition does not matter if both branches agree
+        assertEquals(eval("if resource.gpa > 3 then context.count == 2 else true"), true);
+        assertSame(eval("if resource.gpa > 3 then true else false"), UNKNOWN);
+
+    }
+
+    @Test
+    public void checksPresenceOfAttributes() {
+
+        assertEquals(eval("context has count"), true);
+        assertEquals(eval("context has missing"), false);
+        assertEquals(eval("context has address.city"), true);
+        assertEquals(eval("context has address.zip"), false);
+        assertEquals(eval("context has \"count\""), true);
+        assertSame(eval("context.count has city"), ERROR);
+        //Decimals have no obvious Cedar counterpart
+        assertEquals(eval("context has ratio"), true);
+        assertSame(eval("context.ratio == 1"), UNKNOWN);
+
+    }
+
+    @Test
+    public void matchesPatterns() {
+
+        assertEquals(eval("context.address.city like \"A*n\""), true);
+        assertEquals(eval("context.address.city like \"A*x\""), false);
+        assertEquals(eval("context.name like \"a\\*b\""), true);
+        assertEquals(eval("context.address.city like \"A\\*n\""), false);
+        assertSame(eval("context.count like \"*\""), ERROR);
+        assertSame(eval("resource.name like \"*\""), UNKNOWN);
+
+        assertTrue(PartialEvaluator.like("", "*"));
+        assertTrue(PartialEvaluator.like("abcbd", "a*b*d"));
+        assertFalse(PartialEvaluator.like("abc", "a*b"));
+
+    }
+
+    @Test
+    public void evaluatesMembership() {
+
+        assertEquals(eval("action in " + ACTION), true);
+        assertEquals(eval("action in [Jans::Action::\"Read\", " + ACTION + "]"), true);
+        //An action is only in itself unless the schema declares action groups
+        assertEquals(eval("action in Jans::Action::\"Read\""), false);
+        assertSame(evaluator(true, new JSONObject(), new JSONObject())
+                .eval(when("action in Jans::Action::\"Read\"")), UNKNOWN);
+
+        assertSame(eval("resource in Jans::school::\"1\""), UNKNOWN);
+        assertSame(eval("1 in Jans::school::\"1\""), ERROR);
+        assertSame(eval("action in 1"), ERROR);
+
+    }
+
+    @Test
+    public void comparesResourceTypes() {
+
+        assertEquals(eval("resource is " + RESOURCE_TYPE), true);
+        assertEquals(eval("resource is Jans::teacher"), false);
+        assertSame(eval("resource is " + RESOURCE_TYPE + " in Jans::school::\"1\""), UNKNOWN);
+
+        //A resource is never equal to an entity of another type
+        assertEquals(eval("resource == Jans::teacher::\"1\""), false);
+        assertEquals(eval("resource != Jans::teacher::\"1\""), true);
+        assertSame(eval("resource == Jans::student::\"1\""), UNKNOWN);
+
+    }
+
+    @Test
+    public void readsTokens() {
+
+        assertEquals(eval("context.tokens.jans_userinfo_token.hasTag(\"role\")"), true);
+        assertEquals(eval("context.tokens.jans_userinfo_token.hasTag(\"group\")"), false);
+        assertEquals(eval("context.tokens.jans_userinfo_token.getTag(\"role\").contains(\"Teacher\")"), true);
+        assertEquals(eval("context.tokens.jans_userinfo_token.role.containsAny([\"Admin\", \"Staff\"])"), true);
+        assertEquals(eval("context.tokens.jans_userinfo_token.role.containsAll([\"Admin\", \"Staff\"])"), false);
+        assertEquals(eval("context.tokens.jans_userinfo_token.level >= 3"), true);
+        assertEquals(eval("context.tokens.jans_userinfo_token is Jans::Userinfo_token"), true);
+        assertSame(eval("context.tokens.jans_userinfo_token.getTag(\"group\") == \"x\""), ERROR);
+        assertSame(eval("context.tokens.jans_userinfo_token.getTag(1)"), ERROR);
+
+        //Cedarling assigns the identity of token entities and of their issuer
+        assertSame(eval("context.tokens.jans_userinfo_token.iss == Jans::TrustedIssuer::\"x\""), UNKNOWN);
+        assertSame(eval("context.tokens.jans_userinfo_token == context.tokens.jans_userinfo_token"), UNKNOWN);
+        assertSame(eval("context.tokens.jans_userinfo_token in Jans::Role::\"x\""), UNKNOWN);
+
+    }
+
+    @Test
+    public void leavesExtensionsUnknown() {
+        assertSame(eval("decimal(\"1.5\").lessThan(decimal(\"2.0\"))"), UNKNOWN);
+        assertSame(eval("ip(\"10.0.0.1\").isLoopback()"), UNKNOWN);
+    }
+
+    private Object eval(String condition) {
+        return evaluator.eval(when(condition));
+    }
+
+    private static Expr when(String condition) {
+        return CedarParser.parsePolicies("permit(principal, action, resource) when { " + condition + " };")
+                .get(0).getCondition();
+    }
+
+    private static PartialEvaluator evaluator(boolean actionGroups, JSONObject claims, JSONObject context) {
+
+        Map<String, Object> record = PolicyAnalyzer.contextRecord(Map.of("Jans::Userinfo_token", claims), context);
+        return new PartialEvaluator(CedarParser.parseEntity(ACTION), RESOURCE_TYPE, record, actionGroups);
+
+    }
+
+}
@@ -0,0 +1,108 @@
+package io.jans.cedarling.opensearch.policy;
+
+import java.util.*;
+
+import org.json.JSONObject;
+import org.testng.annotations.*;
+
+import static io.jans.cedarling.opensearch.policy.PolicyAnalyzer.Outcome.*;
+import static org.testng.Assert.*;
+
+/**
+ * Unit tests of the decisions PolicyAnalyzer takes for whole entity types, and of the resource usage it collects.
+ * It runs offline (see the unitTest gradle task)
+ */
+public class PolicyAnalyzerTest {
+
+    private static final String SEARCH = "Jans::Action::\"Search\"";
+    private static final String STUDENT = "Jans::student";
+
+    private static final String POLICIES = String.join("\n",
+            "permit(principal, action == " + SEARCH + ", resource is Jans::student)",
+            "  when { context.tokens.jans_userinfo_token.hasTag(\"role\") &&",
+            "         context.tokens.jans_userinfo_token.getTag(\"role\").contains(\"Admin\") };",
+            "permit(principal, action == " + SEARCH + ", resource is Jans::student)",
+            "  when { context.tokens.jans_userinfo_token.getTag(\"role\").contains(\"Teacher\") &&",
+            "         resource.grad_year > 2020 };",
+            "forbid(principal, action, resource)",
+            "  when { context has blocked && context.blocked };");
+
+    private PolicyAnalyzer analyzer;
+
+    @BeforeClass
+    public void init() {
+        analyzer = new PolicyAnalyzer(CedarParser.parsePolicies(POLICIES), false);
+    }
+
+    @Test
+    public void decidesWholeEntityTypes() {
+
+        assertEquals(decide(SEARCH, STUDENT, "Admin", new JSONObject()), ALLOW_ALL);
+        assertEquals(decide(SEARCH, STUDENT, "Teacher", new JSONObject()), UNDECIDED);
+        assertEquals(decide(SEARCH, STUDENT, "Student", new JSONObject()), DENY_ALL);
+        //No policy applies to other types or actions
+        assertEquals(decide(SEARCH, "Jans::teacher", "Admin", new JSONObject()), DENY_ALL);
+        assertEquals(decide("Jans::Action::\"Read\"", STUDENT, "Admin", new JSONObject()), DENY_ALL);
+        assertEquals(decide("not an action", STUDENT, "Admin", new JSONObject()), UNDECIDED);
+
+        //A forbid that applies wins
+        assertEquals(decide(SEARCH, STUDENT, "Admin", new JSONObject().put("blocked", true)), DENY_ALL);
+        //A policy that raises an error does not apply
+        assertEquals(decide(SEARCH, STUDENT, "Admin", new JSONObject().put("blocked", 1)), ALLOW_ALL);
+
+    }
+
+    @Test
+    public void holdsOffOnUnknownForbids() {
+
+        PolicyAnalyzer guarded = new PolicyAnalyzer(CedarParser.parsePolicies(
+                "permit(principal, action, resource);\n"
+                + "forbid(principal, action, resource) unless { resource.public };"), false);
+
+        assertEquals(guarded.decide(SEARCH, STUDENT, Map.of(), new JSONObject()), UNDECIDED);
+
+    }
+
+    @Test
+    public void collectsResourceUsage() {
+
+        assertEquals(analyzer.getResourceAttributes(), Set.of("grad_year"));
+        assertFalse(analyzer.isResourceIdUsed());
+
+        PolicyAnalyzer other = new PolicyAnalyzer(CedarParser.parsePolicies(
+                "permit(principal, action, resource) when { resource has address.city && resource[\"gpa\"] > 3 };"),
+                false);
+        assertEquals(other.getResourceAttributes(), Set.of("address", "gpa"));
+        assertFalse(other.isResourceIdUsed());
+
+        for (String policy : List.of(
+                "permit(principal, action, resource == Jans::student::\"1\");",
+                "permit(principal, action, resource in Jans::school::\"1\");",
+                "permit(principal, action, resource is Jans::student in Jans::school::\"1\");",
+                "permit(principal, action, resource) when { context.owner == resource };")) {
+            assertTrue(new PolicyAnalyzer(CedarParser.parsePolicies(policy), false).isResourceIdUsed(), policy);
+        }
+
+    }
+
+    @Test
+    public void convertsJsonValues() {
+
+        Map<String, Object> record = PolicyAnalyzer.contextRecord(Map.of(),
+                new JSONObject().put("n", 1).put("list", List.of("a", 2)).put("big", 1.5));
+
+        assertEquals(record.get("n"), 1L);
+        assertEquals(record.get("list"), new LinkedHashSet<>(List.of("a", 2L)));
+        assertSame(record.get("big"), PartialEvaluator.UNKNOWN);
+        assertEquals(record.get("tokens"), Map.of());
+
+    }
+
+    private PolicyAnalyzer.Outcome decide(String action, String entityType, String role, JSONObject context) {
+
+        JSONObject claims = new JSONObject().put("role", List.of(role));
+        return analyzer.decide(action, entityType, Map.of("Jans::Userinfo_token", claims), context);
+
+    }
+
+}